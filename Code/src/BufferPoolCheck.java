@@ -0,0 +1,125 @@
+import p2p.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//Checks that BufferPool stops creating buffers once it is warm, the way message handlers use it.
+//Each case warms the pool up, then leases and releases many more buffers and expects getAllocatedBufferCount to stay the same.
+//Every thread runs both warm-up and measurement, like a neighbor handler thread, since each thread keeps free buffers of its own.
+//Command format: BufferPoolCheck [Rounds] [Threads]
+//Prints PASS or FAIL for each case. Exit code is 1 if any case fails.
+public final class BufferPoolCheck {
+
+    private static final int BUFFER_SIZE = 4 + 1 + 8 + 16384;
+    private static final int IN_FLIGHT_COUNT = 16;      //Buffers handed between threads at a time.
+
+    public static void main(String[] args) throws InterruptedException {
+        int roundCount = 1000000;
+        int threadCount = 4;
+
+        try {
+            if (args.length > 0) {
+                roundCount = Integer.parseInt(args[0]);
+            }
+            if (args.length > 1) {
+                threadCount = Integer.parseInt(args[1]);
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid parameter format. Must be number.");
+            return;
+        }
+        if (roundCount < 1 || threadCount < 1) {
+            System.out.println("Invalid parameter. Must be greater than 0.");
+            return;
+        }
+
+        BufferPool bufferPool = new BufferPool(BUFFER_SIZE);
+        boolean passed = check("Same thread", bufferPool, roundCount, new Workload[]{rounds -> leaseAndRelease(bufferPool, rounds)});
+
+        BufferPool handOffPool = new BufferPool(BUFFER_SIZE);
+        ArrayBlockingQueue<ByteBuffer> handOffQueue = new ArrayBlockingQueue<>(IN_FLIGHT_COUNT);
+        passed &= check("Handed to another thread", handOffPool, roundCount, new Workload[]{
+                rounds -> {
+                    for (int i = 0; i < rounds; i++) {
+                        handOffQueue.put(handOffPool.lease(BUFFER_SIZE));
+                    }
+                },
+                rounds -> {
+                    for (int i = 0; i < rounds; i++) {
+                        handOffPool.release(handOffQueue.take());
+                    }
+                }});
+
+        BufferPool concurrentPool = new BufferPool(BUFFER_SIZE);
+        Workload[] workloads = new Workload[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            workloads[i] = rounds -> leaseAndRelease(concurrentPool, rounds);
+        }
+        passed &= check(threadCount + " threads at once", concurrentPool, roundCount, workloads);
+
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    private interface Workload {
+
+        void run(int roundCount) throws InterruptedException;
+
+    }
+
+    //Runs each workload on its own thread, a warm-up round and then the measured round.
+    //Allocated buffers are counted when every thread has finished warming up.
+    private static boolean check(String name, BufferPool bufferPool, int roundCount, Workload[] workloads) throws InterruptedException {
+        long[] warmCount = new long[1];
+        long[] start = new long[1];
+        CyclicBarrier barrier = new CyclicBarrier(workloads.length, () -> {
+            warmCount[0] = bufferPool.getAllocatedBufferCount();
+            start[0] = System.nanoTime();
+        });
+        AtomicBoolean failed = new AtomicBoolean();
+        Thread[] threads = new Thread[workloads.length];
+        for (int i = 0; i < workloads.length; i++) {
+            Workload workload = workloads[i];
+            threads[i] = new Thread(() -> {
+                try {
+                    workload.run(Math.max(1, roundCount / 10));
+                    barrier.await();
+                    workload.run(roundCount);
+                } catch (InterruptedException | BrokenBarrierException | RuntimeException e) {
+                    failed.set(true);
+                    barrier.reset();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long time = System.nanoTime() - start[0];
+
+        if (failed.get()) {
+            System.out.printf("%-26s FAIL    a thread stopped with an exception%n", name);
+            return false;
+        }
+        long newCount = bufferPool.getAllocatedBufferCount() - warmCount[0];
+        System.out.printf("%-26s %s    buffers after warm-up: %-6d new buffers: %-6d %.1f ns per lease%n",
+                name, newCount == 0 ? "PASS" : "FAIL", warmCount[0], newCount, (double) time / roundCount / workloads.length);
+        return newCount == 0;
+    }
+
+    //A handler sending messages. Lengths vary, like messages of different types.
+    private static void leaseAndRelease(BufferPool bufferPool, int roundCount) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < roundCount; i++) {
+            ByteBuffer buffer = bufferPool.lease(1 + random.nextInt(BUFFER_SIZE));
+            buffer.put(0, (byte) i);
+            bufferPool.release(buffer);
+        }
+    }
+
+}
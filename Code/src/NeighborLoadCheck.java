@@ -0,0 +1,284 @@
+import p2p.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+//Checks that one seed serves many neighbors at once with the given network engine.
+//Neighbors are protocol clients run over loopback by one selector thread of this check, so they add no thread per neighbor to the process.
+//Each one handshakes, sends Have None and Interested, and keeps one request in flight for a random piece while the seed unchokes it.
+//Seed prefers every interested neighbor, so all of them download at once.
+//Command format: NeighborLoadCheck [Network Engine] [Neighbors] [Seconds] [Directory]
+//Prints PASS if every neighbor finished its handshake and received at least one piece. Otherwise prints FAIL, and exit code is 1.
+public final class NeighborLoadCheck {
+
+    private static final int PIECE_COUNT = 1000;
+    private static final int PIECE_SIZE = 16384;
+    private static final String HANDSHAKE_HEADER = "P2PFILESHARINGPROJ";
+    private static final int HANDSHAKE_LENGTH = HANDSHAKE_HEADER.length() + 10 + 4;
+    private static final byte COMPACT_BITFIELD_FLAG = 0x01;         //In the last reserved byte.
+    private static final int CONNECTING_CLIENT_LIMIT = 50;          //Listen backlog is 50. Connecting everyone at once drops SYNs, which are retried a second later.
+
+    public static void main(String[] args) throws InterruptedException {
+        HostPeer.NetworkEngine networkEngine = HostPeer.NetworkEngine.VIRTUAL_THREAD;
+        int neighborCount = 1000;
+        int seconds = 20;
+        String directory = "neighbor_load_check";
+
+        try {
+            if (args.length > 0) {
+                networkEngine = HostPeer.NetworkEngine.typeOf(args[0]);
+            }
+            if (args.length > 1) {
+                neighborCount = Integer.parseInt(args[1]);
+            }
+            if (args.length > 2) {
+                seconds = Integer.parseInt(args[2]);
+            }
+            if (args.length > 3) {
+                directory = args[3];
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid parameter format. Must be number.");
+            return;
+        }
+        if (networkEngine == null) {
+            System.out.println("Invalid network engine. Must be Blocking, Selector or VirtualThread.");
+            return;
+        }
+        if (neighborCount < 1 || seconds < 1) {
+            System.out.println("Invalid parameter. Neighbors and seconds must be greater than 0.");
+            return;
+        }
+
+        new File(directory).mkdirs();
+        new P2PLogger(directory + File.separator + "log_neighbor_load_check.log");
+        boolean passed;
+        try {
+            passed = run(networkEngine, neighborCount, seconds, directory);
+        } catch (IOException e) {
+            System.out.println("IOException happens when running the neighbor load check: " + e.getMessage());
+            passed = false;
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            passed = false;
+        }
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean run(HostPeer.NetworkEngine networkEngine, int neighborCount, int seconds, String directory) throws IOException, InterruptedException {
+        String seedDirectory = directory + File.separator + "seed";
+        SharedFile seedFile = new SharedFile("load.bin", seedDirectory, (long) PIECE_COUNT * PIECE_SIZE, PIECE_SIZE);
+        byte[] piece = new byte[PIECE_SIZE];
+        Random random = new Random(1);
+        for (int i = 0; i < PIECE_COUNT; i++) {
+            random.nextBytes(piece);
+            seedFile.writePiece(i, piece);
+        }
+        int port;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            port = serverSocket.getLocalPort();
+        }
+        HostPeer seed = new HostPeer(new Peer(1, "localhost", port, PIECE_COUNT, true), neighborCount, 1, 1, 1, seedFile,
+                new ProgressFile("load.bitfield", seedDirectory, (PIECE_COUNT + 7) / 8, 10), 0, new ArrayList<>(), -1, -1);
+        seed.setNetworkEngine(networkEngine, 2);
+        int baseThreadCount = ManagementFactory.getThreadMXBean().getThreadCount();
+        seed.startRunning();
+
+        List<Client> clientList = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        long end = start + seconds * 1000L;
+        long handshakeTime = -1;
+        int peakThreadCount = 0;
+        try (Selector selector = Selector.open()) {
+            while (System.currentTimeMillis() < end) {
+                int connectingCount = 0;
+                for (Client client : clientList) {
+                    if (!client.handshaken && !client.closed) {
+                        connectingCount++;
+                    }
+                }
+                while (clientList.size() < neighborCount && connectingCount++ < CONNECTING_CLIENT_LIMIT) {
+                    clientList.add(new Client(clientList.size() + 2, port, selector));
+                }
+
+                selector.select(10);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    ((Client) key.attachment()).handle(key, random);
+                }
+                selector.selectedKeys().clear();
+
+                if (handshakeTime < 0 && clientList.size() == neighborCount && clientList.stream().allMatch(c -> c.handshaken)) {
+                    handshakeTime = System.currentTimeMillis() - start;
+                }
+                peakThreadCount = Math.max(peakThreadCount, ManagementFactory.getThreadMXBean().getThreadCount() - baseThreadCount);
+            }
+
+            int registeredCount = seed.getActiveNeighborList().size();
+            int interestedCount = (int) seed.getActiveNeighborList().stream().filter(NeighborPeer::isInterestedInHost).count();
+            int handshakenCount = (int) clientList.stream().filter(c -> c.handshaken).count();
+            int servedCount = (int) clientList.stream().filter(c -> c.receivedPieceCount > 0).count();
+            long receivedPieceCount = clientList.stream().mapToLong(c -> c.receivedPieceCount).sum();
+            int minimumPieceCount = clientList.stream().mapToInt(c -> c.receivedPieceCount).min().orElse(0);
+            System.gc();
+            long heapSize = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+            boolean passed = handshakenCount == neighborCount && servedCount == neighborCount;
+
+            System.out.println(networkEngine.getConfigName() + " " + (passed ? "PASS" : "FAIL") + " on Java " + System.getProperty("java.version") + ", "
+                    + Runtime.getRuntime().availableProcessors() + " CPU(s), " + neighborCount + " neighbors, " + seconds + " s");
+            System.out.println("  Handshaken:      " + handshakenCount + (handshakeTime < 0 ? "" : " in " + handshakeTime + " ms"));
+            System.out.println("  Registered:      " + registeredCount + ", " + interestedCount + " seen as interested");
+            System.out.println("  Served:          " + servedCount + " got a piece, fewest " + minimumPieceCount);
+            System.out.printf("  Pieces:          %d, %.1f MB/s%n", receivedPieceCount, receivedPieceCount * (double) PIECE_SIZE / 1048576 / seconds);
+            System.out.println("  Seed threads:    " + peakThreadCount + " platform threads at most");
+            System.out.println("  Heap after GC:   " + (heapSize >> 20) + " MB, RSS " + getResidentSize() + " MB");
+            return passed;
+        } finally {
+            for (Client client : clientList) {
+                client.close();
+            }
+            seed.stopRunning();
+            seedFile.closeFile();
+        }
+    }
+
+    //Returns -1 if /proc is not there.
+    private static long getResidentSize() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) >> 10;
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+        return -1;
+    }
+
+    //One neighbor. Only used by the selector thread of the check.
+    private static final class Client {
+
+        private final int peerID;
+        private final SocketChannel socketChannel;
+        private final SelectionKey selectionKey;
+        private final ByteBuffer input;         //In write mode between reads.
+        private final ByteBuffer output;        //In write mode between writes.
+        private boolean handshaken;
+        private boolean closed;
+        private boolean unchoked;
+        private boolean requesting;
+        private int receivedPieceCount;
+
+        public Client(int peerID, int port, Selector selector) throws IOException {
+            this.peerID = peerID;
+            socketChannel = SocketChannel.open();
+            socketChannel.configureBlocking(false);
+            socketChannel.connect(new InetSocketAddress("localhost", port));
+            selectionKey = socketChannel.register(selector, SelectionKey.OP_CONNECT, this);
+            input = ByteBuffer.allocate(4 + 1 + 4 + PIECE_SIZE);
+            output = ByteBuffer.allocate(256);
+        }
+
+        public void handle(SelectionKey key, Random random) {
+            try {
+                if (key.isConnectable() && socketChannel.finishConnect()) {
+                    byte[] reservedBytes = new byte[10];
+                    reservedBytes[9] = COMPACT_BITFIELD_FLAG;
+                    output.put(HANDSHAKE_HEADER.getBytes(StandardCharsets.US_ASCII)).put(reservedBytes).putInt(peerID);
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    if (socketChannel.read(input) < 0) {
+                        close();
+                        return;
+                    }
+                    readMessages(random);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    output.flip();
+                    socketChannel.write(output);
+                    output.compact();
+                    if (output.position() == 0) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void readMessages(Random random) throws IOException {
+            input.flip();
+            try {
+                if (!handshaken) {
+                    if (input.remaining() < HANDSHAKE_LENGTH) {
+                        return;
+                    }
+                    byte[] header = new byte[HANDSHAKE_HEADER.length()];
+                    input.get(header);
+                    if (!HANDSHAKE_HEADER.equals(new String(header, StandardCharsets.US_ASCII))) {
+                        throw new IOException("Invalid handshake.");
+                    }
+                    input.position(HANDSHAKE_LENGTH);
+                    handshaken = true;
+                    sendMessage(Peer.MessageType.HAVE_NONE, -1);
+                    sendMessage(Peer.MessageType.INTERESTED, -1);
+                }
+                while (input.remaining() >= 4 && input.remaining() >= 4 + input.getInt(input.position())) {
+                    int messageLength = input.getInt();
+                    Peer.MessageType messageType = Peer.MessageType.typeOf(input.get());
+                    input.position(input.position() + messageLength - 1);
+                    if (messageType == Peer.MessageType.UNCHOKE) {
+                        unchoked = true;
+                    } else if (messageType == Peer.MessageType.CHOKE) {
+                        unchoked = false;
+                        requesting = false;         //Seed drops requests while the neighbor is choked.
+                    } else if (messageType == Peer.MessageType.PIECE) {
+                        receivedPieceCount++;
+                        requesting = false;
+                    }
+                    if (unchoked && !requesting) {
+                        sendMessage(Peer.MessageType.REQUEST, random.nextInt(PIECE_COUNT));
+                        requesting = true;
+                    }
+                }
+            } finally {
+                input.compact();
+            }
+        }
+
+        private void sendMessage(Peer.MessageType messageType, int pieceIndex) {
+            if (pieceIndex < 0) {
+                output.putInt(messageType.length()).put(messageType.getValue());
+            } else {
+                output.putInt(messageType.length() + 4).put(messageType.getValue()).putInt(pieceIndex);
+            }
+            selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        public void close() {
+            closed = true;
+            selectionKey.cancel();
+            try {
+                socketChannel.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+    }
+
+}
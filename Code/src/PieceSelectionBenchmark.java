@@ -0,0 +1,181 @@
+import p2p.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+//Compares ways of picking a piece the neighbor has and the host lacks, as done for every Request Message.
+//Original: clones the neighbor status, prints the difference to a string, splits it, and parses one entry back. Picks at random.
+//Bit: the rarest-first path as first made, setting candidates into a BitSet one bit at a time and reading the availability of each.
+//Word: HostPeer.findNextRequest, which masks whole words and walks the pieces sorted by availability.
+//The neighbor has every piece and the host a random half, so every candidate is equally rare. Bytes per pick come from the allocated bytes
+//of the thread, where the JVM reports them. A host peer is created for each piece count, with a 1 byte piece, and one loopback neighbor.
+//Command format: PieceSelectionBenchmark [Milliseconds per Case] [Directory]
+public final class PieceSelectionBenchmark {
+
+    private static final int[] PIECE_COUNTS = {1000, 30000, 1000000};
+
+    private interface Picker {
+
+        int pick(HostPeer host, BitSet hostStatus, NeighborPeer neighbor, BitSet neighborStatus);
+
+    }
+
+    public static void main(String[] args) {
+        long duration = 1000;
+        String directory = "benchmark";
+
+        try {
+            if (args.length > 0) {
+                duration = Long.parseLong(args[0]);
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid parameter format. Must be number.");
+            return;
+        }
+        if (args.length > 1) {
+            directory = args[1];
+        }
+        if (duration < 1) {
+            System.out.println("Invalid parameter. Must be greater than 0.");
+            return;
+        }
+
+        new File(directory).mkdirs();
+        new P2PLogger(directory + File.separator + "log_selection_benchmark.log");
+        System.out.printf("%-10s %-10s %14s %14s%n", "Pieces", "Method", "ns/pick", "bytes/pick");
+        for (int pieceCount : PIECE_COUNTS) {
+            try {
+                run(pieceCount, directory, duration);
+            } catch (IOException e) {
+                System.out.println("IOException happens when benchmarking " + pieceCount + " pieces.");
+                return;
+            }
+        }
+        new File(directory, "selection.bin").delete();
+        new File(directory, "selection.progress").delete();
+    }
+
+    private static void run(int pieceCount, String directory, long duration) throws IOException {
+        SharedFile sharedFile = new SharedFile("selection.bin", directory, pieceCount, 1);
+        ProgressFile progressFile = new ProgressFile("selection.progress", directory, (pieceCount + 7) / 8, 0);
+        HostPeer host = new HostPeer(new Peer(1, "localhost", 0, pieceCount, false), 1, 5, 1, 10,
+                sharedFile, progressFile, 0, new ArrayList<>(), 0, 0);
+        ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Socket socket = null;           //Client end. Only kept open, so the neighbor socket stays connected.
+        try {
+            socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+            try (Socket acceptedSocket = serverSocket.accept()) {
+                NeighborPeer neighbor = new NeighborPeer(2, host, acceptedSocket);
+                BitSet neighborStatus = new BitSet(pieceCount);
+                neighborStatus.set(0, pieceCount);
+                neighbor.setPieceStatus(neighborStatus);        //Counted in the availability index of the host.
+                BitSet hostStatus = new BitSet(pieceCount);
+                Random random = new Random(1);
+                for (int i = 0; i < pieceCount; i++) {
+                    if (random.nextBoolean()) {
+                        hostStatus.set(i);
+                    }
+                }
+                host.setPieceStatus(hostStatus);
+
+                measure(pieceCount, "Original", PieceSelectionBenchmark::pickOriginal, host, hostStatus, neighbor, neighborStatus, duration);
+                measure(pieceCount, "Bit", PieceSelectionBenchmark::pickBitByBit, host, hostStatus, neighbor, neighborStatus, duration);
+                measure(pieceCount, "Word", (h, hs, n, ns) -> h.findNextRequest(n), host, hostStatus, neighbor, neighborStatus, duration);
+            }
+        } finally {
+            host.stopRunning();         //Closes the listening socket and both files.
+            if (socket != null) {
+                socket.close();
+            }
+            serverSocket.close();
+        }
+    }
+
+    //Warms up for the same time it measures. Picks are summed, so the JIT cannot drop them.
+    private static void measure(int pieceCount, String name, Picker picker, HostPeer host, BitSet hostStatus, NeighborPeer neighbor, BitSet neighborStatus, long duration) {
+        long sum = 0;
+        for (int round = 0; round < 2; round++) {
+            long allocatedBytes = getAllocatedBytes();
+            long start = System.nanoTime();
+            long end = start + duration * 1000000;
+            long pickCount = 0;
+            while (System.nanoTime() < end) {
+                for (int i = 0; i < 16; i++) {
+                    sum += picker.pick(host, hostStatus, neighbor, neighborStatus);
+                }
+                pickCount += 16;
+            }
+            long time = System.nanoTime() - start;
+            allocatedBytes = getAllocatedBytes() - allocatedBytes;
+            if (round == 1) {
+                System.out.printf("%-10d %-10s %14.1f %14s%n", pieceCount, name, (double) time / pickCount,
+                        allocatedBytes < 0 ? "n/a" : String.format("%.1f", (double) allocatedBytes / pickCount));
+            }
+        }
+        if (sum == Long.MIN_VALUE) {
+            System.out.println(sum);
+        }
+    }
+
+    //Returns -1 if the JVM does not count allocated bytes per thread.
+    private static long getAllocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    //Peer.findNextInterestingPiece before it stopped allocating.
+    private static int pickOriginal(HostPeer host, BitSet hostStatus, NeighborPeer neighbor, BitSet neighborStatus) {
+        BitSet bitSet = (BitSet) neighborStatus.clone();
+        bitSet.andNot(hostStatus);
+        if (bitSet.isEmpty()) {
+            return -1;
+        }
+        String string = bitSet.toString();
+        String[] indexes = string.substring(1, string.length() - 1).split(", ");
+        return Integer.parseInt(indexes[new Random().nextInt(indexes.length)]);
+    }
+
+    //HostPeer.findNextInterestingPiece before it worked on words. Reservation and request clearing are left out, as nothing is in flight here.
+    private static int pickBitByBit(HostPeer host, BitSet hostStatus, NeighborPeer neighbor, BitSet neighborStatus) {
+        BitSet bitSet = new BitSet(host.getPieceCount());
+        AtomicBitSet hostPieceStatus = host.getPieceStatus();
+        AtomicBitSet neighborPieceStatus = neighbor.getPieceStatus();
+        for (int i = 0; i < hostPieceStatus.getWordCount(); i++) {
+            long word = neighborPieceStatus.getWord(i) & ~hostPieceStatus.getWord(i);
+            while (word != 0) {
+                bitSet.set((i << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+
+        PieceAvailability pieceAvailability = host.getPieceAvailability();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int rarestPieceIndex = -1;
+        int lowestAvailability = Integer.MAX_VALUE;
+        int tieCount = 0;
+        for (int i = bitSet.nextSetBit(0); i >= 0; i = bitSet.nextSetBit(i + 1)) {
+            int availability = pieceAvailability.getAvailability(i);
+            if (availability < lowestAvailability) {
+                lowestAvailability = availability;
+                rarestPieceIndex = i;
+                tieCount = 1;
+            } else if (availability == lowestAvailability && random.nextInt(++tieCount) == 0) {
+                rarestPieceIndex = i;
+            }
+        }
+        return rarestPieceIndex;
+    }
+
+}
@@ -0,0 +1,104 @@
+import p2p.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Compares the storage modes of SharedFile under concurrent access, like a host uploading to many neighbors while pieces arrive.
+//Reader threads read random pieces while one writer thread writes random pieces. Each mode runs twice, and the second round counts.
+//Command format: StorageBenchmark [Directory] [File Size in MB] [Piece Size in KB] [Seconds] [Reader Threads]
+public final class StorageBenchmark {
+
+    public static void main(String[] args) {
+        String directory = "benchmark";
+        long fileSize = 256L << 20;
+        int pieceSize = 65536;
+        int seconds = 2;
+        int readerCount = 8;
+
+        try {
+            if (args.length > 0) {
+                directory = args[0];
+            }
+            if (args.length > 1) {
+                fileSize = Long.parseLong(args[1]) << 20;
+            }
+            if (args.length > 2) {
+                pieceSize = Integer.parseInt(args[2]) << 10;
+            }
+            if (args.length > 3) {
+                seconds = Integer.parseInt(args[3]);
+            }
+            if (args.length > 4) {
+                readerCount = Integer.parseInt(args[4]);
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid parameter format. Must be number.");
+            return;
+        }
+        if (fileSize < 1 || pieceSize < 1 || seconds < 1 || readerCount < 1) {
+            System.out.println("Invalid parameter. Must be greater than 0.");
+            return;
+        }
+
+        new P2PLogger(directory + File.separator + "log_storage_benchmark.log");
+        System.out.println("File: " + (fileSize >> 20) + " MB    Piece: " + (pieceSize >> 10) + " KB    Readers: " + readerCount + "    Writers: 1    Duration: " + seconds + " s");
+        for (int round = 0; round < 2; round++) {
+            for (SharedFile.StorageMode storageMode : SharedFile.StorageMode.values()) {
+                try {
+                    long[] result = run(directory, fileSize, pieceSize, storageMode, seconds, readerCount);
+                    if (round == 1) {
+                        System.out.printf("%-14s reads/s: %-10d writes/s: %d%n", storageMode.getConfigName(), result[0], result[1]);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    System.out.println(e.getClass().getSimpleName() + " happens when benchmarking " + storageMode.getConfigName() + " storage.");
+                    return;
+                }
+            }
+        }
+        new File(directory, "benchmark.bin").delete();
+    }
+
+    //Returns reads per second and writes per second.
+    private static long[] run(String directory, long fileSize, int pieceSize, SharedFile.StorageMode storageMode, int seconds, int readerCount) throws IOException, InterruptedException {
+        SharedFile sharedFile = new SharedFile("benchmark.bin", directory, fileSize, pieceSize, storageMode);
+        int pieceCount = sharedFile.getPieceCount();
+        byte[] piece = new byte[pieceSize];
+        byte[] lastPiece = Arrays.copyOf(piece, sharedFile.getActualPieceSize(pieceCount - 1));
+        for (int i = 0; i < pieceCount; i++) {
+            sharedFile.writePiece(i, i == pieceCount - 1 ? lastPiece : piece);     //Fills the file, so reads hit written pages in every mode.
+        }
+
+        AtomicLong readCount = new AtomicLong();
+        AtomicLong writeCount = new AtomicLong();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService threadPool = Executors.newFixedThreadPool(readerCount + 1);
+        for (int i = 0; i < readerCount; i++) {
+            threadPool.execute(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < end) {
+                    sharedFile.readPiece(random.nextInt(pieceCount));
+                    readCount.getAndIncrement();
+                }
+            });
+        }
+        threadPool.execute(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (System.nanoTime() < end) {
+                int pieceIndex = random.nextInt(pieceCount);
+                sharedFile.writePiece(pieceIndex, pieceIndex == pieceCount - 1 ? lastPiece : piece);
+                writeCount.getAndIncrement();
+            }
+        });
+        threadPool.shutdown();
+        threadPool.awaitTermination(seconds + 10, TimeUnit.SECONDS);
+        sharedFile.closeFile();
+        return new long[]{readCount.get() / seconds, writeCount.get() / seconds};
+    }
+
+}
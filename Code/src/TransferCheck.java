@@ -0,0 +1,185 @@
+import p2p.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+//Checks that a download between two peers in one process allocates next to nothing per piece once it is going.
+//A seed and a leecher run on loopback with the given network engine. Allocated bytes of every thread are counted while the leecher
+//goes from WARM_PERCENTAGE to MEASURE_PERCENTAGE of the pieces, and divided by the pieces received meanwhile. The copy is compared with the seed at the end.
+//Threads of both peers count, so the figure covers sending, receiving, writing and logging. Virtual threads are not counted by the JVM.
+//Command format: TransferCheck [Network Engine] [Pieces] [Piece Size in KB] [Bytes per Piece Allowed] [Directory]
+//Prints PASS or FAIL. Exit code is 1 if the copy is wrong or incomplete, or more bytes per piece are allocated than allowed.
+public final class TransferCheck {
+
+    private static final int WARM_PERCENTAGE = 25;
+    private static final int MEASURE_PERCENTAGE = 75;
+    private static final long TIMEOUT = 120000;         //in milliseconds
+
+    public static void main(String[] args) throws InterruptedException {
+        HostPeer.NetworkEngine networkEngine = HostPeer.NetworkEngine.BLOCKING;
+        int pieceCount = 4000;
+        int pieceSize = 16384;
+        long allowedByteCount = 1024;
+        String directory = "transfer_check";
+
+        try {
+            if (args.length > 0) {
+                networkEngine = HostPeer.NetworkEngine.typeOf(args[0]);
+            }
+            if (args.length > 1) {
+                pieceCount = Integer.parseInt(args[1]);
+            }
+            if (args.length > 2) {
+                pieceSize = Integer.parseInt(args[2]) << 10;
+            }
+            if (args.length > 3) {
+                allowedByteCount = Long.parseLong(args[3]);
+            }
+            if (args.length > 4) {
+                directory = args[4];
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid parameter format. Must be number.");
+            return;
+        }
+        if (networkEngine == null) {
+            System.out.println("Invalid network engine. Must be Blocking, Selector or VirtualThread.");
+            return;
+        }
+        if (pieceCount < 4 || pieceSize < 1 || allowedByteCount < 0) {
+            System.out.println("Invalid parameter. Pieces must be at least 4, and piece size greater than 0.");
+            return;
+        }
+
+        new File(directory).mkdirs();
+        new P2PLogger(directory + File.separator + "log_transfer_check.log");
+        boolean passed;
+        try {
+            passed = run(networkEngine, pieceCount, pieceSize, allowedByteCount, directory);
+        } catch (IOException e) {
+            System.out.println("IOException happens when running the transfer check: " + e.getMessage());
+            passed = false;
+        }
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean run(HostPeer.NetworkEngine networkEngine, int pieceCount, int pieceSize, long allowedByteCount, String directory) throws IOException, InterruptedException {
+        String seedDirectory = directory + File.separator + "seed";
+        String leecherDirectory = directory + File.separator + "leecher";
+        deleteFiles(seedDirectory);
+        deleteFiles(leecherDirectory);
+        long fileSize = (long) pieceCount * pieceSize;
+        SharedFile seedFile = new SharedFile("transfer.bin", seedDirectory, fileSize, pieceSize);
+        byte[] piece = new byte[pieceSize];
+        Random random = new Random(1);
+        for (int i = 0; i < pieceCount; i++) {
+            random.nextBytes(piece);
+            seedFile.writePiece(i, piece);
+        }
+        SharedFile leecherFile = new SharedFile("transfer.bin", leecherDirectory, fileSize, pieceSize);
+
+        Peer seedPeer = new Peer(1, "localhost", getFreePort(), pieceCount, true);
+        Peer leecherPeer = new Peer(2, "localhost", getFreePort(), pieceCount, false);
+        HostPeer seed = new HostPeer(seedPeer, 1, 1, 1, 1, seedFile, new ProgressFile("transfer.bitfield", seedDirectory, (pieceCount + 7) / 8, 10),
+                0, new ArrayList<>(), -1, -1);
+        HostPeer leecher = new HostPeer(leecherPeer, 1, 1, 1, 1, leecherFile, new ProgressFile("transfer.bitfield", leecherDirectory, (pieceCount + 7) / 8, 10),
+                0, new ArrayList<>(Collections.singletonList(seedPeer)), -1, -1);
+        seed.setNetworkEngine(networkEngine, 2);
+        leecher.setNetworkEngine(networkEngine, 2);
+
+        seed.startRunning();
+        leecher.startRunning();
+        long start = System.currentTimeMillis();
+        long warmByteCount = -1;
+        int warmPieceCount = 0;
+        long measuredByteCount = -1;
+        int measuredPieceCount = 0;
+        try {
+            while (!leecher.hasCompleteFile() && System.currentTimeMillis() - start < TIMEOUT) {
+                int completePieceCount = leecher.getCompletePieceCount();
+                if (warmByteCount < 0 && completePieceCount * 100L >= pieceCount * (long) WARM_PERCENTAGE) {
+                    warmByteCount = getAllocatedBytes();
+                    warmPieceCount = completePieceCount;
+                } else if (warmByteCount >= 0 && measuredByteCount < 0 && completePieceCount * 100L >= pieceCount * (long) MEASURE_PERCENTAGE) {
+                    measuredByteCount = getAllocatedBytes() - warmByteCount;
+                    measuredPieceCount = completePieceCount - warmPieceCount;
+                }
+                Thread.sleep(1);
+            }
+        } finally {
+            leecher.stopRunning();
+            seed.stopRunning();
+        }
+        long time = System.currentTimeMillis() - start;
+
+        boolean complete = leecher.hasCompleteFile();
+        boolean same = complete && isSameContent(seedDirectory, leecherDirectory, fileSize, pieceSize);
+        String bytesPerPiece = measuredByteCount < 0 || measuredPieceCount == 0 ? "n/a" : String.format("%.1f", (double) measuredByteCount / measuredPieceCount);
+        boolean withinAllowance = measuredByteCount < 0 || measuredByteCount <= allowedByteCount * measuredPieceCount;
+        boolean passed = complete && same && withinAllowance;
+        System.out.printf("%-14s %s    pieces: %d of %d    %.1f MB/s    allocated bytes per piece: %s (allowed %d)%s%n",
+                networkEngine.getConfigName(), passed ? "PASS" : "FAIL", leecher.getCompletePieceCount(), pieceCount,
+                fileSize / 1048576.0 / Math.max(1, time) * 1000, bytesPerPiece, allowedByteCount,
+                complete && !same ? "    copy differs from seed" : "");
+        return passed;
+    }
+
+    //Sums the allocated bytes of every live platform thread, but the one running the check. Returns -1 if the JVM does not count them.
+    private static long getAllocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        long[] threadIDs = threadMXBean.getAllThreadIds();
+        long[] allocatedBytes = ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(threadIDs);
+        long sum = 0;
+        for (int i = 0; i < threadIDs.length; i++) {
+            if (threadIDs[i] != Thread.currentThread().getId() && allocatedBytes[i] > 0) {
+                sum += allocatedBytes[i];
+            }
+        }
+        return sum;
+    }
+
+    private static boolean isSameContent(String seedDirectory, String leecherDirectory, long fileSize, int pieceSize) throws IOException {
+        SharedFile seedFile = new SharedFile("transfer.bin", seedDirectory, fileSize, pieceSize);
+        SharedFile leecherFile = new SharedFile("transfer.bin", leecherDirectory, fileSize, pieceSize);
+        try {
+            for (int i = 0; i < seedFile.getPieceCount(); i++) {
+                if (!Arrays.equals(seedFile.readPiece(i), leecherFile.readPiece(i))) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            seedFile.closeFile();
+            leecherFile.closeFile();
+        }
+    }
+
+    private static int getFreePort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private static void deleteFiles(String directory) {
+        File[] files = new File(directory).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+package p2p;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//Fixed size bit set that threads read and update without locking.
+//Bits are kept in an AtomicLongArray and changed with compare-and-set. Set bits are counted as they change, so cardinality never scans.
+//A single bit operation is atomic. Reading several bits, such as a whole word or the set as a BitSet, may see other threads' changes partly.
+public final class AtomicBitSet {
+
+    private final int size;                     //in bits
+    private final AtomicLongArray words;
+    private final AtomicInteger cardinality;
+
+    public AtomicBitSet(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid size happens when creating AtomicBitSet.");
+        }
+
+        this.size = size;
+        words = new AtomicLongArray((size + 63) >>> 6);
+        cardinality = new AtomicInteger();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getWordCount() {
+        return words.length();
+    }
+
+    //Bit i of the word is bit wordIndex * 64 + i of the set, same as BitSet.toLongArray().
+    public long getWord(int wordIndex) {
+        return words.get(wordIndex);
+    }
+
+    public boolean get(int bitIndex) {
+        if (bitIndex < 0 || bitIndex >= size) {
+            return false;
+        }
+        return (words.get(bitIndex >>> 6) & (1L << bitIndex)) != 0;
+    }
+
+    //Returns true if the bit was clear before. Returns false if it was set already or is out of range.
+    @SuppressWarnings("UnusedReturnValue")
+    public boolean set(int bitIndex) {
+        if (bitIndex < 0 || bitIndex >= size) {
+            return false;
+        }
+
+        int wordIndex = bitIndex >>> 6;
+        long mask = 1L << bitIndex;
+        long word;
+        do {
+            word = words.get(wordIndex);
+            if ((word & mask) != 0) {
+                return false;
+            }
+        } while (!words.compareAndSet(wordIndex, word, word | mask));
+        cardinality.getAndIncrement();
+        return true;
+    }
+
+    //Sets every bit from fromIndex, inclusive, to toIndex, exclusive.
+    public void set(int fromIndex, int toIndex) {
+        for (int i = Math.max(0, fromIndex); i < Math.min(size, toIndex); i++) {
+            set(i);
+        }
+    }
+
+    //Returns true if the bit was set before. Returns false if it was clear already or is out of range.
+    @SuppressWarnings("UnusedReturnValue")
+    public boolean clear(int bitIndex) {
+        if (bitIndex < 0 || bitIndex >= size) {
+            return false;
+        }
+
+        int wordIndex = bitIndex >>> 6;
+        long mask = 1L << bitIndex;
+        long word;
+        do {
+            word = words.get(wordIndex);
+            if ((word & mask) == 0) {
+                return false;
+            }
+        } while (!words.compareAndSet(wordIndex, word, word & ~mask));
+        cardinality.getAndDecrement();
+        return true;
+    }
+
+    //Replaces every bit with the bit of the argument set. Bits of the argument at size or beyond are ignored.
+    public void copyFrom(BitSet bitSet) {
+        long[] longArray = bitSet.toLongArray();
+        for (int i = 0; i < words.length(); i++) {
+            long word = i < longArray.length ? longArray[i] : 0;
+            if (i == words.length() - 1 && (size & 63) != 0) {
+                word &= (1L << size) - 1;       //Clears bits at size or beyond.
+            }
+            long oldWord = words.getAndSet(i, word);
+            cardinality.getAndAdd(Long.bitCount(word) - Long.bitCount(oldWord));
+        }
+    }
+
+    public int cardinality() {
+        return cardinality.get();
+    }
+
+    public boolean isEmpty() {
+        return cardinality.get() == 0;
+    }
+
+    //Returns -1 if no bit is set from fromIndex on.
+    public int nextSetBit(int fromIndex) {
+        if (fromIndex < 0) {
+            fromIndex = 0;
+        }
+        if (fromIndex >= size) {
+            return -1;
+        }
+
+        int wordIndex = fromIndex >>> 6;
+        long word = words.get(wordIndex) & (-1L << fromIndex);
+        while (word == 0) {
+            if (++wordIndex == words.length()) {
+                return -1;
+            }
+            word = words.get(wordIndex);
+        }
+        return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    //Returns size if every bit from fromIndex on is set.
+    public int nextClearBit(int fromIndex) {
+        if (fromIndex < 0) {
+            fromIndex = 0;
+        }
+        if (fromIndex >= size) {
+            return size;
+        }
+
+        int wordIndex = fromIndex >>> 6;
+        long word = ~words.get(wordIndex) & (-1L << fromIndex);
+        while (word == 0) {
+            if (++wordIndex == words.length()) {
+                return size;
+            }
+            word = ~words.get(wordIndex);
+        }
+        return Math.min(size, (wordIndex << 6) + Long.numberOfTrailingZeros(word));
+    }
+
+    //Returns a copy as a BitSet.
+    public BitSet toBitSet() {
+        long[] longArray = new long[words.length()];
+        for (int i = 0; i < longArray.length; i++) {
+            longArray[i] = words.get(i);
+        }
+        return BitSet.valueOf(longArray);
+    }
+
+}
@@ -0,0 +1,98 @@
+package p2p;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Pool of same sized direct buffers for messages on the wire.
+//Every thread keeps a few free buffers of its own, so leasing and releasing rarely touch shared state.
+//Buffers beyond that go to a bounded shared queue, which also takes buffers released by a thread other than the leasing one.
+//Thread caching can be turned off, so that short lived threads, such as one virtual thread per neighbor, do not each strand a few buffers.
+public final class BufferPool {
+
+    private static final int THREAD_BUFFER_COUNT = 4;
+    private static final int SHARED_BUFFER_COUNT = 64;
+
+    private final int bufferSize;
+    private final ThreadLocal<ArrayDeque<ByteBuffer>> threadBufferQueue;
+    private final ArrayBlockingQueue<ByteBuffer> sharedBufferQueue;        //Array backed. Offering a buffer allocates nothing.
+    private final AtomicLong allocatedBufferCount;
+    private volatile boolean threadCachingEnabled;
+
+    public BufferPool(int bufferSize) {
+        this(bufferSize, SHARED_BUFFER_COUNT);
+    }
+
+    //sharedBufferCount is the most free buffers kept in the shared queue. Pools of small buffers can keep many.
+    public BufferPool(int bufferSize, int sharedBufferCount) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Invalid bufferSize happens when creating BufferPool.");
+        }
+        if (sharedBufferCount < 1) {
+            throw new IllegalArgumentException("Invalid sharedBufferCount happens when creating BufferPool.");
+        }
+
+        this.bufferSize = bufferSize;
+        threadBufferQueue = ThreadLocal.withInitial(() -> new ArrayDeque<>(THREAD_BUFFER_COUNT));
+        sharedBufferQueue = new ArrayBlockingQueue<>(sharedBufferCount);
+        allocatedBufferCount = new AtomicLong();
+        threadCachingEnabled = true;
+    }
+
+    //Set before the pool is used. When off, every buffer goes through the shared queue.
+    public void setThreadCachingEnabled(boolean b) {
+        threadCachingEnabled = b;
+    }
+
+    public boolean isThreadCachingEnabled() {
+        return threadCachingEnabled;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    //Number of buffers created since the pool was created. Stops growing once the pool is warm.
+    public long getAllocatedBufferCount() {
+        return allocatedBufferCount.get();
+    }
+
+    //Returns an empty buffer with its limit set to length. Pass it to release when done.
+    //Buffers longer than the pool buffer size are created for one use only.
+    public ByteBuffer lease(int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Invalid length happens when leasing buffer.");
+        }
+        if (length > bufferSize) {
+            allocatedBufferCount.getAndIncrement();
+            return ByteBuffer.allocateDirect(length);
+        }
+
+        ByteBuffer buffer = threadCachingEnabled ? threadBufferQueue.get().poll() : null;
+        if (buffer == null) {
+            buffer = sharedBufferQueue.poll();
+        }
+        if (buffer == null) {
+            allocatedBufferCount.getAndIncrement();
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear().limit(length);
+        return buffer;
+    }
+
+    //Buffers that did not come from lease are ignored. A released buffer must not be used again.
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) {
+            return;
+        }
+
+        ArrayDeque<ByteBuffer> bufferQueue = threadCachingEnabled ? threadBufferQueue.get() : null;
+        if (bufferQueue != null && bufferQueue.size() < THREAD_BUFFER_COUNT) {
+            bufferQueue.push(buffer);
+        } else {
+            sharedBufferQueue.offer(buffer);        //Dropped if the shared queue is full.
+        }
+    }
+
+}
@@ -9,9 +9,12 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
@@ -21,6 +24,10 @@ import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
 
 public final class HostPeer extends Peer {
 
@@ -30,18 +37,60 @@ public final class HostPeer extends Peer {
     private volatile int uploadingSpeedLimit;
     private final SharedFile sharedFile;
     private final ProgressFile progressFile;
+    private final BufferPool bufferPool;
+    private final PieceAssembler pieceAssembler;        //null if whole pieces are requested.
+    private final PieceAvailability pieceAvailability;
+    private final AtomicBitSet receivingPieceStatus;    //Whole pieces being received from some neighbor, until marked complete or given up.
+    private final AtomicLong cancelledRequestCount;
+    private volatile StreamingWindow streamingWindow;   //null if streaming is not set up.
+    private volatile boolean compactBitfieldEnabled;    //Offered in the handshake. Used with neighbors that offer it too.
+    private final ReservationTable reservationTable;
+    private final AtomicLong wastedByteCount;           //Piece Message payload received but thrown away.
+    private final Object interestLock;                  //Orders piece status changes of host and neighbors, so interest counts stay exact.
     private final PeerManager peerManager;
     private final SpeedLimiter speedLimiter;
     private final ConnectionListener connectionListener;
     private final ConnectionStarter connectionStarter;
     private final ArrayList<Peer> knownPeerList;
     private final CopyOnWriteArrayList<NeighborPeer> activeNeighborList;
+    private volatile NeighborPeer[] activeNeighbors;        //Snapshot of activeNeighborList, replaced whenever it changes. Never modified.
     private final CopyOnWriteArrayList<NeighborPeer> inactiveNeighborList;
+    private final ReentrantLock neighborListLock;       //Orders registration, so handshakes finishing at once cannot enlist one neighbor twice.
     private final CopyOnWriteArrayList<Future<MessageHandlerResult>> neighborFutureList;
-    private final ExecutorService neighborThreadPool;
+    private ExecutorService neighborThreadPool;
+    private NetworkEngine networkEngine;                //Set before startRunning.
+    private SelectorEngine selectorEngine;              //null unless the selector engine is used.
+
+    public enum NetworkEngine {
+
+        BLOCKING("Blocking"),               //One message listener thread per neighbor, from neighborThreadPool.
+        SELECTOR("Selector"),               //A few I/O threads serve every neighbor with non-blocking channels. Received messages are handled on neighborThreadPool.
+        VIRTUAL_THREAD("VirtualThread");    //One virtual thread per neighbor, per incoming handshake and per outgoing connect. Needs Java 21 or later.
+
+        private final String configName;
+
+        NetworkEngine(String configName) {
+            this.configName = configName;
+        }
+
+        public String getConfigName() {
+            return configName;
+        }
+
+        //Returns null if no network engine matches the config name.
+        public static NetworkEngine typeOf(String configName) {
+            for (NetworkEngine networkEngine : values()) {
+                if (networkEngine.configName.equalsIgnoreCase(configName)) {
+                    return networkEngine;
+                }
+            }
+            return null;
+        }
+
+    }
 
     public HostPeer(Peer peer, int preferredNeighborCount, int preferredUnchokingInterval, int optimisticNeighborCount, int optimisticUnchokingInterval,
-                    SharedFile sharedFile, ProgressFile progressFile, ArrayList<Peer> knownPeerList, int downloadingSpeedLimit, int uploadingSpeedLimit) throws IOException {
+                    SharedFile sharedFile, ProgressFile progressFile, int blockSize, ArrayList<Peer> knownPeerList, int downloadingSpeedLimit, int uploadingSpeedLimit) throws IOException {
         super(peer);
 
         if (sharedFile == null) {
@@ -59,13 +108,27 @@ public final class HostPeer extends Peer {
         this.sharedFile = sharedFile;
         this.progressFile = progressFile;
         this.knownPeerList = knownPeerList;
+        bufferPool = new BufferPool(Math.max(4 + PIECE.length() + 8 + sharedFile.getPieceSize(), 4 + BITFIELD.length() + getBitfieldLength()));     //Largest message fits.
+        pieceAvailability = new PieceAvailability(getPieceCount());
+        pieceAvailability.addPeer(this);                //Host counts too, for file health.
+        receivingPieceStatus = new AtomicBitSet(getPieceCount());
+        cancelledRequestCount = new AtomicLong();
+        interestLock = new Object();
+        reservationTable = new ReservationTable();
+        compactBitfieldEnabled = true;
+        wastedByteCount = new AtomicLong();
+        pieceAssembler = blockSize > 0 ? new PieceAssembler(this, sharedFile, blockSize) : null;
+        sharedFile.setLostPieceHandler(this::markPieceLost);
         peerManager = new PeerManager(this, preferredNeighborCount, preferredUnchokingInterval, optimisticNeighborCount, optimisticUnchokingInterval);
         speedLimiter = new SpeedLimiter(this, downloadingSpeedLimit, uploadingSpeedLimit);
         connectionListener = new ConnectionListener(this);
         connectionStarter = new ConnectionStarter(this, knownPeerList);
         activeNeighborList = new CopyOnWriteArrayList<>();
+        activeNeighbors = new NeighborPeer[0];
         inactiveNeighborList = new CopyOnWriteArrayList<>();
         neighborFutureList = new CopyOnWriteArrayList<>();
+        neighborListLock = new ReentrantLock();
+        networkEngine = NetworkEngine.BLOCKING;
         neighborThreadPool = Executors.newFixedThreadPool(10);
     }
 
@@ -77,6 +140,9 @@ public final class HostPeer extends Peer {
         new Thread(speedLimiter).start();
         new Thread(connectionListener).start();
         new Thread(connectionStarter).start();
+        if (selectorEngine != null) {
+            selectorEngine.startRunning();
+        }
     }
 
     public void stopRunning() {
@@ -92,6 +158,9 @@ public final class HostPeer extends Peer {
         //Close sockets to force threads to get out of blocking on input stream.
         connectionListener.closeSocket();
         activeNeighborList.forEach(p -> p.getMessageHandler().closeSocket());
+        if (selectorEngine != null) {
+            selectorEngine.stopRunning();
+        }
 
         //Shutdown thread pool.
         neighborThreadPool.shutdown();
@@ -108,7 +177,8 @@ public final class HostPeer extends Peer {
 
         }
 
-        //Close files.
+        //Close files. Progress is saved once more so the last pieces are not downloaded again after restart.
+        peerManager.saveHostProgress();
         sharedFile.closeFile();
         progressFile.closeFile();
     }
@@ -137,6 +207,284 @@ public final class HostPeer extends Peer {
         return sharedFile;
     }
 
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public PieceAssembler getPieceAssembler() {
+        return pieceAssembler;
+    }
+
+    public PieceAvailability getPieceAvailability() {
+        return pieceAvailability;
+    }
+
+    Object getInterestLock() {
+        return interestLock;
+    }
+
+    //Claims a whole piece for one neighbor to receive into the shared file. Endgame copies from other neighbors are skipped while it is claimed,
+    //so two threads never write the same file range, and a bad copy cannot overwrite a verified one.
+    //Returns false if another neighbor holds the claim.
+    boolean claimReceivingPiece(int pieceIndex) {
+        return receivingPieceStatus.set(pieceIndex);
+    }
+
+    //Call this once the piece is marked complete, or when receiving it fails.
+    void releaseReceivingPiece(int pieceIndex) {
+        receivingPieceStatus.clear(pieceIndex);
+    }
+
+    //Host interest in an active neighbor comes from its running count, so no bits are compared.
+    @Override
+    public boolean isInterested(Peer peer) {
+        if (peer instanceof NeighborPeer && ((NeighborPeer) peer).isInterestTracked()) {
+            return ((NeighborPeer) peer).getInterestingPieceCount() > 0;
+        }
+        return super.isInterested(peer);
+    }
+
+    //Each active neighbor that has the piece loses one interesting piece. Cost grows with neighbors, not with pieces.
+    @Override
+    public int markPieceComplete(int pieceIndex) {
+        if (pieceIndex < 0 || pieceIndex >= getPieceCount()) {
+            return -1;
+        }
+
+        boolean newPiece;
+        synchronized (interestLock) {
+            newPiece = getPieceStatus().set(pieceIndex);
+            if (newPiece) {
+                for (NeighborPeer neighborPeer : activeNeighbors) {
+                    neighborPeer.removeInterestingPiece(pieceIndex);
+                }
+            }
+        }
+        if (newPiece) {
+            pieceAvailability.addPiece(pieceIndex);
+        }
+        return 0;
+    }
+
+    //Undoes markPieceComplete. Each active neighbor that has the piece gains one interesting piece.
+    public int markPieceIncomplete(int pieceIndex) {
+        if (pieceIndex < 0 || pieceIndex >= getPieceCount()) {
+            return -1;
+        }
+
+        boolean oldPiece;
+        synchronized (interestLock) {
+            oldPiece = getPieceStatus().clear(pieceIndex);
+            if (oldPiece) {
+                for (NeighborPeer neighborPeer : activeNeighborList) {
+                    neighborPeer.addInterestingPiece(pieceIndex);
+                }
+            }
+        }
+        if (oldPiece) {
+            pieceAvailability.removePiece(pieceIndex);
+        }
+        return 0;
+    }
+
+    //A piece buffered for writing could not be written to disk. It is downloaded again, so neighbors having it are interesting again.
+    private void markPieceLost(int pieceIndex) {
+        markPieceIncomplete(pieceIndex);
+        P2PLogger.log("Peer " + getPeerID() + " could not write the piece " + pieceIndex + " to disk. It will be downloaded again.");
+        for (NeighborPeer neighborPeer : activeNeighborList) {
+            if (!neighborPeer.isPreviousInterestOfHost() && isInterested(neighborPeer)) {
+                neighborPeer.getMessageHandler().sendMessage(INTERESTED);
+            }
+        }
+    }
+
+    @Override
+    public int setPieceStatus(BitSet bitSet) {
+        BitSet oldStatus = getPieceStatus().toBitSet();
+        int result;
+        synchronized (interestLock) {
+            result = super.setPieceStatus(bitSet);
+            if (result == 0) {
+                for (NeighborPeer neighborPeer : activeNeighborList) {
+                    neighborPeer.startInterestTracking();       //Counts again.
+                }
+            }
+        }
+        if (result == 0) {
+            pieceAvailability.replacePieceStatus(oldStatus, bitSet);
+        }
+        return result;
+    }
+
+    public StreamingWindow getStreamingWindow() {
+        return streamingWindow;
+    }
+
+    public void setStreamingWindow(StreamingWindow streamingWindow) {
+        this.streamingWindow = streamingWindow;
+    }
+
+    public NetworkEngine getNetworkEngine() {
+        return networkEngine;
+    }
+
+    //Must be set before startRunning. ioThreadCount is only used by the selector engine.
+    //Virtual threads are refused before Java 21, rather than run as one platform thread per neighbor.
+    //With virtual threads, buffers are shared instead of cached per thread, since every neighbor, handshake and connect gets a thread of its own.
+    public void setNetworkEngine(NetworkEngine networkEngine, int ioThreadCount) throws IOException {
+        if (networkEngine == null) {
+            return;
+        }
+        ExecutorService threadPool = networkEngine == NetworkEngine.VIRTUAL_THREAD ? newVirtualThreadExecutor() : Executors.newFixedThreadPool(10);
+        if (threadPool == null) {
+            throw new IllegalArgumentException("Invalid networkEngine happens when setting network engine. VirtualThread needs Java 21 or later.");
+        }
+
+        this.networkEngine = networkEngine;
+        neighborThreadPool.shutdown();      //No task is submitted before startRunning.
+        neighborThreadPool = threadPool;
+        selectorEngine = networkEngine == NetworkEngine.SELECTOR ? new SelectorEngine(this, ioThreadCount, neighborThreadPool) : null;
+        bufferPool.setThreadCachingEnabled(networkEngine != NetworkEngine.VIRTUAL_THREAD);
+        sharedFile.setThreadCachingEnabled(networkEngine != NetworkEngine.VIRTUAL_THREAD);
+    }
+
+    //Returns true if this Java runtime has virtual threads, Java 21 or later.
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    //Looked up by reflection, so the code still builds and runs on Java 8.
+    //Returns null if this Java runtime has no virtual threads.
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            P2PLogger.log("ReflectiveOperationException happens when creating virtual thread executor. Virtual threads need Java 21 or later.");
+            return null;
+        }
+    }
+
+    public SelectorEngine getSelectorEngine() {
+        return selectorEngine;
+    }
+
+    public boolean isCompactBitfieldEnabled() {
+        return compactBitfieldEnabled;
+    }
+
+    //Must be set before startRunning, so every handshake offers the same.
+    public void setCompactBitfieldEnabled(boolean b) {
+        compactBitfieldEnabled = b;
+    }
+
+    //Returns a piece that the neighbor has and the host lacks. While streaming, pieces of the streaming window come first, in playback order.
+    //Otherwise, or if the neighbor has none of them, returns the rarest piece among active neighbors that no other neighbor has reserved.
+    //Returns -1 if the host has no interest in the neighbor, or every piece it could ask for is reserved by other neighbors.
+    @Override
+    public int findNextInterestingPiece(Peer peer) {
+        long[] candidates = findInterestingPieces(peer);
+        try {
+            NeighborPeer neighborPeer = peer instanceof NeighborPeer ? (NeighborPeer) peer : null;
+            StreamingWindow window = streamingWindow;
+            if (window != null && window.isEnabled()) {
+                int pieceIndex = findWindowPiece(window, candidates, neighborPeer);
+                if (pieceIndex >= 0) {
+                    return pieceIndex;
+                }
+            }
+            if (neighborPeer != null) {
+                reservationTable.clearReservedByOthers(candidates, neighborPeer);
+                if (pieceAssembler == null) {
+                    neighborPeer.getMessageHandler().clearRequestedPieces(candidates);     //A deep request window would otherwise pick pieces it has in flight already.
+                }
+            }
+            return pieceAvailability.findRarestPiece(candidates);
+        } finally {
+            releaseInterestingPieces(candidates);
+        }
+    }
+
+    //Returns the earliest window piece among the candidates that is not in flight to any neighbor.
+    //A piece in flight elsewhere is taken too if its deadline is too close to wait for that request, unless it is in flight to this neighbor already.
+    //Returns -1 if there is no such piece.
+    private int findWindowPiece(StreamingWindow window, long[] candidates, NeighborPeer neighborPeer) {
+        int windowEnd = window.getWindowEnd();
+        for (int i = nextSetBit(candidates, window.getWindowStart()); i >= 0 && i < windowEnd; i = nextSetBit(candidates, i + 1)) {
+            if (!reservationTable.isReserved(i)) {
+                return i;
+            }
+            if (neighborPeer != null && !neighborPeer.getMessageHandler().isPieceRequested(i)) {
+                NeighborPeer.MessageHandler messageHandler = neighborPeer.getMessageHandler();
+                if (window.isUrgent(i, messageHandler.getEstimatedRTT() + 4 * messageHandler.getDeviationRTT())) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    //Returns what the host should request next from the neighbor. A block id if pieces are requested in blocks, otherwise a piece index.
+    //Returns -1 if the neighbor has nothing the host needs.
+    public int findNextRequest(NeighborPeer neighborPeer) {
+        return pieceAssembler == null ? findNextInterestingPiece(neighborPeer) : pieceAssembler.findNextBlock(neighborPeer);
+    }
+
+    //Endgame starts once everything the host still misses could already be in flight.
+    //Missing pieces are then requested from every unchoked neighbor that has them, and the extra copies are cancelled as the first one arrives.
+    public boolean isInEndgame() {
+        int missingPieceCount = getPieceCount() - getCompletePieceCount();
+        if (missingPieceCount == 0) {
+            return false;
+        }
+
+        long missingRequestCount = pieceAssembler == null ? missingPieceCount : (long) missingPieceCount * pieceAssembler.getBlocksPerPiece();
+        long flyingRequestCount = 0;
+        for (NeighborPeer neighborPeer : activeNeighbors) {
+            flyingRequestCount += neighborPeer.getMessageHandler().getRequestedPieceCount();
+        }
+        return missingRequestCount <= flyingRequestCount;
+    }
+
+    //Passes every request the host still needs and the neighbor can serve, whether or not it is in flight elsewhere.
+    public void forEachEndgameRequest(NeighborPeer neighborPeer, IntConsumer action) {
+        if (pieceAssembler != null) {
+            pieceAssembler.forEachMissingBlock(neighborPeer, action);
+            return;
+        }
+
+        for (int i = getPieceStatus().nextClearBit(0); i < getPieceCount(); i = getPieceStatus().nextClearBit(i + 1)) {
+            if (neighborPeer.hasPiece(i)) {
+                action.accept(i);
+            }
+        }
+    }
+
+    public ReservationTable getReservationTable() {
+        return reservationTable;
+    }
+
+    public void addWastedByteCount(long count) {
+        wastedByteCount.getAndAdd(count);
+    }
+
+    public long getWastedByteCount() {
+        return wastedByteCount.get();
+    }
+
+    public void addCancelledRequestCount() {
+        cancelledRequestCount.getAndIncrement();
+    }
+
+    public long getCancelledRequestCount() {
+        return cancelledRequestCount.get();
+    }
+
     public SpeedLimiter getSpeedLimiter() {
         return speedLimiter;
     }
@@ -149,6 +497,11 @@ public final class HostPeer extends Peer {
         return Collections.unmodifiableList(activeNeighborList);
     }
 
+    //Same neighbors as getActiveNeighborList, as an array that must not be modified. Iterating it allocates nothing, so loops run for every piece use it.
+    public NeighborPeer[] getActiveNeighbors() {
+        return activeNeighbors;
+    }
+
     public List<NeighborPeer> getInactiveNeighborList() {
         return Collections.unmodifiableList(inactiveNeighborList);
     }
@@ -172,48 +525,47 @@ public final class HostPeer extends Peer {
         speedLimiter.setUploadingSpeedLimit(limit);
     }
 
+    //100% for every full copy among host and active neighbors, plus the share of pieces that have one more copy than that.
+    //Read from the availability levels, so no piece status is walked, and exact for any number of neighbors.
     public int getFileHealthPercentage() {
-        ArrayList<BitSet> bitSetList = new ArrayList<>();
+        return pieceAvailability.getHealthPercentage();
+    }
 
-        synchronized (getPieceStatus()) {
-            bitSetList.add((BitSet) getPieceStatus().clone());
+    private void registerNeighbor(int peerID, Socket socket, boolean compactBitfieldSupported) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.setTcpNoDelay(true);         //Request Messages are small. Held back by Nagle's algorithm, a short request window would wait on delayed acknowledgements.
+        } catch (IOException e) {
+            P2PLogger.log("IOException happens when disabling Nagle's algorithm in registerNeighbor. Exception is not rethrown.");
         }
-        activeNeighborList.forEach(p -> {
-            synchronized (p.getPieceStatus()) {
-                bitSetList.add((BitSet) p.getPieceStatus().clone());
-            }
-        });
 
-        int countArray[] = new int[getPieceCount()];
-        for (BitSet bitSet : bitSetList) {
-            int i = bitSet.length() - 1;
-            while (i >= 0) {
-                if (bitSet.get(i)) {
-                    countArray[i]++;
+        NeighborPeer neighborPeer = null;
+        neighborListLock.lock();
+        try {
+            if (peerID >= 0 && activeNeighborList.stream().noneMatch(p -> p.getPeerID() == peerID)) {
+                neighborPeer = inactiveNeighborList.stream().filter(p -> p.getPeerID() == peerID).findFirst().orElse(null);
+                inactiveNeighborList.remove(neighborPeer);
+                if (neighborPeer == null) {
+                    neighborPeer = new NeighborPeer(peerID, this, socket);
+                } else {
+                    neighborPeer.reactivatePeer(socket);
                 }
-                i--;
-            }
-        }
-        int lowest = 1000000;
-        for (int count : countArray) {
-            lowest = Math.min(lowest, count);
-        }
-        int health = lowest * 100;
-        int fractionCount = 0;
-        for (int count : countArray) {
-            if (count > lowest) {
-                fractionCount++;
+                neighborPeer.setCompactBitfieldSupported(compactBitfieldSupported);
+                activeNeighborList.add(neighborPeer);
+                activeNeighbors = activeNeighborList.toArray(new NeighborPeer[0]);
+                pieceAvailability.addPeer(neighborPeer);        //A reactivated neighbor counts with its old status until its bitfield arrives.
+                synchronized (interestLock) {
+                    neighborPeer.startInterestTracking();
+                }
+                Future<MessageHandlerResult> neighborFuture = selectorEngine == null ? neighborThreadPool.submit(neighborPeer.getMessageHandler()) : selectorEngine.register(neighborPeer, socket);
+                neighborFutureList.add(neighborFuture);
             }
+        } finally {
+            neighborListLock.unlock();
         }
-        health += fractionCount * 100 / getPieceCount();
-        return health;
-    }
-
-    private void registerNeighbor(int peerID, Socket socket) {
-        if (socket == null) {
-            return;
-        }
-        if (peerID < 0 || activeNeighborList.stream().anyMatch(p -> p.getPeerID() == peerID)) {
+        if (neighborPeer == null) {
             try {
                 socket.close();
             } catch (IOException e) {
@@ -222,17 +574,7 @@ public final class HostPeer extends Peer {
             return;
         }
 
-        NeighborPeer neighborPeer = inactiveNeighborList.stream().filter(p -> p.getPeerID() == peerID).findFirst().orElse(null);
-        inactiveNeighborList.remove(neighborPeer);
-        if (neighborPeer == null) {
-            neighborPeer = new NeighborPeer(peerID, this, socket);
-        } else {
-            neighborPeer.reactivatePeer(socket);
-        }
-        activeNeighborList.add(neighborPeer);
-        Future<MessageHandlerResult> neighborFuture = neighborThreadPool.submit(neighborPeer.getMessageHandler());
-        neighborFutureList.add(neighborFuture);
-        neighborPeer.getMessageHandler().sendMessage(BITFIELD);         //After enlisted, send bitfield to neighbor.
+        neighborPeer.getMessageHandler().sendMessage(BITFIELD);         //After enlisted, send bitfield to neighbor. A compact form is sent if the neighbor supports it.
     }
 
     public void deregisterNeighbor(NeighborPeer neighborPeer) {
@@ -240,8 +582,21 @@ public final class HostPeer extends Peer {
             return;
         }
 
-        activeNeighborList.remove(neighborPeer);
-        inactiveNeighborList.add(neighborPeer);
+        neighborListLock.lock();
+        try {
+            if (!activeNeighborList.remove(neighborPeer)) {
+                return;
+            }
+            activeNeighbors = activeNeighborList.toArray(new NeighborPeer[0]);
+            pieceAvailability.removePeer(neighborPeer);
+            reservationTable.releaseAll(neighborPeer);
+            synchronized (interestLock) {
+                neighborPeer.stopInterestTracking();
+            }
+            inactiveNeighborList.add(neighborPeer);
+        } finally {
+            neighborListLock.unlock();
+        }
         if (knownPeerList.stream().anyMatch(p -> p.getPeerID() == neighborPeer.getPeerID())) {      //If host is responsible for making connection to the neighbor, then add it to starter.
             connectionStarter.addConnectingPeer(neighborPeer);
         }
@@ -301,12 +656,15 @@ public final class HostPeer extends Peer {
                         selectOptimisticNeighbors();
                     }
                 }
-                if (threadSleepCount % 1000 == 0) {
+                if (threadSleepCount % 1000 == 0 && progressFile.isSyncDue()) {
                     saveHostProgress();
                 }
                 if (threadSleepCount % 1000 == 0) {
                     checkNeighborResults();
                 }
+                if (threadSleepCount % 1000 == 0 && !hostPeer.isPaused()) {
+                    checkReservations();
+                }
 
                 try {
                     Thread.sleep(threadSleep);
@@ -415,8 +773,32 @@ public final class HostPeer extends Peer {
             }
         }
 
+        //Piece status is taken before flushing, so every piece it marks complete is written when the progress journal is appended.
+        //Journal records are appended and synced only after the shared file is synced. Unsynced records could reach the disk before the
+        //piece data does, and a power loss would then leave progress claiming pieces that are not there.
+        //Pieces lost by a failed write are marked missing before the flush returns, so they are taken out of the snapshot too.
         private void saveHostProgress() {
-            progressFile.writeFile(getPieceStatusAsBitfield());
+            BitSet pieceStatus = getPieceStatus().toBitSet();
+            sharedFile.flushWriteBehind();
+            pieceStatus.and(getPieceStatus().toBitSet());
+            if (sharedFile.syncFile() != 0) {
+                return;         //Tried again at the next save.
+            }
+            progressFile.saveProgress(pieceStatus, true);
+        }
+
+        //Ends timed out reservations. A neighbor left without requests, because everything it has was reserved elsewhere, is asked again.
+        //Requests timed out at a neighbor shrink its request window, and the room they leave is filled again.
+        private void checkReservations() {
+            reservationTable.removeExpired();
+            for (NeighborPeer neighborPeer : activeNeighborList) {
+                if (neighborPeer.isUnchokedHost() && isInterested(neighborPeer)) {
+                    NeighborPeer.MessageHandler messageHandler = neighborPeer.getMessageHandler();
+                    if (messageHandler.checkRequestTimeouts() > 0 || messageHandler.getRequestedPieceCount() == 0) {
+                        messageHandler.fillRequestWindow();
+                    }
+                }
+            }
         }
 
         private void checkNeighborResults() {
@@ -547,6 +929,8 @@ public final class HostPeer extends Peer {
 
             if (downloadingSpeedLimit == 0) {
                 return true;
+            } else if (sharedFile.isWriteBehindFull()) {       //Disk is behind the network. Hold requests until buffered pieces are written.
+                return true;
             } else if (downloadingSpeedLimit < 0) {
                 return false;
             } else {
@@ -585,6 +969,14 @@ public final class HostPeer extends Peer {
             delayedRequestMessageMap.put(neighborPeer, pieceIndex);
         }
 
+        //Drops a delayed Piece Message the neighbor no longer wants.
+        public void cancelPieceMessage(NeighborPeer neighborPeer, int pieceIndex) {
+            ConcurrentLinkedQueue<Integer> pieceIndexQueue = delayedPieceMessageMap.get(neighborPeer);
+            if (pieceIndexQueue != null) {
+                pieceIndexQueue.remove(pieceIndex);
+            }
+        }
+
         public void delayPieceMessage(NeighborPeer neighborPeer, int pieceIndex) {
             if (neighborPeer == null) {
                 throw new IllegalArgumentException("Invalid neighborPeer happens when delaying Piece Message.");
@@ -612,7 +1004,8 @@ public final class HostPeer extends Peer {
 
             this.hostPeer = hostPeer;
             try {
-                serverSocket = new ServerSocket(hostPeer.getPort());
+                serverSocket = ServerSocketChannel.open().socket();     //Channel backed, so accepted sockets support zero-copy piece transfer.
+                serverSocket.bind(new InetSocketAddress(hostPeer.getPort()));
             } catch (IOException e) {
                 P2PLogger.log("IOException happens when creating ConnectionHandler.");
                 throw e;
@@ -629,10 +1022,17 @@ public final class HostPeer extends Peer {
                 } catch (IOException e) {
                     break;
                 }
-                int peerID = verifyHandshake(socket);
-                sendHandshake(socket, hostPeer.getPeerID());
-                P2PLogger.log("Peer " + hostPeer.getPeerID() + " is connected from Peer " + peerID + ".");
-                hostPeer.registerNeighbor(peerID, socket);
+                if (hostPeer.getNetworkEngine() != NetworkEngine.VIRTUAL_THREAD) {
+                    acceptConnection(socket);
+                    continue;
+                }
+                Socket acceptedSocket = socket;
+                try {
+                    hostPeer.neighborThreadPool.execute(() -> acceptConnection(acceptedSocket));        //A slow handshake does not hold the next one up.
+                } catch (RejectedExecutionException e) {
+                    closeAcceptedSocket(acceptedSocket);
+                    break;          //Host is stopping.
+                }
             }
 
             closeSocket();
@@ -641,6 +1041,22 @@ public final class HostPeer extends Peer {
             }
         }
 
+        private void acceptConnection(Socket socket) {
+            byte[] reservedBytes = new byte[RESERVED_LENGTH];
+            int peerID = verifyHandshake(socket, reservedBytes);
+            sendHandshake(socket, hostPeer.getPeerID());
+            P2PLogger.log("Peer " + hostPeer.getPeerID() + " is connected from Peer " + peerID + ".");
+            hostPeer.registerNeighbor(peerID, socket, isCompactBitfieldSupported(reservedBytes));
+        }
+
+        private void closeAcceptedSocket(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                P2PLogger.log("IOException happens when closing accepted socket. Exception is not rethrown.");
+            }
+        }
+
         public void closeSocket() {
             try {
                 serverSocket.close();
@@ -659,6 +1075,7 @@ public final class HostPeer extends Peer {
 
         private final HostPeer hostPeer;
         private final ConcurrentLinkedQueue<Peer> connectingPeerQueue;
+        private final Set<Peer> startingPeerSet;        //Peers being connected to on their own threads. Only used with the virtual thread engine.
 
         public ConnectionStarter(HostPeer hostPeer, ArrayList<Peer> knownPeerList) {
             if (hostPeer == null) {
@@ -670,30 +1087,25 @@ public final class HostPeer extends Peer {
 
             this.hostPeer = hostPeer;
             connectingPeerQueue = new ConcurrentLinkedQueue<>(knownPeerList);
+            startingPeerSet = ConcurrentHashMap.newKeySet();
         }
 
         @Override
         public void run() {
             int threadSleep = 200;
             long threadSleepCount = 0;
-            Socket socket;
 
             while (hostPeer.isRunning()) {
                 if (threadSleepCount % 3000 == 0) {
-                    Iterator<Peer> iterator = connectingPeerQueue.iterator();
-                    while (iterator.hasNext() && hostPeer.isRunning()) {        //Prevent exit of program from waiting until all peers are tried. It could take N seconds.
-                        Peer peer = iterator.next();
-                        try {
-                            socket = new Socket();
-                            socket.connect(new InetSocketAddress(peer.getHostname(), peer.getPort()), 2000);
-                        } catch (IOException e) {
-                            continue;    //Unable to connect. Pass this peer.
+                    if (hostPeer.getNetworkEngine() == NetworkEngine.VIRTUAL_THREAD) {
+                        startConnectionsInParallel();
+                    } else {
+                        Iterator<Peer> iterator = connectingPeerQueue.iterator();
+                        while (iterator.hasNext() && hostPeer.isRunning()) {        //Prevent exit of program from waiting until all peers are tried. It could take N seconds.
+                            if (startConnection(iterator.next())) {
+                                iterator.remove();
+                            }
                         }
-                        sendHandshake(socket, hostPeer.getPeerID());
-                        int peerID = verifyHandshake(socket);
-                        P2PLogger.log("Peer " + hostPeer.getPeerID() + " makes connection to Peer " + peerID + ".");
-                        hostPeer.registerNeighbor(peerID, socket);
-                        iterator.remove();
                     }
                 }
 
@@ -710,6 +1122,63 @@ public final class HostPeer extends Peer {
             }
         }
 
+        //Every peer is tried on its own thread, so unreachable peers time out together rather than one after another.
+        //A peer still being tried from the last round is skipped.
+        private void startConnectionsInParallel() {
+            for (Peer peer : connectingPeerQueue) {
+                if (!hostPeer.isRunning()) {
+                    return;
+                }
+                if (!startingPeerSet.add(peer)) {
+                    continue;
+                }
+                try {
+                    hostPeer.neighborThreadPool.execute(() -> {
+                        try {
+                            if (startConnection(peer)) {
+                                connectingPeerQueue.remove(peer);
+                            }
+                        } finally {
+                            startingPeerSet.remove(peer);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    startingPeerSet.remove(peer);
+                    return;         //Host is stopping.
+                }
+            }
+        }
+
+        //Returns false if the peer cannot be reached. Once connected, the peer is not tried again even if the handshake fails.
+        private boolean startConnection(Peer peer) {
+            Socket socket = null;
+            try {
+                socket = SocketChannel.open().socket();         //Channel backed, so the socket supports zero-copy piece transfer.
+                socket.connect(new InetSocketAddress(peer.getHostname(), peer.getPort()), 2000);
+            } catch (IOException e) {
+                closeUnconnectedSocket(socket);
+                return false;    //Unable to connect. Pass this peer.
+            }
+            sendHandshake(socket, hostPeer.getPeerID());
+            byte[] reservedBytes = new byte[RESERVED_LENGTH];
+            int peerID = verifyHandshake(socket, reservedBytes);
+            P2PLogger.log("Peer " + hostPeer.getPeerID() + " makes connection to Peer " + peerID + ".");
+            hostPeer.registerNeighbor(peerID, socket, isCompactBitfieldSupported(reservedBytes));
+            return true;
+        }
+
+        private void closeUnconnectedSocket(Socket socket) {
+            if (socket == null) {
+                return;
+            }
+
+            try {
+                socket.close();
+            } catch (IOException e) {
+                P2PLogger.log("IOException happens when closing unconnected socket. Exception is not rethrown.");
+            }
+        }
+
         public void addConnectingPeer(Peer peer) {
             if (peer == null) {
                 return;
@@ -726,10 +1195,20 @@ public final class HostPeer extends Peer {
 
     private abstract class ConnectionHandler {
 
-        private static final String HANDSHAKE = "P2PFILESHARINGPROJ\0\0\0\0\0\0\0\0\0\0";
+        //Handshake is the header, RESERVED_LENGTH reserved bytes, and the peer ID.
+        //Reserved bytes are zero in the plain protocol. Bits set there offer protocol extensions, and are ignored by peers not knowing them.
+        private static final String HANDSHAKE_HEADER = "P2PFILESHARINGPROJ";
+        protected static final int RESERVED_LENGTH = 10;
+        private static final byte COMPACT_BITFIELD_FLAG = 0x01;        //In the last reserved byte. Peer accepts HAVE_ALL, HAVE_NONE and RLE_BITFIELD.
+
+        //Returns true if both host and the neighbor offered compact bitfields.
+        protected boolean isCompactBitfieldSupported(byte[] reservedBytes) {
+            return isCompactBitfieldEnabled() && (reservedBytes[RESERVED_LENGTH - 1] & COMPACT_BITFIELD_FLAG) != 0;
+        }
 
         //Returns non-negative peerID if verification passes; returns -1 if not passes.
-        protected int verifyHandshake(Socket socket) {
+        //Reserved bytes received are copied into reservedBytes, which must have RESERVED_LENGTH bytes.
+        protected int verifyHandshake(Socket socket, byte[] reservedBytes) {
             int peerID;
             DataInputStream input;
 
@@ -744,12 +1223,13 @@ public final class HostPeer extends Peer {
                 return -1;
             }
             try {
-                byte buffer[] = new byte[HANDSHAKE.length()];
+                byte buffer[] = new byte[HANDSHAKE_HEADER.length()];
                 input.readFully(buffer);
-                String receivedHandshake = new String(buffer, "UTF-8");
-                if (!receivedHandshake.equals(HANDSHAKE)) {
+                String receivedHeader = new String(buffer, "UTF-8");
+                if (!receivedHeader.equals(HANDSHAKE_HEADER)) {
                     return -1;
                 }
+                input.readFully(reservedBytes, 0, RESERVED_LENGTH);
                 peerID = input.readInt();
             } catch (UnsupportedEncodingException e) {
                 P2PLogger.log("UnsupportedEncodingException happens when verifying handshake. Exception is not rethrown.");
@@ -779,7 +1259,12 @@ public final class HostPeer extends Peer {
                 return -1;
             }
             try {
-                output.writeBytes(HANDSHAKE);
+                byte[] reservedBytes = new byte[RESERVED_LENGTH];
+                if (isCompactBitfieldEnabled()) {
+                    reservedBytes[RESERVED_LENGTH - 1] |= COMPACT_BITFIELD_FLAG;
+                }
+                output.writeBytes(HANDSHAKE_HEADER);
+                output.write(reservedBytes);
                 output.writeInt(hostPeerID);
                 output.flush();
             } catch (IOException e) {
@@ -5,12 +5,18 @@ import static p2p.P2PLogger.DEBUG;
 
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 @SuppressWarnings("unused")
 public final class NeighborPeer extends Peer {
@@ -26,6 +32,9 @@ public final class NeighborPeer extends Peer {
     private final AtomicLong sentToHostSubCount;
     private final AtomicLong receivedFromHostTotalCount;
     private final AtomicLong receivedFromHostSubCount;
+    private final AtomicInteger interestingPieceCount;      //Pieces this neighbor has and the host lacks. Changed under the host interest lock.
+    private volatile boolean interestTracked;               //True while interestingPieceCount is kept up to date.
+    private volatile boolean compactBitfieldSupported;      //Both sides offered compact bitfields in the handshake of the current connection.
     private final HostPeer hostPeer;
     private final MessageHandler messageHandler;
 
@@ -44,6 +53,9 @@ public final class NeighborPeer extends Peer {
         sentToHostSubCount = new AtomicLong();
         receivedFromHostTotalCount = new AtomicLong();
         receivedFromHostSubCount = new AtomicLong();
+        interestingPieceCount = new AtomicInteger();
+        interestTracked = false;
+        compactBitfieldSupported = false;
         messageHandler = new MessageHandler(hostPeer, this, socket);
     }
 
@@ -58,6 +70,94 @@ public final class NeighborPeer extends Peer {
         messageHandler.resetMessageHandler(socket);
     }
 
+    //Piece status of a neighbor only changes in its message handler thread, so the availability index sees every change once.
+    @Override
+    public int setPieceStatus(BitSet bitSet) {
+        if (bitSet == null || bitSet.length() > getPieceCount()) {
+            return -1;
+        }
+
+        BitSet oldStatus = getPieceStatus().toBitSet();
+        synchronized (hostPeer.getInterestLock()) {
+            super.setPieceStatus(bitSet);
+            if (interestTracked) {
+                interestingPieceCount.set(countInterestingPieces());
+            }
+        }
+        hostPeer.getPieceAvailability().replacePieceStatus(oldStatus, bitSet);
+        return 0;
+    }
+
+    @Override
+    public int markPieceComplete(int pieceIndex) {
+        if (hasPiece(pieceIndex)) {
+            return 0;
+        }
+
+        int result;
+        synchronized (hostPeer.getInterestLock()) {
+            result = super.markPieceComplete(pieceIndex);
+            if (result == 0 && interestTracked && !hostPeer.hasPiece(pieceIndex)) {
+                interestingPieceCount.getAndIncrement();
+            }
+        }
+        if (result == 0) {
+            hostPeer.getPieceAvailability().addPiece(pieceIndex);
+        }
+        return result;
+    }
+
+    //Number of pieces this neighbor has and the host lacks. The host is interested if it is greater than 0.
+    public int getInterestingPieceCount() {
+        return interestTracked ? interestingPieceCount.get() : countInterestingPieces();
+    }
+
+    public boolean isInterestTracked() {
+        return interestTracked;
+    }
+
+    public boolean isCompactBitfieldSupported() {
+        return compactBitfieldSupported;
+    }
+
+    //Set for every connection before the bitfield is sent.
+    void setCompactBitfieldSupported(boolean b) {
+        compactBitfieldSupported = b;
+    }
+
+    //Counts once, then keeps the count up to date as either side gets pieces. Must hold the host interest lock.
+    void startInterestTracking() {
+        interestingPieceCount.set(countInterestingPieces());
+        interestTracked = true;
+    }
+
+    //Must hold the host interest lock.
+    void stopInterestTracking() {
+        interestTracked = false;
+    }
+
+    //Called when the host gets the piece. Must hold the host interest lock.
+    void removeInterestingPiece(int pieceIndex) {
+        if (interestTracked && hasPiece(pieceIndex)) {
+            interestingPieceCount.getAndDecrement();
+        }
+    }
+
+    //Called when the host loses the piece. Must hold the host interest lock.
+    void addInterestingPiece(int pieceIndex) {
+        if (interestTracked && hasPiece(pieceIndex)) {
+            interestingPieceCount.getAndIncrement();
+        }
+    }
+
+    private int countInterestingPieces() {
+        int count = 0;
+        for (int i = 0; i < getPieceStatus().getWordCount(); i++) {
+            count += Long.bitCount(getPieceStatus().getWord(i) & ~hostPeer.getPieceStatus().getWord(i));
+        }
+        return count;
+    }
+
     public boolean isUnchokedByHost() {
         return preferredByHost || optimisticByHost;
     }
@@ -190,6 +290,9 @@ public final class NeighborPeer extends Peer {
     //Handles actual messages exchanged after handshake between host and neighbor.
     public final class MessageHandler implements Callable<MessageHandler.MessageHandlerResult> {
 
+        private static final long MIN_REQUEST_TIMEOUT = 1000;      //in milliseconds
+        private static final int STREAM_CHUNK_SIZE = 8192;          //Pooled buffers are direct, so sockets without a channel are read and written through a chunk array.
+
         private volatile long estimatedRTT;      //in milliseconds
         private volatile long deviationRTT;      //in milliseconds
         private final HostPeer hostPeer;
@@ -197,9 +300,20 @@ public final class NeighborPeer extends Peer {
         private Socket socket;
         private DataInputStream input;
         private DataOutputStream output;
-        private final Object socketLock;
-        private final Object outputLock;
-        private final ConcurrentLinkedQueue<RequestedPiece> requestedPieceQueue;
+        private SocketChannel socketChannel;            //null if the socket is not backed by a channel, or the selector engine owns it.
+        private volatile SelectorEngine.Connection connection;     //null with the blocking engine.
+        private final ByteBuffer pieceHeader;          //Guarded by outputLock.
+        private final ByteBuffer messageHeader;        //Only used by the message listener.
+        private byte[] inputChunk;                      //Only used by the message listener. null until a socket without a channel is read.
+        private InputChannel inputChannel;              //Only used by the message listener. null until a piece comes from a socket without a channel.
+        private byte[] outputChunk;                     //Guarded by outputLock. null until a socket without a channel is written.
+        private final BufferPool bufferPool;
+        private final PieceAssembler pieceAssembler;   //null if whole pieces are requested.
+        private final ReentrantLock socketLock;         //Locks rather than synchronized, so a virtual thread blocked on the socket under them does not pin its carrier.
+        private final ReentrantLock outputLock;
+        private final ReentrantLock requestLock;        //Held from reading the window credit to sending the requests it allows.
+        private final RequestedPieceList requestedPieceList;
+        private final RequestWindow requestWindow;
 
         public MessageHandler(HostPeer hostPeer, NeighborPeer neighborPeer, Socket socket) {
             if (hostPeer == null) {
@@ -217,6 +331,16 @@ public final class NeighborPeer extends Peer {
             this.hostPeer = hostPeer;
             this.neighborPeer = neighborPeer;
             this.socket = socket;
+            socketChannel = socket.getChannel();
+            pieceHeader = ByteBuffer.allocate(4 + PIECE.length() + 8);
+            messageHeader = ByteBuffer.allocate(4 + PIECE.length() + 8);
+            bufferPool = hostPeer.getBufferPool();
+            pieceAssembler = hostPeer.getPieceAssembler();
+            socketLock = new ReentrantLock();
+            outputLock = new ReentrantLock();
+            requestLock = new ReentrantLock();
+            requestedPieceList = new RequestedPieceList();
+            requestWindow = new RequestWindow();
             try {
                 input = new DataInputStream(socket.getInputStream());
                 output = new DataOutputStream(socket.getOutputStream());
@@ -224,33 +348,41 @@ public final class NeighborPeer extends Peer {
                 P2PLogger.log("IOException happens when creating MessageHandler. Exception is not rethrown.");
                 closeSocket();
             }
-            socketLock = new Object();
-            outputLock = new Object();
-            requestedPieceQueue = new ConcurrentLinkedQueue<>();
         }
 
-        //Message listener.
-        @SuppressWarnings("ConstantConditions")
+        //Message listener of the blocking engine. Reads messages from the socket until the connection ends.
         @Override
         public MessageHandlerResult call() {
             int resultCode = 0;
             int messageLength;
             int pieceIndex = -1;
-            byte[] piece = null;
-            byte[] messagePayload = null;
+            int requestIndex = -1;          //Block id if pieces are requested in blocks, otherwise same as pieceIndex.
+            int pieceLength = 0;
+            int pieceReceivingResult = -1;
+            ByteBuffer messagePayload = null;       //Leased from bufferPool. Released before the next message is read.
             MessageType messageType;
 
             while (hostPeer.isRunning()) {
+                bufferPool.release(messagePayload);
+                messagePayload = null;
                 try {
-                    messageLength = input.readInt();
-                    messageType = MessageType.typeOf(input.readByte());
-                    if (messageType == PIECE) {
-                        pieceIndex = input.readInt();
-                        piece = new byte[Math.max(0, messageLength - messageType.length() - 4)];
-                        input.readFully(piece);
+                    readFully(messageHeader, 4 + 1);
+                    messageLength = messageHeader.getInt();
+                    messageType = MessageType.typeOf(messageHeader.get());
+                    if (messageType == PIECE && pieceAssembler == null) {
+                        readFully(messageHeader, 4);
+                        pieceIndex = messageHeader.getInt();
+                        requestIndex = pieceIndex;
+                        pieceLength = Math.max(0, messageLength - messageType.length() - 4);
+                        pieceReceivingResult = receivePiece(requestIndex, pieceIndex, pieceLength, input, socketChannel);
+                    } else if (messageType == PIECE) {
+                        readFully(messageHeader, 8);
+                        pieceIndex = messageHeader.getInt();
+                        requestIndex = pieceAssembler.getBlockID(pieceIndex, messageHeader.getInt());
+                        pieceLength = Math.max(0, messageLength - messageType.length() - 8);
+                        pieceReceivingResult = receivePiece(requestIndex, pieceIndex, pieceLength, input, socketChannel);
                     } else {
-                        messagePayload = new byte[Math.max(0, messageLength - messageType.length())];
-                        input.readFully(messagePayload);
+                        messagePayload = readPayload(Math.max(0, messageLength - messageType.length()));
                     }
                 } catch (IOException e) {
                     if (hostPeer.isRunning()) {
@@ -260,100 +392,181 @@ public final class NeighborPeer extends Peer {
                     break;
                 }
 
-                switch (messageType) {
-                    case CHOKE:
-                        neighborPeer.setUnchokedHost(false);
-                        P2PLogger.log("Peer " + hostPeer.getPeerID() + " is choked by Peer " + neighborPeer.getPeerID() + ".");
-                        break;
-                    case UNCHOKE:
-                        neighborPeer.setUnchokedHost(true);
-                        P2PLogger.log("Peer " + hostPeer.getPeerID() + " is unchoked by Peer " + neighborPeer.getPeerID() + ".");
-                        if (hostPeer.isInterested(neighborPeer)) {
-                            sendMessage(REQUEST, hostPeer.findNextInterestingPiece(neighborPeer));
-                        } else {
-                            sendMessage(NOT_INTERESTED);
-                        }
-                        break;
-                    case INTERESTED:
-                        neighborPeer.setInterestedInHost(true);
-                        P2PLogger.log("Peer " + hostPeer.getPeerID() + " received the 'interested' message from Peer " + neighborPeer.getPeerID() + ".");
-                        break;
-                    case NOT_INTERESTED:
-                        neighborPeer.setInterestedInHost(false);
-                        P2PLogger.log("Peer " + hostPeer.getPeerID() + " received the 'not interested' message from Peer " + neighborPeer.getPeerID() + ".");
-                        break;
-                    case HAVE:
-                        if (messagePayload.length == 4) {
-                            pieceIndex = ByteBuffer.wrap(messagePayload).getInt();
-                            P2PLogger.log("Peer " + hostPeer.getPeerID() + " received the 'have' message from Peer " + neighborPeer.getPeerID() + " for the piece " + pieceIndex + ".");
-                        } else {
-                            pieceIndex = -1;
-                        }
-                        neighborPeer.markPieceComplete(pieceIndex);
-                        if (!neighborPeer.isPreviousInterestOfHost() && hostPeer.isInterested(neighborPeer)) {
-                            sendMessage(INTERESTED);
-                            if (neighborPeer.isUnchokedHost()) {
-                                sendMessage(REQUEST, hostPeer.findNextInterestingPiece(neighborPeer));
-                            }
-                        }
-                        break;
-                    case BITFIELD:
-                        neighborPeer.setPieceStatus(messagePayload);
-                        if (hostPeer.isInterested(neighborPeer)) {
-                            sendMessage(INTERESTED);
-                        } else {
-                            sendMessage(NOT_INTERESTED);
-                        }
-                        break;
-                    case REQUEST:
-                        if (messagePayload.length == 4) {
-                            pieceIndex = ByteBuffer.wrap(messagePayload).getInt();
-                        } else {
-                            pieceIndex = -1;
+                processMessage(messageType, messagePayload, requestIndex, pieceIndex, pieceLength, pieceReceivingResult);
+            }
+
+            bufferPool.release(messagePayload);
+            return finish(resultCode);
+        }
+
+        //Handles one message decoded by the selector engine. The frame holds the whole message, length prefix included, from its position to its limit.
+        //frameInput and frameSource read the same frame, so piece payloads go through the same receiving code as with a blocking socket.
+        //IOException means the frame is malformed; the caller drops the connection.
+        void receiveFrame(ByteBuffer frame, DataInputStream frameInput, ReadableByteChannel frameSource) throws IOException {
+            frame.getInt();         //Length prefix. The frame limit is the end of the message.
+            MessageType messageType = MessageType.typeOf(frame.get());
+            int pieceIndex = -1;
+            int requestIndex = -1;
+            int pieceLength = 0;
+            int pieceReceivingResult = -1;
+
+            if (messageType == PIECE && frame.remaining() < (pieceAssembler == null ? 4 : 8)) {
+                throw new IOException("Invalid Piece Message.");
+            }
+            if (messageType == PIECE && pieceAssembler == null) {
+                pieceIndex = frame.getInt();
+                requestIndex = pieceIndex;
+                pieceLength = frame.remaining();
+                pieceReceivingResult = receivePiece(requestIndex, pieceIndex, pieceLength, frameInput, frameSource);
+            } else if (messageType == PIECE) {
+                pieceIndex = frame.getInt();
+                requestIndex = pieceAssembler.getBlockID(pieceIndex, frame.getInt());
+                pieceLength = frame.remaining();
+                pieceReceivingResult = receivePiece(requestIndex, pieceIndex, pieceLength, frameInput, frameSource);
+            }
+            processMessage(messageType, frame, requestIndex, pieceIndex, pieceLength, pieceReceivingResult);
+        }
+
+        //Acts on one received message. For a Piece Message, its payload has been received already, with the result of receivePiece.
+        //Runs on one thread per connection at a time, the message listener or the selector engine thread of the connection.
+        @SuppressWarnings("ConstantConditions")
+        private void processMessage(MessageType messageType, ByteBuffer messagePayload, int requestIndex, int pieceIndex, int pieceLength, int pieceReceivingResult) {
+            if (messageType == null) {
+                P2PLogger.log("Invalid messageType happens when processing message for peer " + neighborPeer.getPeerID() + ".");
+                return;
+            }
+            switch (messageType) {
+                case CHOKE:
+                    neighborPeer.setUnchokedHost(false);
+                    P2PLogger.log("Peer " + hostPeer.getPeerID() + " is choked by Peer " + neighborPeer.getPeerID() + ".");
+                    break;
+                case UNCHOKE:
+                    neighborPeer.setUnchokedHost(true);
+                    P2PLogger.log("Peer " + hostPeer.getPeerID() + " is unchoked by Peer " + neighborPeer.getPeerID() + ".");
+                    if (hostPeer.isInterested(neighborPeer)) {
+                        fillRequestWindow();
+                        if (hostPeer.isInEndgame()) {
+                            requestEndgamePieces();
                         }
-                        if (neighborPeer.isUnchokedByHost()) {
-                            sendMessage(PIECE, pieceIndex);
-                        } else {
-                            hostPeer.getSpeedLimiter().delayPieceMessage(neighborPeer, pieceIndex);
-                            sendMessage(CHOKE);
+                    } else {
+                        sendMessage(NOT_INTERESTED);
+                    }
+                    break;
+                case INTERESTED:
+                    neighborPeer.setInterestedInHost(true);
+                    P2PLogger.log("Peer " + hostPeer.getPeerID() + " received the 'interested' message from Peer " + neighborPeer.getPeerID() + ".");
+                    break;
+                case NOT_INTERESTED:
+                    neighborPeer.setInterestedInHost(false);
+                    P2PLogger.log("Peer " + hostPeer.getPeerID() + " received the 'not interested' message from Peer " + neighborPeer.getPeerID() + ".");
+                    break;
+                case HAVE:
+                    if (messagePayload.remaining() == 4) {
+                        pieceIndex = messagePayload.getInt();
+                        P2PLogger.beginLine().append("Peer ").append(hostPeer.getPeerID()).append(" received the 'have' message from Peer ").append(neighborPeer.getPeerID()).append(" for the piece ").append(pieceIndex).append('.');
+                        P2PLogger.endLine();        //Logged for every piece, so built without concatenation.
+                    } else {
+                        pieceIndex = -1;
+                    }
+                    neighborPeer.markPieceComplete(pieceIndex);
+                    if (!neighborPeer.isPreviousInterestOfHost() && hostPeer.isInterested(neighborPeer)) {
+                        sendMessage(INTERESTED);
+                        if (neighborPeer.isUnchokedHost()) {
+                            fillRequestWindow();
                         }
-                        break;
-                    case PIECE:
-                        if (!isPieceRequested(pieceIndex)) {
-                            continue;       //Ignore the piece that was not requested before.
+                    }
+                    break;
+                case BITFIELD:
+                case HAVE_ALL:
+                case HAVE_NONE:
+                case RLE_BITFIELD:
+                    if (receivePieceStatus(messageType, messagePayload) < 0) {      //Only once per connection.
+                        P2PLogger.log("Invalid " + messageType + " message happens when processing message for peer " + neighborPeer.getPeerID() + ".");
+                    }
+                    if (hostPeer.isInterested(neighborPeer)) {
+                        sendMessage(INTERESTED);
+                    } else {
+                        sendMessage(NOT_INTERESTED);
+                    }
+                    break;
+                case REQUEST:
+                    pieceIndex = getRequestIndex(messagePayload);     //Block id from here on, if pieces are requested in blocks.
+                    if (neighborPeer.isUnchokedByHost()) {
+                        sendMessage(PIECE, pieceIndex);
+                    } else {
+                        hostPeer.getSpeedLimiter().delayPieceMessage(neighborPeer, pieceIndex);
+                        sendMessage(CHOKE);
+                    }
+                    break;
+                case CANCEL:
+                    pieceIndex = getRequestIndex(messagePayload);
+                    hostPeer.getSpeedLimiter().cancelPieceMessage(neighborPeer, pieceIndex);
+                    if (DEBUG) {
+                        P2PLogger.log("[DEBUG] Peer " + hostPeer.getPeerID() + " received the 'cancel' message from Peer " + neighborPeer.getPeerID() + " for " + pieceIndex + ".");
+                    }
+                    break;
+                case PIECE:
+                    if (pieceReceivingResult < 0) {
+                        hostPeer.addWastedByteCount(pieceLength);
+                    }
+                    if (!isPieceRequested(requestIndex)) {
+                        if (pieceAssembler == null && pieceReceivingResult == 0) {
+                            hostPeer.releaseReceivingPiece(pieceIndex);
                         }
-                        int requestSendingTimes = checkPieceReceived(pieceIndex);
-                        if (!hostPeer.hasPiece(pieceIndex)) {
-                            if (hostPeer.getSharedFile().writePiece(pieceIndex, piece) == 0) {
-                                hostPeer.markPieceComplete(pieceIndex);
-                                neighborPeer.addSentToHostCount(piece.length);
-                                P2PLogger.log("Peer " + hostPeer.getPeerID() + " has downloaded the piece " + pieceIndex + " from Peer " + neighborPeer.getPeerID() + ". Now the number of pieces it has is " + hostPeer.getCompletePieceCount() + ".");
-                                if (hostPeer.hasCompleteFile()) {
-                                    P2PLogger.log("Peer " + hostPeer.getPeerID() + " has downloaded the complete file.");
-                                }
-                                for (NeighborPeer p : hostPeer.getActiveNeighborList()) {
-                                    p.getMessageHandler().sendMessage(HAVE, pieceIndex);
-                                    if (p.isPreviousInterestOfHost() && !hostPeer.isInterested(p)) {
-                                        p.getMessageHandler().sendMessage(NOT_INTERESTED);
-                                    }
-                                }
+                        return;         //Ignore the piece that was not requested before.
+                    }
+                    checkPieceReceived(requestIndex, pieceLength);
+                    if (pieceReceivingResult < 0) {
+                        hostPeer.getReservationTable().release(requestIndex, neighborPeer);
+                    } else {
+                        hostPeer.getReservationTable().release(requestIndex);
+                        neighborPeer.addSentToHostCount(pieceLength);
+                        for (NeighborPeer p : hostPeer.getActiveNeighbors()) {      //Withdraw copies requested from other neighbors.
+                            if (p != neighborPeer) {
+                                p.getMessageHandler().cancelRequest(requestIndex);
                             }
                         }
-                        if (hostPeer.isInterested(neighborPeer) && neighborPeer.isUnchokedHost()) {
-                            for (int i = 0; i < requestSendingTimes; i++) {
-                                sendMessage(REQUEST, hostPeer.findNextInterestingPiece(neighborPeer));
+                    }
+                    if (!hostPeer.hasPiece(pieceIndex)) {
+                        if (pieceReceivingResult == 0) {
+                            hostPeer.markPieceComplete(pieceIndex);
+                            int completePieceCount = hostPeer.getCompletePieceCount();
+                            P2PLogger.beginLine().append("Peer ").append(hostPeer.getPeerID()).append(" has downloaded the piece ").append(pieceIndex).append(" from Peer ").append(neighborPeer.getPeerID()).append(". Now the number of pieces it has is ").append(completePieceCount).append('.');
+                            P2PLogger.endLine();
+                            if (hostPeer.hasCompleteFile()) {
+                                P2PLogger.log("Peer " + hostPeer.getPeerID() + " has downloaded the complete file.");
+                            }
+                            for (NeighborPeer p : hostPeer.getActiveNeighbors()) {
+                                p.getMessageHandler().sendMessage(HAVE, pieceIndex);
+                                if (p.isPreviousInterestOfHost() && !hostPeer.isInterested(p)) {
+                                    p.getMessageHandler().sendMessage(NOT_INTERESTED);
+                                }
                             }
                         }
-                        if (DEBUG) {
-                            P2PLogger.log("[DEBUG] Peer " + hostPeer.getPeerID() + " has Peer " + neighborPeer.getPeerID() + ": Requested Queue Size = " + requestedPieceQueue.size() + ".");
+                    }
+                    if (pieceAssembler == null && pieceReceivingResult == 0) {
+                        hostPeer.releaseReceivingPiece(pieceIndex);     //Marked complete now, so later copies are skipped by hasPiece.
+                    }
+                    if (hostPeer.isInterested(neighborPeer) && neighborPeer.isUnchokedHost()) {
+                        fillRequestWindow();
+                    }
+                    if (hostPeer.isInEndgame()) {
+                        for (NeighborPeer p : hostPeer.getActiveNeighbors()) {
+                            p.getMessageHandler().requestEndgamePieces();
                         }
-                        break;
-                    default:
-                        P2PLogger.log("Invalid messageType happens when processing message for peer " + neighborPeer.getPeerID() + ".");
-                        break;
-                }
+                    }
+                    if (DEBUG) {
+                        P2PLogger.log("[DEBUG] Peer " + hostPeer.getPeerID() + " has Peer " + neighborPeer.getPeerID() + ": Requested Queue Size = " + requestedPieceList.size() + ".");
+                    }
+                    break;
+                default:
+                    P2PLogger.log("Invalid messageType happens when processing message for peer " + neighborPeer.getPeerID() + ".");
+                    break;
             }
+        }
 
+        //Closes the socket once the connection ends, whichever engine ran it.
+        MessageHandlerResult finish(int resultCode) {
             closeSocket();
             if (DEBUG) {
                 P2PLogger.log("[DEBUG] Thread exists for MessageHandler of Peer " + neighborPeer.getPeerID() + " with result code " + resultCode + ".");
@@ -361,10 +574,24 @@ public final class NeighborPeer extends Peer {
             return new MessageHandlerResult(resultCode, neighborPeer);
         }
 
+        //If pieces are requested in blocks, REQUEST and PIECE take a block id as pieceIndex.
+        //BITFIELD is replaced by HAVE_ALL, HAVE_NONE or RLE_BITFIELD if the neighbor supports compact bitfields and one is shorter.
         public void sendMessage(MessageType messageType, int pieceIndex) {
-            int messageLength = messageType.length();
-            byte[] messagePayload = new byte[0];
-            byte[] piece = null;
+            int messageLength;
+            boolean pieceTransferred = false;       //Piece Message goes from the file straight to the socket channel.
+            int pieceLength = 0;
+            byte[] runLengthBitfield = null;
+
+            if (messageType == BITFIELD && neighborPeer.isCompactBitfieldSupported()) {
+                if (hostPeer.hasCompleteFile()) {
+                    messageType = HAVE_ALL;
+                } else if (hostPeer.getPieceStatus().isEmpty()) {
+                    messageType = HAVE_NONE;
+                } else if ((runLengthBitfield = hostPeer.getPieceStatusAsRunLengthBitfield()) != null) {
+                    messageType = RLE_BITFIELD;
+                }
+            }
+            messageLength = messageType.length();
 
             switch (messageType) {
                 case CHOKE:
@@ -377,33 +604,51 @@ public final class NeighborPeer extends Peer {
                     neighborPeer.setPreviousInterestOfHost(false);
                     break;
                 case HAVE:
-                    messagePayload = ByteBuffer.allocate(4).putInt(pieceIndex).array();
-                    messageLength += messagePayload.length;
+                    messageLength += 4;
                     break;
                 case REQUEST:
                     if (neighborPeer.hasReachedDownloadingLimit()) {
                         hostPeer.getSpeedLimiter().delayRequestMessage(neighborPeer, pieceIndex);
                         return;
                     }
-                    if (isPieceRequested(pieceIndex)) {
+                    if (pieceIndex < 0) {
+                        return;         //Nothing to request, or everything is reserved by other neighbors.
+                    }
+                    if (!requestedPieceList.add(pieceIndex, System.currentTimeMillis())) {      //Endgame requests come from other threads too. Never request the same piece twice.
                         return;
                     }
-                    requestedPieceQueue.add(new RequestedPiece(pieceIndex, System.currentTimeMillis()));
-                    messagePayload = ByteBuffer.allocate(4).putInt(pieceIndex).array();
-                    messageLength += messagePayload.length;
+                    hostPeer.getReservationTable().reserve(pieceIndex, neighborPeer);       //Kept by the first neighbor if this is an endgame or urgent copy.
+                    messageLength += pieceAssembler == null ? 4 : 12;
+                    break;
+                case CANCEL:
+                    messageLength += pieceAssembler == null ? 4 : 12;
                     break;
                 case BITFIELD:
-                    messagePayload = hostPeer.getPieceStatusAsBitfield();
-                    messageLength += messagePayload.length;
+                    messageLength += hostPeer.getBitfieldLength();
+                    break;
+                case HAVE_ALL:
+                case HAVE_NONE:
+                    break;
+                case RLE_BITFIELD:
+                    messageLength += runLengthBitfield.length;
                     break;
                 case PIECE:
+                    if (!hostPeer.hasPiece(pieceAssembler == null ? pieceIndex : pieceAssembler.getPieceIndex(pieceIndex))) {
+                        return;         //Lost by a failed write after it was announced. The neighbor asks again elsewhere when the request times out.
+                    }
                     if (neighborPeer.hasReachedUploadingLimit() || neighborPeer.hasOtherPendingPieceMessage(pieceIndex)) {
                         hostPeer.getSpeedLimiter().delayPieceMessage(neighborPeer, pieceIndex);
                         return;
                     }
-                    piece = hostPeer.getSharedFile().readPiece(pieceIndex);
-                    messageLength += 4 + piece.length;
-                    neighborPeer.addReceivedFromHostCount(piece.length);
+                    if (pieceAssembler != null) {
+                        pieceLength = Math.max(0, pieceAssembler.getBlockLength(pieceIndex));
+                        messageLength += 8 + pieceLength;
+                    } else {
+                        pieceLength = Math.max(0, hostPeer.getSharedFile().getActualPieceSize(pieceIndex));
+                        messageLength += 4 + pieceLength;
+                    }
+                    pieceTransferred = socketChannel != null;       //Otherwise the piece is read into the pooled message buffer.
+                    neighborPeer.addReceivedFromHostCount(pieceLength);
                     break;
                 default:
                     P2PLogger.log("Invalid messageType happens when sending message for peer " + neighborPeer.getPeerID() + ". No message is sent.");
@@ -413,19 +658,56 @@ public final class NeighborPeer extends Peer {
                 P2PLogger.log("[DEBUG] Peer " + hostPeer.getPeerID() + " is sending " + messageType + " Message to Peer " + neighborPeer.getPeerID() + " with piece index " + pieceIndex + ".");
             }
 
-            try {
-                synchronized (outputLock) {
-                    output.writeInt(messageLength);
-                    output.writeByte(messageType.getValue());
-                    if (messageType == PIECE) {
-                        output.writeInt(pieceIndex);
-                        output.write(piece);
+            if (pieceTransferred) {
+                transferPieceMessage(messageLength, pieceIndex);
+                return;
+            }
+            ByteBuffer message = bufferPool.lease(4 + messageLength);
+            message.putInt(messageLength).put(messageType.getValue());
+            switch (messageType) {
+                case HAVE:
+                    message.putInt(pieceIndex);
+                    break;
+                case REQUEST:
+                case CANCEL:
+                    if (pieceAssembler == null) {
+                        message.putInt(pieceIndex);
                     } else {
-                        output.write(messagePayload);
+                        message.putInt(pieceAssembler.getPieceIndex(pieceIndex)).putInt(pieceAssembler.getBlockOffset(pieceIndex)).putInt(pieceAssembler.getBlockLength(pieceIndex));
                     }
-                    output.flush();
-                }
+                    break;
+                case BITFIELD:
+                    hostPeer.putPieceStatusAsBitfield(message);
+                    break;
+                case RLE_BITFIELD:
+                    message.put(runLengthBitfield);
+                    break;
+                case PIECE:
+                    int pieceReadingResult;
+                    if (pieceAssembler == null) {
+                        message.putInt(pieceIndex);
+                        pieceReadingResult = hostPeer.getSharedFile().readBlock(pieceIndex, 0, pieceLength, message);
+                    } else {
+                        message.putInt(pieceAssembler.getPieceIndex(pieceIndex)).putInt(pieceAssembler.getBlockOffset(pieceIndex));
+                        pieceReadingResult = hostPeer.getSharedFile().readBlock(pieceAssembler.getPieceIndex(pieceIndex), pieceAssembler.getBlockOffset(pieceIndex), pieceLength, message);
+                    }
+                    if (pieceReadingResult < 0) {
+                        bufferPool.release(message);
+                        return;         //The neighbor asks again elsewhere when the request times out.
+                    }
+                    break;
+                default:
+                    break;
+            }
+            message.flip();
+            boolean queued = false;
+            try {
+                queued = writeMessage(message);
             } catch (IOException ignored) {
+            } finally {
+                if (!queued) {
+                    bufferPool.release(message);
+                }
             }
         }
 
@@ -433,6 +715,252 @@ public final class NeighborPeer extends Peer {
             sendMessage(messageType, -1);
         }
 
+        //Sends new requests until the request window is full, or the neighbor has nothing more the host needs.
+        //Called by the message listener and the peer manager. The lock keeps both from reading the same credit and overfilling the window.
+        public void fillRequestWindow() {
+            requestLock.lock();
+            try {
+                sendRequests(requestWindow.getCredit(getFlyingRequestCount()));
+            } finally {
+                requestLock.unlock();
+            }
+        }
+
+        //Stops early if a request is not sent, as it is delayed by the downloading limit or already in flight.
+        private void sendRequests(int count) {
+            for (int i = 0; i < count; i++) {
+                int requestIndex = hostPeer.findNextRequest(neighborPeer);
+                if (requestIndex < 0) {
+                    return;
+                }
+                sendMessage(REQUEST, requestIndex);
+                if (!isPieceRequested(requestIndex)) {
+                    return;
+                }
+            }
+        }
+
+        //Marks requests unanswered for longer than the request timeout, estimated RTT + 4 * deviation RTT but not under MIN_REQUEST_TIMEOUT.
+        //They stay in flight, and are still taken if they arrive, but no longer count against the window. The window is halved if any timed out.
+        //Returns the number of requests that timed out now.
+        public int checkRequestTimeouts() {
+            long timeout = Math.max(MIN_REQUEST_TIMEOUT, estimatedRTT + 4 * deviationRTT);
+            int timedOutCount = requestedPieceList.markTimedOut(System.currentTimeMillis(), timeout);
+            if (timedOutCount > 0) {
+                requestWindow.onTimeout();
+            }
+            return timedOutCount;
+        }
+
+        //Requests every piece the host still misses from this neighbor, if it unchoked the host. Pieces already requested from it are skipped.
+        public void requestEndgamePieces() {
+            if (!neighborPeer.isUnchokedHost()) {
+                return;
+            }
+            hostPeer.forEachEndgameRequest(neighborPeer, i -> sendMessage(REQUEST, i));
+        }
+
+        //Withdraws the request if it is in flight to this neighbor. Call this when the piece has come from another neighbor.
+        public void cancelRequest(int pieceIndex) {
+            if (requestedPieceList.remove(pieceIndex) < 0) {
+                return;
+            }
+            hostPeer.getReservationTable().release(pieceIndex, neighborPeer);
+            hostPeer.addCancelledRequestCount();
+            sendMessage(CANCEL, pieceIndex);
+        }
+
+        //Reads the Piece Message payload from the socket, or from the decoded frame with the selector engine. Wanted pieces go straight into the shared file; others are skipped.
+        //Source is read if it is not null, otherwise input is. A whole piece from input is read as a channel through inputChunk, so it lands the same way.
+        //If pieces are requested in blocks, requestIndex is the block id, and wanted blocks go to the piece assembler.
+        //Whole pieces are claimed first, like blocks in the assembler, and a piece another neighbor is receiving is skipped.
+        //Returns 0 if the whole piece is in the shared file. A whole piece then stays claimed until processMessage has marked it complete.
+        //Returns 1 if the block is kept, but its piece is not complete yet.
+        //Returns -1 if the piece is not wanted or invalid.
+        private int receivePiece(int requestIndex, int pieceIndex, int pieceLength, DataInputStream input, ReadableByteChannel source) throws IOException {
+            if (!isPieceRequested(requestIndex) || hostPeer.hasPiece(pieceIndex)) {
+                skipPayload(input, pieceLength);
+                return -1;
+            }
+            if (pieceAssembler != null) {
+                if (pieceLength != pieceAssembler.getBlockLength(requestIndex)) {
+                    P2PLogger.log("Invalid block " + requestIndex + " happens when receiving from peer " + neighborPeer.getPeerID() + ".");
+                    skipPayload(input, pieceLength);
+                    return -1;
+                }
+                return pieceAssembler.receiveBlock(requestIndex, input, source);
+            }
+            if (pieceLength != hostPeer.getSharedFile().getActualPieceSize(pieceIndex)) {
+                P2PLogger.log("Invalid piece " + pieceIndex + " happens when receiving from peer " + neighborPeer.getPeerID() + ".");
+                skipPayload(input, pieceLength);
+                return -1;
+            }
+
+            if (!hostPeer.claimReceivingPiece(pieceIndex)) {
+                skipPayload(input, pieceLength);        //Endgame copy from another neighbor is landing already.
+                return -1;
+            }
+
+            int result = -1;
+            try {
+                if (source == null) {
+                    if (inputChannel == null) {
+                        inputChannel = new InputChannel();
+                    }
+                    source = inputChannel;
+                }
+                result = hostPeer.getSharedFile().receivePiece(pieceIndex, source);
+            } finally {
+                if (result != 0) {
+                    hostPeer.releaseReceivingPiece(pieceIndex);
+                }
+            }
+            return result;      //Claim is kept until processMessage marks the piece complete.
+        }
+
+        //Sets the neighbor piece status from a Bitfield, Have All, Have None or Rle Bitfield Message.
+        //Returns 0 if set. Returns -1 if the payload is invalid; piece status is left as it was.
+        private int receivePieceStatus(MessageType messageType, ByteBuffer messagePayload) {
+            switch (messageType) {
+                case BITFIELD:
+                    byte[] bitfield = new byte[messagePayload.remaining()];
+                    messagePayload.get(bitfield);
+                    return neighborPeer.setPieceStatus(bitfield);
+                case HAVE_ALL:
+                    return neighborPeer.setPieceStatus(true);
+                case HAVE_NONE:
+                    return neighborPeer.setPieceStatus(false);
+                case RLE_BITFIELD:
+                    return neighborPeer.setPieceStatusFromRunLength(messagePayload);
+                default:
+                    return -1;
+            }
+        }
+
+        //Returns the piece index of a Request or Cancel Message payload, or the block id if pieces are requested in blocks.
+        //Returns -1 if the payload is invalid.
+        private int getRequestIndex(ByteBuffer messagePayload) {
+            if (pieceAssembler == null && messagePayload.remaining() == 4) {
+                return messagePayload.getInt();
+            } else if (pieceAssembler != null && messagePayload.remaining() == 12) {
+                int blockID = pieceAssembler.getBlockID(messagePayload.getInt(), messagePayload.getInt());
+                return messagePayload.getInt() == pieceAssembler.getBlockLength(blockID) ? blockID : -1;
+            } else {
+                return -1;
+            }
+        }
+
+        //Returns a buffer leased from bufferPool holding the payload between its position and limit.
+        private ByteBuffer readPayload(int length) throws IOException {
+            ByteBuffer buffer = bufferPool.lease(length);
+            try {
+                readFully(buffer, length);
+            } catch (IOException e) {
+                bufferPool.release(buffer);
+                throw e;
+            }
+            return buffer;
+        }
+
+        //Reads exactly length bytes into the buffer from its start, then flips it.
+        //Reading through the channel avoids the single byte reads of the socket input stream, which allocate every time.
+        private void readFully(ByteBuffer buffer, int length) throws IOException {
+            buffer.clear().limit(length);
+            if (socketChannel == null) {
+                if (buffer.hasArray()) {
+                    input.readFully(buffer.array(), buffer.arrayOffset(), length);
+                    buffer.position(length);
+                } else {
+                    if (inputChunk == null) {
+                        inputChunk = new byte[STREAM_CHUNK_SIZE];
+                    }
+                    while (buffer.hasRemaining()) {
+                        int count = Math.min(inputChunk.length, buffer.remaining());
+                        input.readFully(inputChunk, 0, count);
+                        buffer.put(inputChunk, 0, count);
+                    }
+                }
+            } else {
+                while (buffer.hasRemaining()) {
+                    if (socketChannel.read(buffer) < 0) {
+                        throw new EOFException();
+                    }
+                }
+            }
+            buffer.flip();
+        }
+
+        //Returns true if the selector engine queued the message. The engine then releases it to the buffer pool once it is sent.
+        private boolean writeMessage(ByteBuffer message) throws IOException {
+            outputLock.lock();
+            try {
+                SelectorEngine.Connection connection = this.connection;
+                if (connection != null) {
+                    return connection.write(message);
+                }
+                if (socketChannel == null) {
+                    if (outputChunk == null) {
+                        outputChunk = new byte[STREAM_CHUNK_SIZE];
+                    }
+                    while (message.hasRemaining()) {
+                        int count = Math.min(outputChunk.length, message.remaining());
+                        message.get(outputChunk, 0, count);
+                        output.write(outputChunk, 0, count);
+                    }
+                    output.flush();
+                    return false;
+                }
+                output.flush();
+                while (message.hasRemaining()) {
+                    socketChannel.write(message);
+                }
+                return false;
+            } finally {
+                outputLock.unlock();
+            }
+        }
+
+        private void skipPayload(DataInputStream input, int length) throws IOException {
+            while (length > 0) {
+                int skipped = input.skipBytes(length);
+                if (skipped <= 0) {
+                    input.readByte();       //Throws EOFException at end of stream.
+                    skipped = 1;
+                }
+                length -= skipped;
+            }
+        }
+
+        //Writes the Piece Message header, then lets the shared file send the piece straight to the socket channel.
+        //If pieces are requested in blocks, pieceIndex is a block id, and only that block is sent.
+        private void transferPieceMessage(int messageLength, int pieceIndex) {
+            try {
+                outputLock.lock();
+                try {
+                    output.flush();
+                    pieceHeader.clear();
+                    pieceHeader.putInt(messageLength).put(PIECE.getValue());
+                    if (pieceAssembler == null) {
+                        pieceHeader.putInt(pieceIndex).flip();
+                    } else {
+                        pieceHeader.putInt(pieceAssembler.getPieceIndex(pieceIndex)).putInt(pieceAssembler.getBlockOffset(pieceIndex)).flip();
+                    }
+                    while (pieceHeader.hasRemaining()) {
+                        socketChannel.write(pieceHeader);
+                    }
+                    if (pieceAssembler == null) {
+                        hostPeer.getSharedFile().transferPiece(pieceIndex, socketChannel);
+                    } else {
+                        hostPeer.getSharedFile().transferBlock(pieceAssembler.getPieceIndex(pieceIndex), pieceAssembler.getBlockOffset(pieceIndex), messageLength - PIECE.length() - 8, socketChannel);
+                    }
+                } finally {
+                    outputLock.unlock();
+                }
+            } catch (IOException e) {
+                closeSocket();      //Message may be sent partially. Drop the connection rather than leaving the stream out of frame.
+            }
+        }
+
         public long getEstimatedRTT() {
             return estimatedRTT;
         }
@@ -442,25 +970,57 @@ public final class NeighborPeer extends Peer {
         }
 
         public int getRequestedPieceCount() {
-            return requestedPieceQueue.size();
+            return requestedPieceList.size();
+        }
+
+        //Requests in flight that have not timed out.
+        public int getFlyingRequestCount() {
+            return requestedPieceList.getFlyingCount();
+        }
+
+        public RequestWindow getRequestWindow() {
+            return requestWindow;
+        }
+
+        //Clears the candidates already requested from this neighbor. Only for piece indexes.
+        //Candidates are words as from Peer.findInterestingPieces.
+        public void clearRequestedPieces(long[] candidates) {
+            requestedPieceList.clearRequested(candidates);
         }
 
         public String getIPAddress() {
-            synchronized (socketLock) {
+            socketLock.lock();
+            try {
                 return socket.getInetAddress().getHostAddress();
+            } finally {
+                socketLock.unlock();
             }
         }
 
         public final void closeSocket() {
             try {
-                synchronized (socketLock) {
+                socketLock.lock();
+                try {
                     socket.close();
+                } finally {
+                    socketLock.unlock();
                 }
             } catch (IOException e) {
                 P2PLogger.log("IOException happens when closing socket for peer " + neighborPeer.getPeerID() + ". Exception is not rethrown.");
             }
         }
 
+        //Hands the connection over to the selector engine. Messages are then queued to it, and piece messages are sent from memory rather than transferred from the file.
+        void attachConnection(SelectorEngine.Connection connection) {
+            outputLock.lock();
+            try {
+                this.connection = connection;
+                socketChannel = null;
+            } finally {
+                outputLock.unlock();
+            }
+        }
+
         //Only call this method when neighbor is reconnected.
         private void resetMessageHandler(Socket socket) {
             if (socket == null) {
@@ -469,14 +1029,23 @@ public final class NeighborPeer extends Peer {
 
             estimatedRTT = 0;
             deviationRTT = 0;
-            requestedPieceQueue.clear();
-            synchronized (socketLock) {
+            requestedPieceList.clear();
+            requestWindow.reset();
+            socketLock.lock();
+            try {
                 this.socket = socket;
+            } finally {
+                socketLock.unlock();
             }
             try {
                 input = new DataInputStream(socket.getInputStream());
-                synchronized (outputLock) {
+                outputLock.lock();
+                try {
                     output = new DataOutputStream(socket.getOutputStream());
+                    socketChannel = socket.getChannel();
+                    connection = null;
+                } finally {
+                    outputLock.unlock();
                 }
             } catch (IOException e) {
                 P2PLogger.log("IOException happens when replacing socket. Exception is not rethrown.");
@@ -484,64 +1053,166 @@ public final class NeighborPeer extends Peer {
             }
         }
 
-        private boolean isPieceRequested(int pieceIndex) {
-            return requestedPieceQueue.stream().anyMatch(p -> p.getPieceIndex() == pieceIndex);
+        public boolean isPieceRequested(int pieceIndex) {
+            return requestedPieceList.contains(pieceIndex);
         }
 
-        //Return the number of times that Request Message should be sent. The number is calculated based on network delay.
+        //Takes the request out of flight and updates the RTT estimates and the request window. The caller then fills the window again.
+        //A request that arrives after timing out still updates the RTT estimates, but not the window, as the window has backed off for it already.
         @SuppressWarnings("NonAtomicOperationOnVolatileField")
-        private int checkPieceReceived(int pieceIndex) {
-            int requestSendingTimes;
+        private void checkPieceReceived(int pieceIndex, int pieceLength) {
+            boolean timedOut = requestedPieceList.isTimedOut(pieceIndex);
+            long sentTimestamp = requestedPieceList.remove(pieceIndex);
+            if (sentTimestamp < 0) {
+                return;
+            }
 
-            RequestedPiece requestedPiece = requestedPieceQueue.stream().filter(p -> p.getPieceIndex() == pieceIndex).findFirst().orElse(null);
-            requestedPieceQueue.remove(requestedPiece);
-            if (requestedPiece == null) {
-                return -1;
+            long sampleRTT = System.currentTimeMillis() - sentTimestamp;
+            if (!timedOut) {
+                requestWindow.onDelivered(sampleRTT, pieceLength);
+            }
+            estimatedRTT = (7 * estimatedRTT + sampleRTT) / 8;
+            deviationRTT = (3 * deviationRTT + Math.abs(sampleRTT - estimatedRTT)) / 4;     //Use new estimatedRTT to calculate deviationRTT
 
+            if (DEBUG) {
+                P2PLogger.log("[DEBUG] Peer " + hostPeer.getPeerID() + " received piece " + pieceIndex + " from Peer " + neighborPeer.getPeerID() + ": Sample RTT = " + sampleRTT + "ms; New Estimated RTT = " + estimatedRTT + "ms; New Deviation RTT = " + deviationRTT + "ms; Request Window = " + requestWindow.getWindow() + ".");
             }
+        }
 
-            long sampleRTT = System.currentTimeMillis() - requestedPiece.getSentTimestamp();
-            if (sampleRTT > estimatedRTT + deviationRTT) {
-                if (requestedPieceQueue.isEmpty()) {
-                    requestSendingTimes = 1;
-                } else {
-                    requestSendingTimes = 0;
+        //Reads the socket input stream as a channel, through inputChunk. Only used by the message listener.
+        private final class InputChannel implements ReadableByteChannel {
+
+            @Override
+            public int read(ByteBuffer buffer) throws IOException {
+                if (inputChunk == null) {
+                    inputChunk = new byte[STREAM_CHUNK_SIZE];
                 }
-            } else {
-                if (requestedPieceQueue.size() > 200) {
-                    requestSendingTimes = 0;
-                } else {
-                    requestSendingTimes = 2;
+                int count = input.read(inputChunk, 0, Math.min(inputChunk.length, buffer.remaining()));
+                if (count > 0) {
+                    buffer.put(inputChunk, 0, count);
                 }
+                return count;
             }
 
-            estimatedRTT = (7 * estimatedRTT + sampleRTT) / 8;
-            deviationRTT = (3 * deviationRTT + Math.abs(sampleRTT - estimatedRTT)) / 4;     //Use new estimatedRTT to calculate deviationRTT
+            @Override
+            public boolean isOpen() {
+                return !socket.isClosed();
+            }
 
-            if (DEBUG) {
-                P2PLogger.log("[DEBUG] Peer " + hostPeer.getPeerID() + " received piece " + pieceIndex + " from Peer " + neighborPeer.getPeerID() + ": Sample RTT = " + sampleRTT + "ms; New Estimated RTT = " + estimatedRTT + "ms; New Deviation RTT = " + deviationRTT + "ms; Request Sending Times = " + requestSendingTimes + ".");
+            @Override
+            public void close() {
+                //Socket is closed by the message handler.
             }
-            return requestSendingTimes;
+
         }
 
-        private final class RequestedPiece {
+        //Requests in flight to this neighbor, in the order they were sent. Kept in arrays, so requesting a piece allocates nothing.
+        //Guarded by itself. Grows when full, and never shrinks.
+        private final class RequestedPieceList {
+
+            private static final int INITIAL_CAPACITY = 64;
 
-            private final int pieceIndex;
-            private final long sentTimestamp;
+            private int[] pieceIndexes;
+            private long[] sentTimestamps;
+            private boolean[] timedOuts;
+            private int size;
 
-            public RequestedPiece(int pieceIndex, long sentTimestamp) {
-                this.pieceIndex = pieceIndex;
-                this.sentTimestamp = sentTimestamp;
+            public RequestedPieceList() {
+                pieceIndexes = new int[INITIAL_CAPACITY];
+                sentTimestamps = new long[INITIAL_CAPACITY];
+                timedOuts = new boolean[INITIAL_CAPACITY];
+                size = 0;
             }
 
-            public int getPieceIndex() {
-                return pieceIndex;
+            //Returns false if the piece is requested already. Nothing is added.
+            public synchronized boolean add(int pieceIndex, long sentTimestamp) {
+                if (indexOf(pieceIndex) >= 0) {
+                    return false;
+                }
+                if (size == pieceIndexes.length) {
+                    pieceIndexes = Arrays.copyOf(pieceIndexes, 2 * size);
+                    sentTimestamps = Arrays.copyOf(sentTimestamps, 2 * size);
+                    timedOuts = Arrays.copyOf(timedOuts, 2 * size);
+                }
+                pieceIndexes[size] = pieceIndex;
+                sentTimestamps[size] = sentTimestamp;
+                timedOuts[size] = false;
+                size++;
+                return true;
             }
 
-            public long getSentTimestamp() {
+            //Returns the time the removed request was sent.
+            //Returns -1 if the piece is not requested.
+            public synchronized long remove(int pieceIndex) {
+                int i = indexOf(pieceIndex);
+                if (i < 0) {
+                    return -1;
+                }
+                long sentTimestamp = sentTimestamps[i];
+                int movedCount = size - i - 1;          //Keeps the sending order.
+                System.arraycopy(pieceIndexes, i + 1, pieceIndexes, i, movedCount);
+                System.arraycopy(sentTimestamps, i + 1, sentTimestamps, i, movedCount);
+                System.arraycopy(timedOuts, i + 1, timedOuts, i, movedCount);
+                size--;
                 return sentTimestamp;
             }
 
+            public synchronized void clear() {
+                size = 0;
+            }
+
+            public synchronized int size() {
+                return size;
+            }
+
+            public synchronized boolean contains(int pieceIndex) {
+                return indexOf(pieceIndex) >= 0;
+            }
+
+            public synchronized boolean isTimedOut(int pieceIndex) {
+                int i = indexOf(pieceIndex);
+                return i >= 0 && timedOuts[i];
+            }
+
+            //Requests that have not timed out.
+            public synchronized int getFlyingCount() {
+                int count = 0;
+                for (int i = 0; i < size; i++) {
+                    if (!timedOuts[i]) {
+                        count++;
+                    }
+                }
+                return count;
+            }
+
+            //Marks requests sent more than timeout ago. Returns the number marked now.
+            public synchronized int markTimedOut(long now, long timeout) {
+                int count = 0;
+                for (int i = 0; i < size; i++) {
+                    if (!timedOuts[i] && now - sentTimestamps[i] > timeout) {
+                        timedOuts[i] = true;
+                        count++;
+                    }
+                }
+                return count;
+            }
+
+            //Clears the requested pieces from the candidate words.
+            public synchronized void clearRequested(long[] candidates) {
+                for (int i = 0; i < size; i++) {
+                    Peer.clearBit(candidates, pieceIndexes[i]);
+                }
+            }
+
+            private int indexOf(int pieceIndex) {
+                for (int i = 0; i < size; i++) {
+                    if (pieceIndexes[i] == pieceIndex) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+
         }
 
         public final class MessageHandlerResult {
@@ -2,19 +2,31 @@ package p2p;
 
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.locks.ReentrantLock;
 
 public final class P2PLogger {
 
     public static final boolean DEBUG = false;
     private static final boolean LOG = true;
 
+    private static final DateTimeFormatter SECOND_FORMATTER = DateTimeFormatter.ofPattern("MM/dd/yyyy HH:mm:ss.");
+
     private static PrintWriter fileIO;
-    private static final Object fileIOLock;
+    private static final ReentrantLock fileIOLock;
+    private static final StringBuilder lineBuilder;     //Guarded by fileIOLock.
+    private static char[] lineChars;                    //Guarded by fileIOLock.
+    private static long currentSecond;                  //Guarded by fileIOLock.
+    private static String currentSecondText;            //Guarded by fileIOLock. Time up to the second, formatted once a second.
 
     static {
-        fileIOLock = new Object();
+        fileIOLock = new ReentrantLock();
+        lineBuilder = new StringBuilder(256);
+        lineChars = new char[256];
+        currentSecond = Long.MIN_VALUE;
     }
 
     public P2PLogger(String fileName) {
@@ -34,14 +46,48 @@ public final class P2PLogger {
             return;
         }
 
-        synchronized (fileIOLock) {
-            fileIO.println(getCurrentTime() + ": " + string);
+        beginLine().append(string);
+        endLine();
+    }
+
+    //Starts a log line in a shared buffer, for lines logged for every piece. Nothing is allocated once the buffer has grown.
+    //Append the message to the returned builder, then call endLine. The log is locked in between, so do not log while appending.
+    public static StringBuilder beginLine() {
+        fileIOLock.lock();
+        lineBuilder.setLength(0);
+        appendCurrentTime(lineBuilder);
+        return lineBuilder.append(": ");
+    }
+
+    //Writes the line started by beginLine, and unlocks the log.
+    public static void endLine() {
+        try {
+            if (!LOG) {
+                return;
+            }
+            int length = lineBuilder.length();
+            if (lineChars.length < length) {
+                lineChars = new char[Math.max(length, 2 * lineChars.length)];
+            }
+            lineBuilder.getChars(0, length, lineChars, 0);
+            fileIO.write(lineChars, 0, length);
+            fileIO.println();
             fileIO.flush();
+        } finally {
+            fileIOLock.unlock();
         }
     }
 
-    private static String getCurrentTime() {
-        return LocalDateTime.now().format(DateTimeFormatter.ofPattern("MM/dd/yyyy HH:mm:ss.SSS"));
+    //Appends the time as MM/dd/yyyy HH:mm:ss.SSS. Only the milliseconds are formatted here.
+    private static void appendCurrentTime(StringBuilder builder) {
+        long now = System.currentTimeMillis();
+        long second = now / 1000;
+        if (second != currentSecond) {
+            currentSecond = second;
+            currentSecondText = LocalDateTime.ofInstant(Instant.ofEpochSecond(second), ZoneId.systemDefault()).format(SECOND_FORMATTER);
+        }
+        int millisecond = (int) (now % 1000);        //Epoch milliseconds are never negative.
+        builder.append(currentSecondText).append((char) ('0' + millisecond / 100)).append((char) ('0' + millisecond / 10 % 10)).append((char) ('0' + millisecond % 10));
     }
 
     public void closeFile() {
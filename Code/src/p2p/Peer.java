@@ -1,15 +1,28 @@
 package p2p;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class Peer {
 
+    private static final int SCRATCH_WORDS_COUNT = 16;
+    private static final ArrayBlockingQueue<long[]> SCRATCH_WORDS_QUEUE = new ArrayBlockingQueue<>(SCRATCH_WORDS_COUNT);     //Free word arrays for findInterestingPieces.
+    private static final byte[] REVERSED_BITS = new byte[256];      //Byte with its bit order reversed, indexed by the unsigned byte.
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            REVERSED_BITS[i] = (byte) (Integer.reverse(i) >>> 24);
+        }
+    }
+
     private final int peerID;
     private final String hostname;
     private final int port;
     private final int pieceCount;
-    private final BitSet pieceStatus;        //bit representation of file piece completion status
+    private final AtomicBitSet pieceStatus;  //bit representation of file piece completion status. Read and updated without locking.
 
     public enum MessageType {
 
@@ -20,12 +33,18 @@ public class Peer {
         HAVE((byte) 4),
         BITFIELD((byte) 5),
         REQUEST((byte) 6),
-        PIECE((byte) 7);
+        PIECE((byte) 7),
+        CANCEL((byte) 8),
+        HAVE_ALL((byte) 9),             //Replaces BITFIELD if the peer has every piece. Only sent if both peers support compact bitfields.
+        HAVE_NONE((byte) 10),           //Replaces BITFIELD if the peer has no piece. Only sent if both peers support compact bitfields.
+        RLE_BITFIELD((byte) 11);        //Replaces BITFIELD if run-length encoding is shorter. Only sent if both peers support compact bitfields.
+
+        private static final MessageType[] TYPES = values();        //values() returns a new array on every call.
 
         private final byte b;
 
         MessageType(byte b) {
-            if (b > 7) {
+            if (b > 11) {
                 throw new IllegalArgumentException("Invalid b happens when creating MessageType.");
             }
 
@@ -41,8 +60,8 @@ public class Peer {
         }
 
         public static MessageType typeOf(byte b) {
-            if (b <= 7) {
-                return values()[b];
+            if (b >= 0 && b <= 11) {
+                return TYPES[b];
             } else {
                 return null;
             }
@@ -68,7 +87,7 @@ public class Peer {
         this.hostname = hostname;
         this.port = port;
         this.pieceCount = pieceCount;
-        pieceStatus = new BitSet();
+        pieceStatus = new AtomicBitSet(pieceCount);
         if (hasFile) {
             pieceStatus.set(0, pieceCount);
         }
@@ -107,17 +126,60 @@ public class Peer {
         return pieceCount;
     }
 
-    public BitSet getPieceStatus() {
+    public AtomicBitSet getPieceStatus() {
         return pieceStatus;
     }
 
     public byte[] getPieceStatusAsBitfield() {
-        byte[] bitfield;
-        synchronized (pieceStatus) {
-            bitfield = pieceStatus.toByteArray();
+        byte[] bitfield = new byte[getBitfieldLength()];
+        putPieceStatusAsBitfield(ByteBuffer.wrap(bitfield));
+        return bitfield;
+    }
+
+    //Length of the full bitfield in bytes, including spare bits at the end.
+    public int getBitfieldLength() {
+        return (pieceCount + 7) / 8;
+    }
+
+    //Puts the full bitfield into the buffer without creating intermediate arrays.
+    //Buffer must have getBitfieldLength() bytes remaining.
+    public void putPieceStatusAsBitfield(ByteBuffer buffer) {
+        for (int i = 0; i < getBitfieldLength(); i++) {
+            int b = (int) (pieceStatus.getWord(i >>> 3) >>> ((i & 7) << 3)) & 0xFF;
+            buffer.put(REVERSED_BITS[b]);       //P2P protocol bitfield uses big-endian.
         }
-        //P2P protocol bitfield uses big-endian. Need to switch.
-        return switchBitEndian(bitfield);
+    }
+
+    //Returns the piece status run-length encoded, for the Rle Bitfield Message.
+    //Runs of missing and complete pieces alternate, starting with missing pieces, so the first run may be 0. Runs add up to the piece count.
+    //Each run is an unsigned varint: 7 bits per byte, low bits first, high bit set on every byte but the last.
+    //Returns null if the encoding is not shorter than the full bitfield. Stops encoding as soon as it is not.
+    public byte[] getPieceStatusAsRunLengthBitfield() {
+        byte[] bytes = new byte[getBitfieldLength()];
+        int length = 0;
+        int position = 0;
+        boolean complete = false;
+        while (position < pieceCount) {
+            int nextPosition = complete ? pieceStatus.nextClearBit(position) : pieceStatus.nextSetBit(position);
+            if (nextPosition < 0) {
+                nextPosition = pieceCount;
+            }
+            int run = nextPosition - position;
+            while (true) {
+                if (length == bytes.length - 1) {
+                    return null;        //Not shorter than the full bitfield.
+                }
+                if ((run & ~0x7F) == 0) {
+                    bytes[length++] = (byte) run;
+                    break;
+                }
+                bytes[length++] = (byte) (run & 0x7F | 0x80);
+                run >>>= 7;
+            }
+            position = nextPosition;
+            complete = !complete;
+        }
+        return Arrays.copyOf(bytes, length);
     }
 
     //Returns 0 if piece status is set successfully.
@@ -128,14 +190,71 @@ public class Peer {
             return -1;
         }
 
-        BitSet bitSet = BitSet.valueOf(switchBitEndian(bitfield));    //P2P protocol bitfield uses big-endian. Need to switch.
-        if (bitSet.length() > pieceCount) {
+        long[] words = new long[(bitfield.length + 7) >>> 3];
+        for (int i = 0; i < bitfield.length; i++) {
+            words[i >>> 3] |= (REVERSED_BITS[bitfield[i] & 0xFF] & 0xFFL) << ((i & 7) << 3);     //P2P protocol bitfield uses big-endian. Need to switch.
+        }
+        return setPieceStatus(BitSet.valueOf(words));
+    }
+
+    //Sets piece status from the payload of an Rle Bitfield Message. See getPieceStatusAsRunLengthBitfield.
+    //Returns 0 if piece status is set successfully.
+    //Returns -1 if input is invalid. No piece status is set.
+    @SuppressWarnings("UnusedReturnValue")
+    public int setPieceStatusFromRunLength(ByteBuffer buffer) {
+        if (buffer == null) {
+            return -1;
+        }
+
+        BitSet bitSet = new BitSet(pieceCount);
+        int position = 0;
+        boolean complete = false;
+        while (buffer.hasRemaining()) {
+            int run = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (!buffer.hasRemaining() || shift > 28) {
+                    return -1;
+                }
+                byte b = buffer.get();
+                run |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            if (run < 0 || run > pieceCount - position) {
+                return -1;
+            }
+            if (complete) {
+                bitSet.set(position, position + run);
+            }
+            position += run;
+            complete = !complete;
+        }
+        if (position != pieceCount) {
             return -1;
         }
-        synchronized (pieceStatus) {
-            pieceStatus.clear();
-            pieceStatus.or(bitSet);
+        return setPieceStatus(bitSet);
+    }
+
+    //Sets every piece complete, or none, as announced by a Have All or Have None Message.
+    @SuppressWarnings("UnusedReturnValue")
+    public int setPieceStatus(boolean complete) {
+        BitSet bitSet = new BitSet(pieceCount);
+        if (complete) {
+            bitSet.set(0, pieceCount);
+        }
+        return setPieceStatus(bitSet);
+    }
+
+    //Returns 0 if piece status is set successfully.
+    //Returns -1 if input is invalid. No piece status is set.
+    @SuppressWarnings("UnusedReturnValue")
+    public int setPieceStatus(BitSet bitSet) {
+        if (bitSet == null || bitSet.length() > pieceCount) {
+            return -1;
         }
+
+        pieceStatus.copyFrom(bitSet);
         return 0;
     }
 
@@ -147,86 +266,124 @@ public class Peer {
             return -1;
         }
 
-        synchronized (pieceStatus) {
-            pieceStatus.set(pieceIndex);
-        }
+        pieceStatus.set(pieceIndex);
         return 0;
     }
 
     public int getCompletePieceCount() {
-        synchronized (pieceStatus) {
-            return pieceStatus.cardinality();
-        }
+        return pieceStatus.cardinality();
     }
 
     public boolean hasPiece(int pieceIndex) {
-        boolean hasPiece;
-        if (pieceIndex < 0 || pieceIndex >= pieceCount) {
-            return false;
-        }
-
-        synchronized (pieceStatus) {
-            hasPiece = pieceStatus.get(pieceIndex);
-        }
-        return hasPiece;
+        return pieceStatus.get(pieceIndex);
     }
 
     public boolean hasCompleteFile() {
-        boolean hasCompleteFile;
-        synchronized (pieceStatus) {
-            hasCompleteFile = (pieceStatus.cardinality() == pieceCount);
-        }
-        return hasCompleteFile;
+        return pieceStatus.cardinality() == pieceCount;
     }
 
     //Returns true if this peer is interested in the argument peer.
     public boolean isInterested(Peer peer) {
-        BitSet bitSet;
         if (peer == null) {
             return false;
         }
 
-        synchronized (peer.getPieceStatus()) {
-            bitSet = (BitSet) peer.getPieceStatus().clone();
-        }
-        synchronized (pieceStatus) {
-            bitSet.andNot(pieceStatus);
+        for (int i = 0; i < pieceStatus.getWordCount(); i++) {
+            if ((peer.getPieceStatus().getWord(i) & ~pieceStatus.getWord(i)) != 0) {
+                return true;
+            }
         }
-        return !bitSet.isEmpty();
+        return false;
     }
 
     //Returns a piece index for this peer to request from the argument peer.
     //Returns -1 if this peer has no interest in the argument peer.
     public int findNextInterestingPiece(Peer peer) {
-        BitSet bitSet;
         if (peer == null) {
             return -1;
         }
 
-        synchronized (peer.getPieceStatus()) {
-            bitSet = (BitSet) peer.getPieceStatus().clone();
-        }
-        synchronized (pieceStatus) {
-            bitSet.andNot(pieceStatus);
+        AtomicBitSet peerPieceStatus = peer.getPieceStatus();
+        int candidateCount = 0;
+        for (int i = 0; i < pieceStatus.getWordCount(); i++) {
+            candidateCount += Long.bitCount(peerPieceStatus.getWord(i) & ~pieceStatus.getWord(i));
         }
-        if (bitSet.isEmpty()) {
+        if (candidateCount == 0) {
             return -1;
         }
 
-        //BitSet toString() returns a string like: {1, 2, 4, 5, 9, 10, 11, 12}
-        String pieceIndexString = bitSet.toString();
-        String[] pieceIndexStringArray = pieceIndexString.substring(1, pieceIndexString.length() - 1).split(", ");
         //Randomly select a piece index. This could prevent requesting the same piece from multiple neighbor peers.
-        int arrayIndex = new Random().nextInt(pieceIndexStringArray.length);
-        return Integer.parseInt(pieceIndexStringArray[arrayIndex]);
+        //Whole words are skipped by their bit count, then the piece is found inside one word.
+        int rank = ThreadLocalRandom.current().nextInt(candidateCount);
+        int pieceIndex = -1;
+        for (int i = 0; i < pieceStatus.getWordCount(); i++) {
+            long word = peerPieceStatus.getWord(i) & ~pieceStatus.getWord(i);
+            int wordCount = Long.bitCount(word);
+            if (wordCount == 0) {
+                continue;
+            }
+            if (rank >= wordCount) {
+                rank -= wordCount;
+                pieceIndex = (i << 6) + 63 - Long.numberOfLeadingZeros(word);     //Kept in case pieces complete between the two passes.
+                continue;
+            }
+            for (; rank > 0; rank--) {
+                word &= word - 1;
+            }
+            return (i << 6) + Long.numberOfTrailingZeros(word);
+        }
+        return pieceIndex;
+    }
+
+    //Returns the pieces the argument peer has and this peer lacks, as words like AtomicBitSet.getWord, in an array taken from a shared free list.
+    //Pass it to releaseInterestingPieces when done.
+    //Arrays are shared by all threads rather than kept per thread, so a thread per neighbor does not hold one of piece count bits each.
+    //Nothing is allocated once the free list holds arrays of the word count.
+    protected long[] findInterestingPieces(Peer peer) {
+        long[] words = SCRATCH_WORDS_QUEUE.poll();
+        if (words == null || words.length != pieceStatus.getWordCount()) {
+            words = new long[pieceStatus.getWordCount()];
+        }
+        if (peer == null) {
+            Arrays.fill(words, 0);
+            return words;
+        }
+
+        AtomicBitSet peerPieceStatus = peer.getPieceStatus();
+        for (int i = 0; i < words.length; i++) {
+            words[i] = peerPieceStatus.getWord(i) & ~pieceStatus.getWord(i);
+        }
+        return words;
+    }
+
+    protected static void releaseInterestingPieces(long[] words) {
+        SCRATCH_WORDS_QUEUE.offer(words);       //Dropped if the free list is full.
+    }
+
+    //Returns the lowest piece index set in the words at fromIndex or after. Returns -1 if there is none.
+    static int nextSetBit(long[] words, int fromIndex) {
+        if (fromIndex < 0) {
+            fromIndex = 0;
+        }
+        int wordIndex = fromIndex >>> 6;
+        if (wordIndex >= words.length) {
+            return -1;
+        }
+
+        long word = words[wordIndex] & (-1L << fromIndex);
+        while (word == 0) {
+            if (++wordIndex == words.length) {
+                return -1;
+            }
+            word = words[wordIndex];
+        }
+        return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
     }
 
-    private byte[] switchBitEndian(byte[] bytes) {
-        for (int i = 0; i < bytes.length; i++) {
-            byte b = bytes[i];
-            bytes[i] = (byte) ((b & 0b00000001) << 7 | (b & 0b00000010) << 5 | (b & 0b00000100) << 3 | (b & 0b00001000) << 1 | (b & 0b00010000) >> 1 | (b & 0b00100000) >> 3 | (b & 0b01000000) >> 5 | (b & 0b10000000) >> 7);
+    static void clearBit(long[] words, int bitIndex) {
+        if (bitIndex >= 0 && bitIndex >>> 6 < words.length) {
+            words[bitIndex >>> 6] &= ~(1L << bitIndex);
         }
-        return bytes;
     }
 
 }
@@ -0,0 +1,287 @@
+package p2p;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.function.IntConsumer;
+
+//Assembles pieces from fixed size blocks, so requests and replies on the wire are smaller than a piece.
+//Blocks of one piece may come from different neighbors. A piece is written to the shared file once all its blocks are in.
+//Every block has a block id, pieceIndex * blocksPerPiece + blockIndex, which stands for the block wherever a piece index would be used.
+public final class PieceAssembler {
+
+    private static final int FREE_BUFFER_COUNT = 16;
+
+    private final HostPeer hostPeer;
+    private final SharedFile sharedFile;
+    private final int blockSize;
+    private final int blocksPerPiece;
+    private final HashMap<Integer, PartialPiece> partialPieceMap;      //Guarded by itself.
+    private final ArrayDeque<byte[]> freeBufferQueue;                  //Guarded by partialPieceMap.
+    private final Random random;
+
+    public PieceAssembler(HostPeer hostPeer, SharedFile sharedFile, int blockSize) {
+        if (hostPeer == null) {
+            throw new IllegalArgumentException("Invalid hostPeer happens when creating PieceAssembler.");
+        }
+        if (sharedFile == null) {
+            throw new IllegalArgumentException("Invalid sharedFile happens when creating PieceAssembler.");
+        }
+        if (blockSize < 1 || blockSize > sharedFile.getPieceSize()) {
+            throw new IllegalArgumentException("Invalid blockSize happens when creating PieceAssembler.");
+        }
+        if ((long) sharedFile.getPieceCount() * ((sharedFile.getPieceSize() + blockSize - 1) / blockSize) > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid blockSize happens when creating PieceAssembler. Too many blocks.");
+        }
+
+        this.hostPeer = hostPeer;
+        this.sharedFile = sharedFile;
+        this.blockSize = blockSize;
+        blocksPerPiece = (sharedFile.getPieceSize() + blockSize - 1) / blockSize;
+        partialPieceMap = new HashMap<>();
+        freeBufferQueue = new ArrayDeque<>();
+        random = new Random();
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlocksPerPiece() {
+        return blocksPerPiece;
+    }
+
+    public int getPartialPieceCount() {
+        synchronized (partialPieceMap) {
+            return partialPieceMap.size();
+        }
+    }
+
+    //Returns -1 if the block is not inside the piece.
+    public int getBlockID(int pieceIndex, int blockOffset) {
+        int pieceLength = sharedFile.getActualPieceSize(pieceIndex);
+        if (pieceLength < 0 || blockOffset < 0 || blockOffset >= pieceLength || blockOffset % blockSize != 0) {
+            return -1;
+        }
+        return pieceIndex * blocksPerPiece + blockOffset / blockSize;
+    }
+
+    public int getPieceIndex(int blockID) {
+        return blockID < 0 ? -1 : blockID / blocksPerPiece;
+    }
+
+    public int getBlockOffset(int blockID) {
+        return blockID < 0 ? -1 : (blockID % blocksPerPiece) * blockSize;
+    }
+
+    //Returns -1 if blockID is invalid.
+    public int getBlockLength(int blockID) {
+        int pieceLength = sharedFile.getActualPieceSize(getPieceIndex(blockID));
+        int blockOffset = getBlockOffset(blockID);
+        if (pieceLength < 0 || blockOffset >= pieceLength) {
+            return -1;
+        }
+        return Math.min(blockSize, pieceLength - blockOffset);
+    }
+
+    //Returns a block id for the host to request from the neighbor.
+    //Blocks of pieces already under way come first, so pieces complete early. Then a new piece is started.
+    //If neither is possible, a block requested before but still missing is returned, once no other neighbor holds a reservation for it,
+    //in case its request was lost or its neighbor left.
+    //Returns -1 if the neighbor has nothing the host needs right now.
+    public int findNextBlock(NeighborPeer neighborPeer) {
+        ReservationTable reservationTable = hostPeer.getReservationTable();
+        synchronized (partialPieceMap) {
+            for (PartialPiece partialPiece : partialPieceMap.values()) {
+                if (!neighborPeer.hasPiece(partialPiece.pieceIndex)) {
+                    continue;
+                }
+                int blockIndex = partialPiece.requestedBlocks.nextClearBit(0);
+                if (blockIndex < partialPiece.blockCount) {
+                    partialPiece.requestedBlocks.set(blockIndex);
+                    return partialPiece.pieceIndex * blocksPerPiece + blockIndex;
+                }
+            }
+
+            int pieceIndex = findNewPiece(neighborPeer);
+            if (pieceIndex >= 0) {
+                PartialPiece partialPiece = new PartialPiece(pieceIndex);
+                partialPieceMap.put(pieceIndex, partialPiece);
+                partialPiece.requestedBlocks.set(0);
+                return pieceIndex * blocksPerPiece;
+            }
+
+            for (PartialPiece partialPiece : partialPieceMap.values()) {
+                if (!neighborPeer.hasPiece(partialPiece.pieceIndex)) {
+                    continue;
+                }
+                int firstBlockIndex = random.nextInt(partialPiece.blockCount);      //Neighbors retrying at once start from different blocks.
+                for (int i = 0; i < partialPiece.blockCount; i++) {
+                    int blockIndex = (firstBlockIndex + i) % partialPiece.blockCount;
+                    int blockID = partialPiece.pieceIndex * blocksPerPiece + blockIndex;
+                    if (!partialPiece.receivedBlocks.get(blockIndex) && !reservationTable.isReservedByOther(blockID, neighborPeer)
+                            && !neighborPeer.getMessageHandler().isPieceRequested(blockID)) {
+                        return blockID;
+                    }
+                }
+            }
+            return -1;
+        }
+    }
+
+    //Passes every block of a partial piece that has not been received yet, if the neighbor has the piece. Used in endgame.
+    //Blocks are collected first, so the action runs without holding partialPieceMap.
+    public void forEachMissingBlock(NeighborPeer neighborPeer, IntConsumer action) {
+        int[] blockIDs;
+        int blockCount = 0;
+        synchronized (partialPieceMap) {
+            blockIDs = new int[partialPieceMap.size() * blocksPerPiece];
+            for (PartialPiece partialPiece : partialPieceMap.values()) {
+                if (!neighborPeer.hasPiece(partialPiece.pieceIndex)) {
+                    continue;
+                }
+                for (int i = partialPiece.receivedBlocks.nextClearBit(0); i < partialPiece.blockCount; i = partialPiece.receivedBlocks.nextClearBit(i + 1)) {
+                    partialPiece.requestedBlocks.set(i);
+                    blockIDs[blockCount++] = partialPiece.pieceIndex * blocksPerPiece + i;
+                }
+            }
+        }
+        for (int i = 0; i < blockCount; i++) {
+            action.accept(blockIDs[i]);
+        }
+    }
+
+    //Reads the block payload into its piece, from the source channel if there is one, otherwise from the input stream.
+    //Exactly the block length is consumed unless IOException is thrown.
+    //Returns 0 if the block completes its piece, and the piece is written to the shared file.
+    //Returns 1 if the block is kept, and the piece still misses other blocks.
+    //Returns -1 if the block is not wanted, or completes a piece that fails to be written. Piece must not be marked complete.
+    public int receiveBlock(int blockID, DataInputStream input, ReadableByteChannel source) throws IOException {
+        int pieceIndex = getPieceIndex(blockID);
+        int blockIndex = blockID % blocksPerPiece;
+        int blockOffset = getBlockOffset(blockID);
+        int blockLength = getBlockLength(blockID);
+        PartialPiece partialPiece;
+        synchronized (partialPieceMap) {
+            partialPiece = partialPieceMap.get(pieceIndex);
+            if (partialPiece == null || partialPiece.receivedBlocks.get(blockIndex)) {
+                partialPiece = null;        //Piece is complete already, or this block came from another neighbor first.
+            } else {
+                partialPiece.receivedBlocks.set(blockIndex);        //Claimed before reading, so no other thread reads into the same range.
+                partialPiece.requestedBlocks.set(blockIndex);
+            }
+        }
+        if (partialPiece == null) {
+            skip(input, blockLength);
+            return -1;
+        }
+
+        try {
+            if (source == null) {
+                input.readFully(partialPiece.data, blockOffset, blockLength);
+            } else {
+                ByteBuffer buffer = ByteBuffer.wrap(partialPiece.data, blockOffset, blockLength);
+                while (buffer.hasRemaining()) {
+                    if (source.read(buffer) < 0) {
+                        throw new EOFException();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            synchronized (partialPieceMap) {
+                partialPiece.receivedBlocks.clear(blockIndex);
+                partialPiece.requestedBlocks.clear(blockIndex);
+            }
+            throw e;
+        }
+
+        synchronized (partialPieceMap) {
+            partialPiece.landedBlockCount++;
+            if (partialPiece.landedBlockCount < partialPiece.blockCount) {
+                return 1;
+            }
+            partialPieceMap.remove(pieceIndex);
+        }
+
+        int result = sharedFile.writePiece(pieceIndex, partialPiece.data);      //Checked against the manifest, if any.
+        if (result != 0) {
+            P2PLogger.log("Assembled piece " + pieceIndex + " is discarded. Its blocks will be requested again.");
+        }
+        synchronized (partialPieceMap) {
+            if (freeBufferQueue.size() < FREE_BUFFER_COUNT && partialPiece.data.length == sharedFile.getPieceSize()) {
+                freeBufferQueue.add(partialPiece.data);
+            }
+        }
+        return result;
+    }
+
+    //Drops the partial piece. Call this when the host gets the piece by other means.
+    public void cancelPiece(int pieceIndex) {
+        synchronized (partialPieceMap) {
+            partialPieceMap.remove(pieceIndex);
+        }
+    }
+
+    //Picks a piece the neighbor has, the host lacks, and no partial piece covers.
+    //While streaming, the earliest piece of the streaming window comes first. Otherwise the rarest piece is picked.
+    //Must hold partialPieceMap.
+    private int findNewPiece(NeighborPeer neighborPeer) {
+        long[] candidates = hostPeer.findInterestingPieces(neighborPeer);
+        try {
+            for (int pieceIndex : partialPieceMap.keySet()) {
+                Peer.clearBit(candidates, pieceIndex);
+            }
+            StreamingWindow window = hostPeer.getStreamingWindow();
+            if (window != null && window.isEnabled()) {
+                int pieceIndex = Peer.nextSetBit(candidates, window.getWindowStart());
+                if (pieceIndex >= 0 && pieceIndex < window.getWindowEnd()) {
+                    return pieceIndex;
+                }
+            }
+            return hostPeer.getPieceAvailability().findRarestPiece(candidates);
+        } finally {
+            Peer.releaseInterestingPieces(candidates);
+        }
+    }
+
+    private void skip(DataInputStream input, int length) throws IOException {
+        while (length > 0) {
+            int skipped = input.skipBytes(length);
+            if (skipped <= 0) {
+                input.readByte();       //Throws EOFException at end of stream.
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    private final class PartialPiece {
+
+        private final int pieceIndex;
+        private final int blockCount;
+        private final byte[] data;
+        private final BitSet requestedBlocks;       //Guarded by partialPieceMap.
+        private final BitSet receivedBlocks;        //Claimed blocks, including those still being read. Guarded by partialPieceMap.
+        private int landedBlockCount;               //Blocks fully read. Guarded by partialPieceMap.
+
+        //Must hold partialPieceMap.
+        public PartialPiece(int pieceIndex) {
+            this.pieceIndex = pieceIndex;
+            int pieceLength = sharedFile.getActualPieceSize(pieceIndex);
+            blockCount = (pieceLength + blockSize - 1) / blockSize;
+            byte[] buffer = pieceLength == sharedFile.getPieceSize() ? freeBufferQueue.poll() : null;
+            data = buffer == null ? new byte[pieceLength] : buffer;
+            requestedBlocks = new BitSet(blockCount);
+            receivedBlocks = new BitSet(blockCount);
+            landedBlockCount = 0;
+        }
+
+    }
+
+}
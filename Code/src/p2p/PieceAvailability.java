@@ -0,0 +1,246 @@
+package p2p;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+//Number of peers, host and active neighbors, having each piece, and a histogram of those numbers.
+//The histogram is read from the availability levels below, so it is exact however many neighbors there are.
+//Counters are kept up to date as the host gets pieces and neighbors connect, disconnect, and announce pieces,
+//so neither picking a piece nor computing file health has to count again.
+//Pieces to pick are ones the host lacks, so the host adds the same to each of them and rarest-first order is as if only neighbors counted.
+//Pieces are also kept sorted by availability, one range of orderedPieces per availability level. A count change moves its piece to the edge of
+//the next range with one swap, so picking the rarest piece walks the lowest levels instead of reading the count of every candidate.
+public final class PieceAvailability {
+
+    private final int pieceCount;
+    private final AtomicIntegerArray availabilityArray;
+    private final Object orderLock;                     //Guards orderedPieces, piecePositions and levelStarts, and orders count changes with them.
+    private final int[] orderedPieces;                  //Piece indexes sorted by availability.
+    private final int[] piecePositions;                 //Position of each piece in orderedPieces.
+    private int[] levelStarts;                          //First position in orderedPieces of each availability. Grows with the highest availability.
+
+    public PieceAvailability(int pieceCount) {
+        if (pieceCount < 1) {
+            throw new IllegalArgumentException("Invalid pieceCount happens when creating PieceAvailability.");
+        }
+
+        this.pieceCount = pieceCount;
+        availabilityArray = new AtomicIntegerArray(pieceCount);
+        orderLock = new Object();
+        orderedPieces = new int[pieceCount];
+        piecePositions = new int[pieceCount];
+        for (int i = 0; i < pieceCount; i++) {
+            orderedPieces[i] = i;
+            piecePositions[i] = i;
+        }
+        levelStarts = new int[8];
+        Arrays.fill(levelStarts, 1, levelStarts.length, pieceCount);
+    }
+
+    public int getAvailability(int pieceIndex) {
+        if (pieceIndex < 0 || pieceIndex >= pieceCount) {
+            return -1;
+        }
+        return availabilityArray.get(pieceIndex);
+    }
+
+    //Number of pieces that exactly availability peers have. The size of that availability level.
+    public int getHistogramCount(int availability) {
+        if (availability < 0) {
+            return 0;
+        }
+        synchronized (orderLock) {
+            if (availability >= levelStarts.length) {
+                return 0;
+            }
+            return getLevelStart(availability + 1) - levelStarts[availability];
+        }
+    }
+
+    //Lowest availability of any piece. Reads the levels from 0 up, so it only scans as far as the answer.
+    public int getLowestAvailability() {
+        synchronized (orderLock) {
+            for (int level = 0; level < levelStarts.length; level++) {
+                if (getLevelStart(level + 1) > levelStarts[level]) {
+                    return level;
+                }
+            }
+            return levelStarts.length - 1;      //Not reached. Every piece is on some level.
+        }
+    }
+
+    //100% for every copy every piece has, plus the share of pieces that have one more copy than that. Read under one lock, so levels agree.
+    public int getHealthPercentage() {
+        synchronized (orderLock) {
+            int lowest = getLowestAvailability();
+            int fractionCount = pieceCount - (getLevelStart(lowest + 1) - levelStarts[lowest]);
+            return lowest * 100 + (int) ((long) fractionCount * 100 / pieceCount);
+        }
+    }
+
+    //Counts every piece the peer has. Call this when the peer becomes an active neighbor, and once for the host.
+    public void addPeer(Peer peer) {
+        AtomicBitSet pieceStatus = peer.getPieceStatus();
+        for (int i = pieceStatus.nextSetBit(0); i >= 0 && i < pieceCount; i = pieceStatus.nextSetBit(i + 1)) {
+            increment(i);
+        }
+    }
+
+    //Uncounts every piece the peer has. Call this when the peer stops being an active neighbor.
+    public void removePeer(Peer peer) {
+        AtomicBitSet pieceStatus = peer.getPieceStatus();
+        for (int i = pieceStatus.nextSetBit(0); i >= 0 && i < pieceCount; i = pieceStatus.nextSetBit(i + 1)) {
+            decrement(i);
+        }
+    }
+
+    //A neighbor announced a piece it did not have before, or the host completed one.
+    public void addPiece(int pieceIndex) {
+        if (pieceIndex >= 0 && pieceIndex < pieceCount) {
+            increment(pieceIndex);
+        }
+    }
+
+    //The host lost a piece it had completed.
+    public void removePiece(int pieceIndex) {
+        if (pieceIndex >= 0 && pieceIndex < pieceCount) {
+            decrement(pieceIndex);
+        }
+    }
+
+    //A peer replaced its piece status. Only pieces that changed are touched.
+    public void replacePieceStatus(BitSet oldStatus, BitSet newStatus) {
+        for (int i = oldStatus.nextSetBit(0); i >= 0 && i < pieceCount; i = oldStatus.nextSetBit(i + 1)) {
+            if (!newStatus.get(i)) {
+                decrement(i);
+            }
+        }
+        for (int i = newStatus.nextSetBit(0); i >= 0 && i < pieceCount; i = newStatus.nextSetBit(i + 1)) {
+            if (!oldStatus.get(i)) {
+                increment(i);
+            }
+        }
+    }
+
+    //Returns the candidate piece fewest neighbors have. Ties are broken at random, so neighbors are not all asked for the same piece.
+    //Candidates are words as from Peer.findInterestingPieces. Returns -1 if there is no candidate.
+    //If candidates are many, the lowest availability levels are walked from a random position until a candidate turns up.
+    //If they are few, or the walk passes too many pieces that are not candidates, the candidates are read one by one instead.
+    public int findRarestPiece(long[] candidates) {
+        int candidateCount = 0;
+        for (long word : candidates) {
+            candidateCount += Long.bitCount(word);
+        }
+        if (candidateCount == 0) {
+            return -1;
+        }
+
+        int walkLimit = Math.max(64, pieceCount >>> 6);     //About the cost of reading the candidate words once.
+        if (candidateCount > walkLimit) {
+            int pieceIndex = walkLevels(candidates, walkLimit);
+            if (pieceIndex >= 0) {
+                return pieceIndex;
+            }
+        }
+        return scanCandidates(candidates);
+    }
+
+    //Returns a candidate of the lowest level having one, starting each level at a random position.
+    //Level 0 is skipped, since no counted peer has those pieces, and the neighbor asked has every candidate.
+    //Returns -1 if no candidate turns up within walkLimit pieces.
+    private int walkLevels(long[] candidates, int walkLimit) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        synchronized (orderLock) {
+            for (int level = 1; level < levelStarts.length; level++) {
+                int start = levelStarts[level];
+                int size = getLevelStart(level + 1) - start;
+                if (size == 0) {
+                    continue;
+                }
+                int offset = random.nextInt(size);
+                for (int i = 0; i < size; i++) {
+                    if (walkLimit-- == 0) {
+                        return -1;
+                    }
+                    int pieceIndex = orderedPieces[start + (offset + i < size ? offset + i : offset + i - size)];
+                    if ((candidates[pieceIndex >>> 6] & (1L << pieceIndex)) != 0) {
+                        return pieceIndex;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    //Reads the count of every candidate. Ties are kept with equal chance.
+    private int scanCandidates(long[] candidates) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int rarestPieceIndex = -1;
+        int lowestAvailability = Integer.MAX_VALUE;
+        int tieCount = 0;
+        for (int wordIndex = 0; wordIndex < candidates.length; wordIndex++) {
+            for (long word = candidates[wordIndex]; word != 0; word &= word - 1) {
+                int i = (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+                if (i >= pieceCount) {
+                    break;
+                }
+                int availability = availabilityArray.get(i);
+                if (availability < lowestAvailability) {
+                    lowestAvailability = availability;
+                    rarestPieceIndex = i;
+                    tieCount = 1;
+                } else if (availability == lowestAvailability && random.nextInt(++tieCount) == 0) {
+                    rarestPieceIndex = i;
+                }
+            }
+        }
+        return rarestPieceIndex;
+    }
+
+    //Moves the piece to its new order level, which is also its histogram bucket.
+    private void increment(int pieceIndex) {
+        synchronized (orderLock) {
+            int availability = availabilityArray.getAndIncrement(pieceIndex);
+            if (availability + 2 > levelStarts.length) {
+                int length = levelStarts.length;
+                levelStarts = Arrays.copyOf(levelStarts, length * 2);
+                Arrays.fill(levelStarts, length, levelStarts.length, pieceCount);
+            }
+            int position = levelStarts[availability + 1] - 1;        //Last position of the old level becomes first of the new one.
+            swap(piecePositions[pieceIndex], position);
+            levelStarts[availability + 1] = position;
+        }
+    }
+
+    //Does nothing if no peer is counted for the piece, so counts and levels never go below 0.
+    private void decrement(int pieceIndex) {
+        synchronized (orderLock) {
+            int availability = availabilityArray.get(pieceIndex);
+            if (availability == 0) {
+                return;
+            }
+            availabilityArray.set(pieceIndex, availability - 1);
+            int position = levelStarts[availability];               //First position of the old level becomes last of the new one.
+            swap(piecePositions[pieceIndex], position);
+            levelStarts[availability] = position + 1;
+        }
+    }
+
+    //Must hold orderLock.
+    private int getLevelStart(int level) {
+        return level < levelStarts.length ? levelStarts[level] : pieceCount;
+    }
+
+    //Must hold orderLock.
+    private void swap(int position, int otherPosition) {
+        int pieceIndex = orderedPieces[position];
+        int otherPieceIndex = orderedPieces[otherPosition];
+        orderedPieces[position] = otherPieceIndex;
+        orderedPieces[otherPosition] = pieceIndex;
+        piecePositions[otherPieceIndex] = position;
+        piecePositions[pieceIndex] = otherPosition;
+    }
+
+}
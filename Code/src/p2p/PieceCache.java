@@ -0,0 +1,229 @@
+package p2p;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Least recently used cache of whole pieces in direct buffers, bounded by a byte budget.
+//Buffers handed out for pieces being read count against the budget too, so concurrent misses cannot allocate past it.
+//Buffers of evicted pieces are reused for new pieces, so the cache stops allocating once it is full.
+public final class PieceCache {
+
+    private final long capacity;                //in bytes
+    private final int pieceSize;
+    private final LinkedHashMap<Integer, Entry> entryMap;      //Access ordered. Guarded by itself.
+    private final ArrayDeque<ByteBuffer> freeBufferQueue;      //Guarded by entryMap.
+    private long cachedByteCount;                               //Guarded by entryMap.
+    private long leasedByteCount;                               //Buffers handed out by allocateBuffer and not yet put or released. Guarded by entryMap.
+    private final AtomicLong hitCount;
+    private final AtomicLong missCount;
+
+    public PieceCache(long capacity, int pieceSize) {
+        if (pieceSize < 1) {
+            throw new IllegalArgumentException("Invalid pieceSize happens when creating PieceCache.");
+        }
+        if (capacity < pieceSize) {
+            throw new IllegalArgumentException("Invalid capacity happens when creating PieceCache.");
+        }
+
+        this.capacity = capacity;
+        this.pieceSize = pieceSize;
+        entryMap = new LinkedHashMap<>(16, 0.75f, true);
+        freeBufferQueue = new ArrayDeque<>();
+        cachedByteCount = 0;
+        leasedByteCount = 0;
+        hitCount = new AtomicLong();
+        missCount = new AtomicLong();
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public long getCachedByteCount() {
+        synchronized (entryMap) {
+            return cachedByteCount;
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    //Returns true if the piece is cached and has been written to the target.
+    //Returns false if the piece is not cached. Nothing is written.
+    public boolean transferTo(int pieceIndex, WritableByteChannel target) throws IOException {
+        return transferTo(pieceIndex, 0, -1, target);
+    }
+
+    //Same as above, for length bytes from offset inside the piece. Length -1 means the rest of the piece.
+    public boolean transferTo(int pieceIndex, int offset, int length, WritableByteChannel target) throws IOException {
+        Entry entry = acquire(pieceIndex);
+        if (entry == null) {
+            return false;
+        }
+
+        try {
+            ByteBuffer view = entry.buffer.duplicate();
+            view.position(view.position() + offset);
+            if (length >= 0) {
+                view.limit(view.position() + length);
+            }
+            while (view.hasRemaining()) {
+                target.write(view);
+            }
+        } finally {
+            release(entry);
+        }
+        return true;
+    }
+
+    //Returns true if the piece is cached and has been copied into the array.
+    //Returns false if the piece is not cached or the array length does not match.
+    public boolean read(int pieceIndex, byte[] piece) {
+        Entry entry = acquire(pieceIndex);
+        if (entry == null) {
+            return false;
+        }
+
+        try {
+            if (entry.buffer.remaining() != piece.length) {
+                return false;
+            }
+            entry.buffer.duplicate().get(piece);
+        } finally {
+            release(entry);
+        }
+        return true;
+    }
+
+    //Returns true if the piece is cached and length bytes from offset inside it have been copied into the buffer from its position.
+    //Returns false if the piece is not cached. Nothing is copied.
+    public boolean read(int pieceIndex, int offset, int length, ByteBuffer target) {
+        Entry entry = acquire(pieceIndex);
+        if (entry == null) {
+            return false;
+        }
+
+        try {
+            ByteBuffer view = entry.buffer.duplicate();
+            view.position(view.position() + offset).limit(view.position() + length);
+            target.put(view);
+        } finally {
+            release(entry);
+        }
+        return true;
+    }
+
+    //Returns an empty buffer of piece size. The caller fills it and passes it to put, or to releaseBuffer if filling it fails.
+    //Eldest pieces are evicted to make room for it.
+    //Returns null if buffers handed out for other pieces take the rest of the budget. The caller goes without the cache then.
+    public ByteBuffer allocateBuffer() {
+        ByteBuffer buffer;
+        synchronized (entryMap) {
+            Iterator<Entry> iterator = entryMap.values().iterator();
+            while (cachedByteCount + leasedByteCount + pieceSize > capacity && iterator.hasNext()) {     //Eldest entries come first.
+                Entry entry = iterator.next();
+                iterator.remove();
+                evict(entry);
+            }
+            if (cachedByteCount + leasedByteCount + pieceSize > capacity) {
+                return null;
+            }
+            leasedByteCount += pieceSize;
+            buffer = freeBufferQueue.poll();
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(pieceSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    //Caches the piece. Buffer must hold the piece between its position and limit, and must come from allocateBuffer.
+    //Cache owns the buffer afterwards. Its room was made by allocateBuffer, so nothing is evicted here.
+    public void put(int pieceIndex, ByteBuffer buffer) {
+        synchronized (entryMap) {
+            leasedByteCount -= pieceSize;
+            if (entryMap.containsKey(pieceIndex)) {
+                freeBufferQueue.add(buffer);
+                return;
+            }
+
+            entryMap.put(pieceIndex, new Entry(buffer));
+            cachedByteCount += pieceSize;
+        }
+    }
+
+    //Gives back a buffer from allocateBuffer that is not put, such as when reading the piece into it fails.
+    public void releaseBuffer(ByteBuffer buffer) {
+        synchronized (entryMap) {
+            leasedByteCount -= pieceSize;
+            freeBufferQueue.add(buffer);
+        }
+    }
+
+    //Drops the piece if cached. Call this whenever the piece data on disk changes.
+    public void invalidate(int pieceIndex) {
+        synchronized (entryMap) {
+            Entry entry = entryMap.remove(pieceIndex);
+            if (entry != null) {
+                evict(entry);
+            }
+        }
+    }
+
+    private Entry acquire(int pieceIndex) {
+        synchronized (entryMap) {
+            Entry entry = entryMap.get(pieceIndex);
+            if (entry == null) {
+                missCount.getAndIncrement();
+                return null;
+            }
+            entry.userCount++;
+            hitCount.getAndIncrement();
+            return entry;
+        }
+    }
+
+    private void release(Entry entry) {
+        synchronized (entryMap) {
+            entry.userCount--;
+            if (entry.evicted && entry.userCount == 0) {
+                freeBufferQueue.add(entry.buffer);
+            }
+        }
+    }
+
+    //Must hold entryMap. Buffer is reused only after the last reader releases it.
+    private void evict(Entry entry) {
+        entry.evicted = true;
+        cachedByteCount -= pieceSize;
+        if (entry.userCount == 0) {
+            freeBufferQueue.add(entry.buffer);
+        }
+    }
+
+    private static final class Entry {
+
+        private final ByteBuffer buffer;
+        private int userCount;                  //Guarded by entryMap.
+        private boolean evicted;                //Guarded by entryMap.
+
+        public Entry(ByteBuffer buffer) {
+            this.buffer = buffer;
+            userCount = 0;
+            evicted = false;
+        }
+
+    }
+
+}
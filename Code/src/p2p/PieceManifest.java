@@ -0,0 +1,232 @@
+package p2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+//SHA-256 hash of every piece of the shared file, stored back to back in piece order.
+public final class PieceManifest {
+
+    public static final String HASH_ALGORITHM = "SHA-256";
+    public static final int HASH_LENGTH = 32;
+    private static final int RECHECK_PARALLELISM = 4;      //Concurrent readers beyond a few turn sequential disk reads into seeks.
+
+    private final String fileName;
+    private final String fileDirectory;
+    private final int pieceCount;
+    private final byte[] hashes;
+
+    private PieceManifest(String fileName, String fileDirectory, int pieceCount, byte[] hashes) {
+        if (fileName == null || fileName.length() == 0) {
+            throw new IllegalArgumentException("Invalid fileName happens when creating PieceManifest.");
+        }
+        if (pieceCount < 1) {
+            throw new IllegalArgumentException("Invalid pieceCount happens when creating PieceManifest.");
+        }
+        if (hashes == null || hashes.length != pieceCount * HASH_LENGTH) {
+            throw new IllegalArgumentException("Invalid hashes happens when creating PieceManifest.");
+        }
+
+        this.fileName = fileName;
+        this.fileDirectory = fileDirectory;
+        this.pieceCount = pieceCount;
+        this.hashes = hashes;
+    }
+
+    //Returns null if the manifest file does not exist or does not match pieceCount.
+    public static PieceManifest load(String fileName, String fileDirectory, int pieceCount) throws IOException {
+        File file = new File(fileDirectory, fileName);
+        if (!file.isFile()) {
+            return null;
+        }
+        if (file.length() != (long) pieceCount * HASH_LENGTH) {
+            P2PLogger.log("[" + file.getPath() + "] Piece manifest size is inconsistent with piece count " + pieceCount + ". Manifest is ignored.");
+            return null;
+        }
+
+        try {
+            return new PieceManifest(fileName, fileDirectory, pieceCount, Files.readAllBytes(file.toPath()));
+        } catch (IOException e) {
+            P2PLogger.log("[" + file.getPath() + "] IOException happens when reading piece manifest.");
+            throw e;
+        }
+    }
+
+    //Hashes every piece of the shared file in parallel on the fork-join common pool, then saves the manifest.
+    public static PieceManifest generate(String fileName, String fileDirectory, SharedFile sharedFile) throws IOException {
+        if (sharedFile == null) {
+            throw new IllegalArgumentException("Invalid sharedFile happens when generating PieceManifest.");
+        }
+
+        byte[] hashes = new byte[sharedFile.getPieceCount() * HASH_LENGTH];
+        try {
+            ForkJoinPool.commonPool().invoke(new HashTask(sharedFile, hashes, 0, sharedFile.getPieceCount()));
+        } catch (IllegalStateException e) {
+            P2PLogger.log("[" + sharedFile.getFilePath() + "] " + e.getMessage() + " Piece manifest is not generated.");
+            throw new IOException(e.getMessage());
+        }
+        PieceManifest pieceManifest = new PieceManifest(fileName, fileDirectory, sharedFile.getPieceCount(), hashes);
+        pieceManifest.writeFile();
+        return pieceManifest;
+    }
+
+    //Hashes the on-disk pieces of the shared file and compares them with the manifest.
+    //Returns the set of pieces whose data matches the manifest.
+    public BitSet recheck(SharedFile sharedFile) {
+        if (sharedFile == null || sharedFile.getPieceCount() != pieceCount) {
+            throw new IllegalArgumentException("Invalid sharedFile happens when rechecking PieceManifest.");
+        }
+
+        boolean[] verified = new boolean[pieceCount];
+        ForkJoinPool recheckPool = new ForkJoinPool(Math.min(RECHECK_PARALLELISM, Runtime.getRuntime().availableProcessors()));
+        try {
+            recheckPool.invoke(new RecheckTask(sharedFile, verified, 0, pieceCount));
+        } finally {
+            recheckPool.shutdown();
+        }
+
+        BitSet bitSet = new BitSet(pieceCount);
+        for (int i = 0; i < pieceCount; i++) {
+            if (verified[i]) {
+                bitSet.set(i);
+            }
+        }
+        return bitSet;
+    }
+
+    public static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HASH_ALGORITHM + " is not supported by this Java runtime.");       //Every Java platform must support SHA-256.
+        }
+    }
+
+    public final String getFilePath() {
+        return fileDirectory + File.separator + fileName;
+    }
+
+    public int getPieceCount() {
+        return pieceCount;
+    }
+
+    //Returns true if the hash equals the manifest hash of the piece.
+    public boolean matches(int pieceIndex, byte[] hash) {
+        if (pieceIndex < 0 || pieceIndex >= pieceCount || hash == null || hash.length != HASH_LENGTH) {
+            return false;
+        }
+
+        int offset = pieceIndex * HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            if (hashes[offset + i] != hash[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public byte[] getPieceHash(int pieceIndex) {
+        if (pieceIndex < 0 || pieceIndex >= pieceCount) {
+            return new byte[0];
+        }
+        return Arrays.copyOfRange(hashes, pieceIndex * HASH_LENGTH, (pieceIndex + 1) * HASH_LENGTH);
+    }
+
+    //Written to a temporary file first, so a reader never sees a partial manifest.
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void writeFile() throws IOException {
+        File file = new File(fileDirectory, fileName);
+        File temporaryFile = new File(fileDirectory, fileName + ".tmp");
+        try {
+            Files.write(temporaryFile.toPath(), hashes);
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            P2PLogger.log("[" + getFilePath() + "] IOException happens when writing piece manifest.");
+            temporaryFile.delete();
+            throw e;
+        }
+    }
+
+    //Splits the piece range in halves until it is small enough to hash on one thread.
+    @SuppressWarnings("serial")        //Never serialized. ForkJoinTask is Serializable only by inheritance.
+    private static final class HashTask extends RecursiveAction {
+
+        private static final int PIECES_PER_TASK = 64;
+
+        private final SharedFile sharedFile;
+        private final byte[] hashes;
+        private final int fromPieceIndex;
+        private final int toPieceIndex;
+
+        public HashTask(SharedFile sharedFile, byte[] hashes, int fromPieceIndex, int toPieceIndex) {
+            this.sharedFile = sharedFile;
+            this.hashes = hashes;
+            this.fromPieceIndex = fromPieceIndex;
+            this.toPieceIndex = toPieceIndex;
+        }
+
+        @Override
+        protected void compute() {
+            if (toPieceIndex - fromPieceIndex <= PIECES_PER_TASK) {
+                for (int i = fromPieceIndex; i < toPieceIndex; i++) {
+                    byte[] hash = sharedFile.hashPiece(i);
+                    if (hash.length != HASH_LENGTH) {
+                        throw new IllegalStateException("Piece " + i + " cannot be read for hashing.");
+                    }
+                    System.arraycopy(hash, 0, hashes, i * HASH_LENGTH, hash.length);
+                }
+                return;
+            }
+
+            int middlePieceIndex = (fromPieceIndex + toPieceIndex) >>> 1;
+            invokeAll(new HashTask(sharedFile, hashes, fromPieceIndex, middlePieceIndex),
+                    new HashTask(sharedFile, hashes, middlePieceIndex, toPieceIndex));
+        }
+
+    }
+
+    //Same split as HashTask. Each leaf reads a contiguous run of pieces so the disk sees sequential reads.
+    @SuppressWarnings("serial")
+    private final class RecheckTask extends RecursiveAction {
+
+        private static final int PIECES_PER_TASK = 64;
+
+        private final SharedFile sharedFile;
+        private final boolean[] verified;
+        private final int fromPieceIndex;
+        private final int toPieceIndex;
+
+        public RecheckTask(SharedFile sharedFile, boolean[] verified, int fromPieceIndex, int toPieceIndex) {
+            this.sharedFile = sharedFile;
+            this.verified = verified;
+            this.fromPieceIndex = fromPieceIndex;
+            this.toPieceIndex = toPieceIndex;
+        }
+
+        @Override
+        protected void compute() {
+            if (toPieceIndex - fromPieceIndex <= PIECES_PER_TASK) {
+                for (int i = fromPieceIndex; i < toPieceIndex; i++) {
+                    if (!sharedFile.hasInitialData(i)) {
+                        continue;       //Piece was not on disk before the file was resized. No need to read it.
+                    }
+                    verified[i] = matches(i, sharedFile.hashPiece(i));
+                }
+                return;
+            }
+
+            int middlePieceIndex = (fromPieceIndex + toPieceIndex) >>> 1;
+            invokeAll(new RecheckTask(sharedFile, verified, fromPieceIndex, middlePieceIndex),
+                    new RecheckTask(sharedFile, verified, middlePieceIndex, toPieceIndex));
+        }
+
+    }
+
+}
@@ -1,47 +1,90 @@
 package p2p;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.zip.CRC32;
 
+//Progress is kept as a checkpoint plus an append-only journal of piece indices completed since the checkpoint.
+//Saving appends only the newly completed pieces. The journal is folded into a new checkpoint once it grows as large as the bitfield.
+//Checkpoint: magic, generation, bitfield length, CRC-32 of the fields after the magic, then the bitfield.
+//A checkpoint is written to a temporary file, synced, then moved over the old one, so a crash leaves either the old or the new checkpoint.
+//Journal record: piece index, CRC-32 of checkpoint generation and piece index. Records of an older generation, or torn by a crash, are ignored.
 public final class ProgressFile {
 
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int CHECKPOINT_MAGIC = 0x50325042;                    //"P2PB"
+    private static final int CHECKPOINT_HEADER_LENGTH = 4 + 8 + 4 + 4;
+    private static final int JOURNAL_RECORD_LENGTH = 4 + 4;
+
     private final String fileName;
     private final String fileDirectory;
-    private final int fileSize;                 //Progress file size cannot be large.
-    private final RandomAccessFile fileIO;
+    private final int fileSize;                 //Bitfield length. Progress file size cannot be large.
+    private final long syncInterval;            //in milliseconds. 0 syncs on every save.
+    private final Object fileLock;
+    private final RandomAccessFile journalIO;   //Guarded by fileLock.
+    private final BitSet savedPieceStatus;      //Pieces in the checkpoint or the journal. Guarded by fileLock.
+    private long generation;                    //Guarded by fileLock.
+    private long journalLength;                 //in bytes. Guarded by fileLock.
+    private boolean unsyncedIndicator;          //Journal has records that are not synced yet. Guarded by fileLock.
+    private long syncTimestamp;                 //Guarded by fileLock.
 
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    public ProgressFile(String fileName, String fileDirectory, int fileSize) throws IOException {
+    public ProgressFile(String fileName, String fileDirectory, int fileSize, int syncInterval) throws IOException {
         if (fileName == null || fileName.length() == 0) {
             throw new IllegalArgumentException("Invalid fileName happens when creating ProgressFile.");
         }
         if (fileSize < 1) {
             throw new IllegalArgumentException("Invalid fileSize happens when creating ProgressFile.");
         }
+        if (syncInterval < 0) {
+            throw new IllegalArgumentException("Invalid syncInterval happens when creating ProgressFile.");
+        }
 
         this.fileName = fileName;
         this.fileDirectory = fileDirectory;
         this.fileSize = fileSize;
+        this.syncInterval = syncInterval * 1000L;
+        fileLock = new Object();
+        savedPieceStatus = new BitSet();
+        generation = 0;
+        journalLength = 0;
+        unsyncedIndicator = false;
+        syncTimestamp = System.currentTimeMillis();
 
-        File file = new File(fileDirectory, fileName);
-        if (file.isFile()) {    //Check if file exists and is a normal file, not a directory.
-            if (file.length() != fileSize) {
-                P2PLogger.log("[" + getFilePath() + "] File size is inconsistent. Reset size to " + fileSize + ".");
-            }
-        } else {
-            new File(fileDirectory).mkdirs();
+        new File(fileDirectory).mkdirs();
+        try {
+            journalIO = new RandomAccessFile(new File(fileDirectory, fileName + JOURNAL_SUFFIX), "rw");
+        } catch (IOException e) {
+            P2PLogger.log("[" + getFilePath() + JOURNAL_SUFFIX + "] IOException happens when opening or creating journal.");
+            throw e;
         }
 
         try {
-            fileIO = new RandomAccessFile(file, "rw");    //Open or create the file;
-            fileIO.setLength(fileSize);
-        } catch (FileNotFoundException e) {
-            P2PLogger.log("[" + getFilePath() + "] FileNotFoundException happens when opening or creating file.");
-            throw e;
+            synchronized (fileLock) {
+                File file = new File(fileDirectory, fileName);
+                byte[] bitfield = file.isFile() ? readCheckpoint(file) : null;
+                if (bitfield != null && generation > 0) {
+                    replayJournal();
+                } else {
+                    if (bitfield == null) {
+                        generation = System.currentTimeMillis();       //Never matches records left in the journal.
+                        bitfield = new byte[fileSize];
+                    }
+                    setSavedPieceStatus(bitfield);
+                    writeCheckpoint();      //New, reset or legacy progress file becomes a checkpoint.
+                }
+            }
         } catch (IOException e) {
-            P2PLogger.log("[" + getFilePath() + "] IOException happens when setting file length.");
+            P2PLogger.log("[" + getFilePath() + "] IOException happens when loading progress.");
             closeFile();
             throw e;
         }
@@ -51,22 +94,14 @@ public final class ProgressFile {
         return fileDirectory + File.separator + fileName;
     }
 
-    //Only read if file does exists. Check before read.
+    //Returns the checkpoint bitfield with the journal replayed on top of it.
     public byte[] readFile() {
-        byte[] bytes = new byte[fileSize];
-
-        try {
-            synchronized (fileIO) {
-                fileIO.seek(0);
-                fileIO.readFully(bytes);
-            }
-        } catch (IOException e) {
-            P2PLogger.log("[" + getFilePath() + "] IOException happens when reading file. Exception is not rethrown.");
-            return new byte[0];
+        synchronized (fileLock) {
+            return getSavedBitfield();
         }
-        return bytes;
     }
 
+    //Replaces the checkpoint with the bitfield and empties the journal.
     //Returns 0 if writing is successful.
     //Returns -1 if writing is not successful.
     @SuppressWarnings("UnusedReturnValue")
@@ -77,11 +112,9 @@ public final class ProgressFile {
         }
 
         try {
-            synchronized (fileIO) {
-                fileIO.seek(0);
-                fileIO.write(bytes);
-                fileIO.seek(bytes.length);
-                fileIO.write(new byte[fileSize - bytes.length]);
+            synchronized (fileLock) {
+                setSavedPieceStatus(bytes);
+                writeCheckpoint();
             }
         } catch (IOException e) {
             P2PLogger.log("[" + getFilePath() + "] IOException happens when writing file. Exception is not rethrown.");
@@ -90,14 +123,189 @@ public final class ProgressFile {
         return 0;
     }
 
+    //Returns true if the sync interval has passed since the last sync. Pass the result to saveProgress.
+    public boolean isSyncDue() {
+        synchronized (fileLock) {
+            return System.currentTimeMillis() - syncTimestamp >= syncInterval;
+        }
+    }
+
+    //Appends pieces that are complete in pieceStatus but not saved yet. Nothing is appended if there are none.
+    //If sync is true, the journal is synced, or folded into a new checkpoint if it has grown large.
+    //Pieces are never removed this way. Use writeFile for that.
+    //Returns 0 if saving is successful.
+    //Returns -1 if saving is not successful.
+    @SuppressWarnings("UnusedReturnValue")
+    public int saveProgress(BitSet pieceStatus, boolean sync) {
+        if (pieceStatus == null || pieceStatus.length() > fileSize * 8) {
+            P2PLogger.log("[" + getFilePath() + "] Invalid pieceStatus happens when saving progress.");
+            return -1;
+        }
+
+        try {
+            synchronized (fileLock) {
+                BitSet newPieceStatus = (BitSet) pieceStatus.clone();
+                newPieceStatus.andNot(savedPieceStatus);
+                if (!newPieceStatus.isEmpty()) {
+                    ByteBuffer buffer = ByteBuffer.allocate(newPieceStatus.cardinality() * JOURNAL_RECORD_LENGTH);
+                    CRC32 crc32 = new CRC32();
+                    for (int i = newPieceStatus.nextSetBit(0); i >= 0; i = newPieceStatus.nextSetBit(i + 1)) {
+                        buffer.putInt(i).putInt(getRecordChecksum(crc32, i));
+                    }
+                    journalIO.seek(journalLength);
+                    journalIO.write(buffer.array());
+                    journalLength += buffer.capacity();
+                    savedPieceStatus.or(newPieceStatus);
+                    unsyncedIndicator = true;
+                }
+
+                if (sync) {
+                    if (journalLength >= fileSize) {
+                        writeCheckpoint();
+                    } else if (unsyncedIndicator) {
+                        journalIO.getChannel().force(false);
+                    }
+                    unsyncedIndicator = false;
+                    syncTimestamp = System.currentTimeMillis();
+                }
+            }
+        } catch (IOException e) {
+            P2PLogger.log("[" + getFilePath() + JOURNAL_SUFFIX + "] IOException happens when appending journal. Exception is not rethrown.");
+            return -1;
+        }
+        return 0;
+    }
+
     public final void closeFile() {
         try {
-            synchronized (fileIO) {
-                fileIO.close();
+            synchronized (fileLock) {
+                if (journalIO != null) {
+                    if (journalLength > 0) {
+                        writeCheckpoint();
+                    }
+                    journalIO.close();
+                }
             }
         } catch (IOException e) {
             P2PLogger.log("[" + getFilePath() + "] IOException happens when closing file. Exception is not rethrown.");
         }
     }
 
+    //Returns the bitfield of a valid checkpoint, or of a progress file written before checkpoints existed.
+    //Returns null if the checkpoint is corrupted. Progress has to start over.
+    //Must hold fileLock.
+    private byte[] readCheckpoint(File file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length >= CHECKPOINT_HEADER_LENGTH && buffer.getInt() == CHECKPOINT_MAGIC) {
+            long checkpointGeneration = buffer.getLong();
+            int bitfieldLength = buffer.getInt();
+            int checksum = buffer.getInt();
+            CRC32 crc32 = new CRC32();
+            crc32.update(bytes, 4, 8 + 4);
+            crc32.update(bytes, CHECKPOINT_HEADER_LENGTH, bytes.length - CHECKPOINT_HEADER_LENGTH);
+            if (bitfieldLength == fileSize && bytes.length == CHECKPOINT_HEADER_LENGTH + fileSize && (int) crc32.getValue() == checksum) {
+                generation = checkpointGeneration;
+                byte[] bitfield = new byte[fileSize];
+                buffer.get(bitfield);
+                setSavedPieceStatus(bitfield);
+                return bitfield;
+            }
+        } else if (bytes.length == fileSize) {
+            P2PLogger.log("[" + getFilePath() + "] Progress file without checkpoint header is loaded, and is converted to a checkpoint.");
+            return bytes;
+        }
+
+        P2PLogger.log("[" + getFilePath() + "] Progress checkpoint is corrupted. Progress is reset.");
+        return null;
+    }
+
+    //Applies valid journal records of the current generation. Appending continues after the last valid record.
+    //Must hold fileLock.
+    private void replayJournal() throws IOException {
+        byte[] journal = new byte[(int) Math.min(journalIO.length(), Integer.MAX_VALUE) / JOURNAL_RECORD_LENGTH * JOURNAL_RECORD_LENGTH];
+        journalIO.seek(0);
+        journalIO.readFully(journal);
+
+        ByteBuffer buffer = ByteBuffer.wrap(journal);
+        CRC32 crc32 = new CRC32();
+        while (buffer.hasRemaining()) {
+            int pieceIndex = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (pieceIndex < 0 || pieceIndex >= fileSize * 8 || getRecordChecksum(crc32, pieceIndex) != checksum) {
+                break;
+            }
+            savedPieceStatus.set(pieceIndex);
+            journalLength += JOURNAL_RECORD_LENGTH;
+        }
+    }
+
+    //Writes savedPieceStatus as a new checkpoint of the next generation, then empties the journal.
+    //Must hold fileLock.
+    private void writeCheckpoint() throws IOException {
+        byte[] bitfield = getSavedBitfield();
+        long newGeneration = generation + 1;
+        ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_HEADER_LENGTH + fileSize);
+        buffer.putInt(CHECKPOINT_MAGIC).putLong(newGeneration).putInt(fileSize);
+        CRC32 crc32 = new CRC32();
+        crc32.update(buffer.array(), 4, 8 + 4);
+        crc32.update(bitfield);
+        buffer.putInt((int) crc32.getValue()).put(bitfield).flip();
+
+        File file = new File(fileDirectory, fileName);
+        File temporaryFile = new File(fileDirectory, fileName + TEMPORARY_SUFFIX);
+        try (FileChannel fileChannel = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer);
+            }
+            fileChannel.force(true);
+        }
+        try {
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        try (FileChannel directoryChannel = FileChannel.open(file.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ)) {
+            directoryChannel.force(true);       //Makes the rename durable where the platform allows syncing a directory.
+        } catch (IOException ignored) {
+        }
+
+        generation = newGeneration;
+        journalIO.setLength(0);         //Records left by a crash before this point belong to the old generation and are ignored.
+        journalLength = 0;
+        unsyncedIndicator = false;
+    }
+
+    //Must hold fileLock.
+    private int getRecordChecksum(CRC32 crc32, int pieceIndex) {
+        crc32.reset();
+        for (int i = 56; i >= 0; i -= 8) {
+            crc32.update((int) (generation >>> i));
+        }
+        for (int i = 24; i >= 0; i -= 8) {
+            crc32.update(pieceIndex >>> i);
+        }
+        return (int) crc32.getValue();
+    }
+
+    //P2P protocol bitfield uses big-endian.
+    //Must hold fileLock.
+    private byte[] getSavedBitfield() {
+        byte[] bitfield = new byte[fileSize];
+        for (int i = savedPieceStatus.nextSetBit(0); i >= 0; i = savedPieceStatus.nextSetBit(i + 1)) {
+            bitfield[i / 8] |= 0b10000000 >>> (i % 8);
+        }
+        return bitfield;
+    }
+
+    //Must hold fileLock.
+    private void setSavedPieceStatus(byte[] bitfield) {
+        savedPieceStatus.clear();
+        for (int i = 0; i < bitfield.length * 8; i++) {
+            if ((bitfield[i / 8] & 0b10000000 >>> (i % 8)) != 0) {
+                savedPieceStatus.set(i);
+            }
+        }
+    }
+
 }
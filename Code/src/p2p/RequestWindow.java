@@ -0,0 +1,137 @@
+package p2p;
+
+//Number of requests the host keeps in flight to one neighbor. Works like a TCP congestion window, with Piece Messages as acknowledgements.
+//Slow start adds a request per delivery, doubling the window every round trip, until throughput stops growing for FULL_PIPE_ROUNDS rounds.
+//The window then follows the bandwidth-delay product, measured throughput times the lowest round trip time.
+//It grows by one request per round trip up to twice the product, so round trip jitter does not hold the pipe below full, and drops back there when requests queue.
+//A request that times out halves the window. Timeouts are checked once a second, so the window is halved at most once a second.
+public final class RequestWindow {
+
+    private static final int MIN_WINDOW = 2;
+    private static final int MAX_WINDOW = 256;
+    private static final int INITIAL_WINDOW = 4;
+    private static final int QUEUE_ALLOWANCE = 2;           //Requests allowed to wait at the neighbor on top of twice the bandwidth-delay product.
+    private static final int FULL_PIPE_ROUNDS = 3;          //Rounds without 25% more throughput that end slow start.
+    private static final long RATE_INTERVAL = 50;           //in milliseconds. Shortest time a throughput sample is taken over.
+    private static final long MIN_RTT_LIFETIME = 10000;     //in milliseconds. Lowest RTT is taken again after this, in case the path changed.
+
+    private double window;                  //in requests. Fractional, so it can grow by less than one request per delivery.
+    private int slowStartThreshold;
+    private boolean slowStart;
+    private long minRTT;                    //in milliseconds. -1 before the first delivery.
+    private long minRTTTimestamp;
+    private long deliveryRate;              //in bytes per second. Highest recent sample, decaying by 1/8 every sample.
+    private long averageRequestSize;        //in bytes.
+    private long intervalTimestamp;
+    private long intervalByteCount;
+    private long fullPipeRate;              //in bytes per second. Throughput slow start last grew past.
+    private int fullPipeRoundCount;
+    private long backOffCount;
+
+    public RequestWindow() {
+        reset();
+    }
+
+    //Starts over. Call this when the neighbor is reconnected.
+    public synchronized void reset() {
+        window = INITIAL_WINDOW;
+        slowStartThreshold = MAX_WINDOW;
+        slowStart = true;
+        minRTT = -1;
+        minRTTTimestamp = 0;
+        deliveryRate = 0;
+        averageRequestSize = 0;
+        intervalTimestamp = System.currentTimeMillis();
+        intervalByteCount = 0;
+        fullPipeRate = 0;
+        fullPipeRoundCount = 0;
+        backOffCount = 0;
+    }
+
+    public synchronized int getWindow() {
+        return (int) window;
+    }
+
+    public synchronized boolean isInSlowStart() {
+        return slowStart;
+    }
+
+    public synchronized long getMinRTT() {
+        return minRTT;
+    }
+
+    public synchronized long getDeliveryRate() {
+        return deliveryRate;
+    }
+
+    public synchronized long getBackOffCount() {
+        return backOffCount;
+    }
+
+    //Number of requests that fill the pipe to the neighbor. 0 before throughput is measured.
+    public synchronized int getBandwidthDelayProduct() {
+        if (averageRequestSize == 0) {
+            return 0;
+        }
+        return (int) Math.min(MAX_WINDOW, deliveryRate * Math.max(minRTT, 1) / 1000 / averageRequestSize);
+    }
+
+    //Returns the number of new requests the window allows, given the requests in flight.
+    public synchronized int getCredit(int flyingRequestCount) {
+        return Math.max(0, (int) window - flyingRequestCount);
+    }
+
+    //A requested piece or block of byteCount bytes arrived sampleRTT milliseconds after it was requested.
+    public synchronized void onDelivered(long sampleRTT, int byteCount) {
+        if (sampleRTT < 0 || byteCount < 1) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (minRTT < 0 || sampleRTT <= minRTT || now - minRTTTimestamp > MIN_RTT_LIFETIME) {
+            minRTT = sampleRTT;
+            minRTTTimestamp = now;
+        }
+        averageRequestSize = averageRequestSize == 0 ? byteCount : (7 * averageRequestSize + byteCount) / 8;
+        intervalByteCount += byteCount;
+        long interval = now - intervalTimestamp;
+        boolean roundEnded = interval >= Math.max(RATE_INTERVAL, minRTT);
+        if (roundEnded) {
+            deliveryRate = Math.max(intervalByteCount * 1000 / interval, deliveryRate - deliveryRate / 8);
+            intervalTimestamp = now;
+            intervalByteCount = 0;
+        }
+
+        if (slowStart) {
+            window += 1;
+            if (roundEnded) {
+                if (deliveryRate >= fullPipeRate + fullPipeRate / 4) {
+                    fullPipeRate = deliveryRate;
+                    fullPipeRoundCount = 0;
+                } else {
+                    fullPipeRoundCount++;
+                }
+            }
+            if (window >= slowStartThreshold || fullPipeRoundCount >= FULL_PIPE_ROUNDS) {
+                slowStart = false;
+            }
+        } else {
+            int target = 2 * getBandwidthDelayProduct() + QUEUE_ALLOWANCE;
+            if (deliveryRate > 0 && window > target + QUEUE_ALLOWANCE) {
+                window = target;                //Drain the queue at the neighbor.
+            } else {
+                window += 1 / window;           //One more request per round trip.
+            }
+        }
+        window = Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, window));
+    }
+
+    //A request got no answer within the request timeout. Treated like a lost segment.
+    public synchronized void onTimeout() {
+        slowStartThreshold = Math.max(MIN_WINDOW, (int) window / 2);
+        window = slowStartThreshold;
+        slowStart = false;
+        backOffCount++;
+    }
+
+}
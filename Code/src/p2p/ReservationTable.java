@@ -0,0 +1,238 @@
+package p2p;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Host-wide table of requests in flight. Maps a request, a piece index or a block id, to the neighbor it was first sent to and the time it was sent.
+//Selection skips requests reserved by other neighbors, so fast neighbors are not asked for the same piece by chance.
+//Endgame and urgent streaming requests are still sent to more neighbors, but do not take the reservation over.
+//A reservation ends when the piece arrives, when its neighbor disconnects, or when it times out.
+public final class ReservationTable {
+
+    private static final long MIN_TIMEOUT = 5000;       //in milliseconds
+    private static final int INITIAL_CAPACITY = 1024;   //in slots. Power of two. Doubled when half full, and never shrunk, as walks skip free slots.
+
+    private final ReentrantLock tableLock;
+    private int[] requestIndexes;               //Guarded by tableLock. Open addressing with linear probing, so reserving allocates nothing.
+    private NeighborPeer[] neighborPeers;       //Guarded by tableLock. null marks a free slot.
+    private long[] timestamps;                  //Guarded by tableLock.
+    private int[] occupiedSlots;                //Guarded by tableLock. The first reservationCount entries list the occupied slots, so walks skip free ones.
+    private int[] slotPositions;                //Guarded by tableLock. Position of each occupied slot in occupiedSlots.
+    private int reservationCount;               //Guarded by tableLock.
+    private final AtomicLong expiredReservationCount;
+
+    public ReservationTable() {
+        tableLock = new ReentrantLock();
+        requestIndexes = new int[INITIAL_CAPACITY];
+        neighborPeers = new NeighborPeer[INITIAL_CAPACITY];
+        timestamps = new long[INITIAL_CAPACITY];
+        occupiedSlots = new int[INITIAL_CAPACITY];
+        slotPositions = new int[INITIAL_CAPACITY];
+        reservationCount = 0;
+        expiredReservationCount = new AtomicLong();
+    }
+
+    public int getReservationCount() {
+        tableLock.lock();
+        try {
+            return reservationCount;
+        } finally {
+            tableLock.unlock();
+        }
+    }
+
+    public long getExpiredReservationCount() {
+        return expiredReservationCount.get();
+    }
+
+    //Returns true if the neighbor holds the reservation now.
+    //Returns false if another neighbor holds a reservation that has not timed out.
+    @SuppressWarnings("UnusedReturnValue")
+    public boolean reserve(int requestIndex, NeighborPeer neighborPeer) {
+        long now = System.currentTimeMillis();
+        tableLock.lock();
+        try {
+            int slot = findSlot(requestIndex);
+            if (neighborPeers[slot] == null) {
+                requestIndexes[slot] = requestIndex;
+                neighborPeers[slot] = neighborPeer;
+                timestamps[slot] = now;
+                occupiedSlots[reservationCount] = slot;
+                slotPositions[slot] = reservationCount;
+                if (++reservationCount * 2 > neighborPeers.length) {
+                    grow();
+                }
+                return true;
+            }
+            if (neighborPeers[slot] == neighborPeer) {
+                return true;
+            }
+            if (!isExpired(slot, now)) {
+                return false;
+            }
+            neighborPeers[slot] = neighborPeer;
+            timestamps[slot] = now;
+            expiredReservationCount.getAndIncrement();
+            return true;
+        } finally {
+            tableLock.unlock();
+        }
+    }
+
+    //Returns true if a neighbor holds a reservation that has not timed out.
+    public boolean isReserved(int requestIndex) {
+        return isReservedByOther(requestIndex, null);
+    }
+
+    //Returns true if a neighbor other than the argument one holds a reservation that has not timed out.
+    public boolean isReservedByOther(int requestIndex, NeighborPeer neighborPeer) {
+        long now = System.currentTimeMillis();
+        tableLock.lock();
+        try {
+            int slot = findSlot(requestIndex);
+            return neighborPeers[slot] != null && neighborPeers[slot] != neighborPeer && !isExpired(slot, now);
+        } finally {
+            tableLock.unlock();
+        }
+    }
+
+    //Clears the candidates that other neighbors hold reservations for. Only for piece indexes.
+    //Candidates are words as from Peer.findInterestingPieces. Only occupied slots are walked, so cost grows with requests in flight, not with pieces or table size.
+    public void clearReservedByOthers(long[] candidates, NeighborPeer neighborPeer) {
+        long now = System.currentTimeMillis();
+        tableLock.lock();
+        try {
+            for (int i = 0; i < reservationCount; i++) {
+                int slot = occupiedSlots[i];
+                if (neighborPeers[slot] != neighborPeer && !isExpired(slot, now)) {
+                    Peer.clearBit(candidates, requestIndexes[slot]);
+                }
+            }
+        } finally {
+            tableLock.unlock();
+        }
+    }
+
+    //Ends the reservation, whoever holds it. Call this when the piece arrives.
+    public void release(int requestIndex) {
+        release(requestIndex, null);
+    }
+
+    //Ends the reservation if the neighbor holds it. null stands for any neighbor.
+    public void release(int requestIndex, NeighborPeer neighborPeer) {
+        tableLock.lock();
+        try {
+            int slot = findSlot(requestIndex);
+            if (neighborPeers[slot] != null && (neighborPeer == null || neighborPeers[slot] == neighborPeer)) {
+                removeSlot(slot);
+            }
+        } finally {
+            tableLock.unlock();
+        }
+    }
+
+    //Ends every reservation of the neighbor. Call this when the neighbor disconnects.
+    public void releaseAll(NeighborPeer neighborPeer) {
+        tableLock.lock();
+        try {
+            for (int i = reservationCount - 1; i >= 0; i--) {       //Removing moves the last entry, already looked at, into position i.
+                if (neighborPeers[occupiedSlots[i]] == neighborPeer) {
+                    removeSlot(occupiedSlots[i]);
+                }
+            }
+        } finally {
+            tableLock.unlock();
+        }
+    }
+
+    //Ends reservations that have timed out. Returns the number ended.
+    public int removeExpired() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        tableLock.lock();
+        try {
+            for (int i = reservationCount - 1; i >= 0; i--) {
+                if (isExpired(occupiedSlots[i], now)) {
+                    removeSlot(occupiedSlots[i]);
+                    count++;
+                }
+            }
+        } finally {
+            tableLock.unlock();
+        }
+        expiredReservationCount.getAndAdd(count);
+        return count;
+    }
+
+    //A reservation times out after twice the request timeout of its neighbor, estimated RTT + 4 * deviation RTT, but not before MIN_TIMEOUT.
+    //Must hold tableLock.
+    private boolean isExpired(int slot, long now) {
+        NeighborPeer.MessageHandler messageHandler = neighborPeers[slot].getMessageHandler();
+        long timeout = Math.max(MIN_TIMEOUT, 2 * (messageHandler.getEstimatedRTT() + 4 * messageHandler.getDeviationRTT()));
+        return now - timestamps[slot] > timeout;
+    }
+
+    //Returns the slot holding the request, or the free slot where it would go. Must hold tableLock.
+    private int findSlot(int requestIndex) {
+        int mask = neighborPeers.length - 1;
+        int slot = getHomeSlot(requestIndex, mask);
+        while (neighborPeers[slot] != null && requestIndexes[slot] != requestIndex) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    //Spreads nearby request indexes, which are reserved together, over the table.
+    private static int getHomeSlot(int requestIndex, int mask) {
+        int hash = requestIndex * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    //Frees the slot and moves later reservations of the same probe run back, so every reservation stays reachable from its home slot.
+    //Must hold tableLock.
+    private void removeSlot(int slot) {
+        int position = slotPositions[slot];
+        int lastSlot = occupiedSlots[--reservationCount];
+        occupiedSlots[position] = lastSlot;
+        slotPositions[lastSlot] = position;
+
+        int mask = neighborPeers.length - 1;
+        int next = (slot + 1) & mask;
+        while (neighborPeers[next] != null) {
+            int homeSlot = getHomeSlot(requestIndexes[next], mask);
+            if (((next - homeSlot) & mask) >= ((next - slot) & mask)) {
+                requestIndexes[slot] = requestIndexes[next];
+                neighborPeers[slot] = neighborPeers[next];
+                timestamps[slot] = timestamps[next];
+                occupiedSlots[slotPositions[next]] = slot;
+                slotPositions[slot] = slotPositions[next];
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+        neighborPeers[slot] = null;
+    }
+
+    //Must hold tableLock.
+    private void grow() {
+        int[] oldRequestIndexes = requestIndexes;
+        NeighborPeer[] oldNeighborPeers = neighborPeers;
+        long[] oldTimestamps = timestamps;
+        int[] oldOccupiedSlots = occupiedSlots;
+        requestIndexes = new int[2 * oldNeighborPeers.length];
+        neighborPeers = new NeighborPeer[2 * oldNeighborPeers.length];
+        timestamps = new long[2 * oldNeighborPeers.length];
+        occupiedSlots = new int[2 * oldNeighborPeers.length];
+        slotPositions = new int[2 * oldNeighborPeers.length];
+        for (int i = 0; i < reservationCount; i++) {
+            int oldSlot = oldOccupiedSlots[i];
+            int slot = findSlot(oldRequestIndexes[oldSlot]);
+            requestIndexes[slot] = oldRequestIndexes[oldSlot];
+            neighborPeers[slot] = oldNeighborPeers[oldSlot];
+            timestamps[slot] = oldTimestamps[oldSlot];
+            occupiedSlots[i] = slot;
+            slotPositions[slot] = i;
+        }
+    }
+
+}
@@ -0,0 +1,701 @@
+package p2p;
+
+import static p2p.P2PLogger.DEBUG;
+
+import p2p.NeighborPeer.MessageHandler.MessageHandlerResult;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Network engine that serves every neighbor connection from a few I/O threads, instead of one blocking message listener per neighbor.
+//Each I/O thread owns a Selector and the non-blocking channels registered with it. It reads into a small buffer per connection,
+//cuts whole messages out of the stream, and copies each into a pooled buffer queued on the connection. Short messages, such as Have and Request,
+//go to buffers of SMALL_FRAME_SIZE, so they do not hold buffers sized for a piece. Messages longer than the read buffer, such as Piece,
+//are read straight into a pooled buffer of the host.
+//Worker threads hand queued messages to the message handler of the neighbor, one connection at a time and in arrival order,
+//so writing pieces to disk and hashing them never hold up the I/O thread and the other connections it serves.
+//A connection with MAX_QUEUED_FRAMES messages waiting is not read until its worker catches up, so a slow disk slows the neighbor down through TCP.
+//Likewise, no message of a connection with MAX_QUEUED_WRITES messages waiting to be written is handled until half of them are written,
+//so a neighbor that requests pieces but reads slowly stops being read, instead of holding a pooled buffer per request.
+//Messages are written right away if the channel takes them, otherwise queued per connection and written when the channel is writable.
+//Handshakes still happen on blocking sockets. A connection is handed over after its handshake.
+public final class SelectorEngine {
+
+    private static final long CLOSED_CHECK_INTERVAL = 200;     //in milliseconds. Sockets closed by other threads are noticed this often.
+    private static final int MAX_QUEUED_FRAMES = 8;             //per connection. Reading resumes when half of them are handled.
+    private static final int MAX_QUEUED_WRITES = 8;             //per connection. Handling resumes when half of them are written.
+    private static final int READ_BUFFER_SIZE = 8192;           //per connection, in bytes.
+    private static final int SMALL_FRAME_SIZE = 64;             //in bytes. Fits every message but Piece and long bitfields.
+    private static final int SMALL_FRAME_COUNT = 4096;          //Free small frames kept. Covers full frame queues of 512 connections.
+
+    private final HostPeer hostPeer;
+    private final ExecutorService workerThreadPool;
+    private final IOThread[] ioThreads;
+    private final AtomicInteger nextIOThread;
+    private final int maxFrameSize;
+    private final BufferPool smallFramePool;
+
+    //Received messages are handled on workerThreadPool. Its owner shuts it down after stopRunning.
+    public SelectorEngine(HostPeer hostPeer, int ioThreadCount, ExecutorService workerThreadPool) throws IOException {
+        if (hostPeer == null) {
+            throw new IllegalArgumentException("Invalid hostPeer happens when creating SelectorEngine.");
+        }
+        if (ioThreadCount < 1) {
+            throw new IllegalArgumentException("Invalid ioThreadCount happens when creating SelectorEngine.");
+        }
+        if (workerThreadPool == null) {
+            throw new IllegalArgumentException("Invalid workerThreadPool happens when creating SelectorEngine.");
+        }
+
+        this.hostPeer = hostPeer;
+        this.workerThreadPool = workerThreadPool;
+        ioThreads = new IOThread[ioThreadCount];
+        nextIOThread = new AtomicInteger();
+        maxFrameSize = hostPeer.getBufferPool().getBufferSize();          //Largest message fits.
+        smallFramePool = new BufferPool(SMALL_FRAME_SIZE, SMALL_FRAME_COUNT);
+        try {
+            for (int i = 0; i < ioThreadCount; i++) {
+                ioThreads[i] = new IOThread(i);
+            }
+        } catch (IOException e) {
+            P2PLogger.log("IOException happens when creating SelectorEngine.");
+            for (IOThread ioThread : ioThreads) {
+                if (ioThread != null) {
+                    ioThread.closeSelector();
+                }
+            }
+            throw e;
+        }
+    }
+
+    public void startRunning() {
+        for (IOThread ioThread : ioThreads) {
+            new Thread(ioThread).start();
+        }
+    }
+
+    //Wakes every I/O thread, so each notices the host has stopped, ends its connections, and exits.
+    public void stopRunning() {
+        for (IOThread ioThread : ioThreads) {
+            ioThread.selector.wakeup();
+        }
+    }
+
+    public int getIOThreadCount() {
+        return ioThreads.length;
+    }
+
+    public int getConnectionCount() {
+        int count = 0;
+        for (IOThread ioThread : ioThreads) {
+            count += ioThread.connectionCount;
+        }
+        return count;
+    }
+
+    //Number of messages waiting in write queues, summed over connections.
+    public int getQueuedMessageCount() {
+        int count = 0;
+        for (IOThread ioThread : ioThreads) {
+            count += ioThread.queuedMessageCount.get();
+        }
+        return count;
+    }
+
+    //Number of received messages waiting for a worker, summed over connections.
+    public int getReceivedMessageCount() {
+        int count = 0;
+        for (IOThread ioThread : ioThreads) {
+            count += ioThread.receivedMessageCount.get();
+        }
+        return count;
+    }
+
+    //Takes over the socket of the neighbor once its handshake is done. Returns a future completed when the connection ends,
+    //same as the future of a message listener run on the blocking engine.
+    public Future<MessageHandlerResult> register(NeighborPeer neighborPeer, Socket socket) {
+        NeighborPeer.MessageHandler messageHandler = neighborPeer.getMessageHandler();
+        IOThread ioThread = ioThreads[Math.floorMod(nextIOThread.getAndIncrement(), ioThreads.length)];
+        Connection connection = new Connection(ioThread, neighborPeer, socket.getChannel());
+        if (connection.channel == null) {
+            P2PLogger.log("Invalid socket happens when registering peer " + neighborPeer.getPeerID() + " to SelectorEngine. Socket must be backed by a channel.");
+            connection.finish(1);
+            return connection.future;
+        }
+        try {
+            connection.channel.configureBlocking(false);
+        } catch (IOException e) {
+            P2PLogger.log("IOException happens when registering peer " + neighborPeer.getPeerID() + " to SelectorEngine. Exception is not rethrown.");
+            connection.finish(1);
+            return connection.future;
+        }
+        messageHandler.attachConnection(connection);
+        ioThread.registrationQueue.add(connection);
+        ioThread.selector.wakeup();
+        return connection.future;
+    }
+
+    private ByteBuffer leaseFrame(int length) {
+        return length <= SMALL_FRAME_SIZE ? smallFramePool.lease(length) : hostPeer.getBufferPool().lease(length);
+    }
+
+    //Each pool ignores buffers of another size, so a frame goes back to the pool it came from.
+    private void releaseFrame(ByteBuffer frame) {
+        if (frame.capacity() == SMALL_FRAME_SIZE) {
+            smallFramePool.release(frame);
+        } else {
+            hostPeer.getBufferPool().release(frame);
+        }
+    }
+
+    //One neighbor connection served by an I/O thread.
+    public final class Connection {
+
+        private final IOThread ioThread;
+        private final NeighborPeer neighborPeer;
+        private final SocketChannel channel;
+        private final CompletableFuture<MessageHandlerResult> future;
+        private final AtomicBoolean finished;
+        private final ByteBuffer readBuffer;                //Only used by the I/O thread.
+        private ByteBuffer pendingFrame;                    //Message longer than the read buffer, being read straight into a pooled buffer. Only used by the I/O thread.
+        private final FrameReader frameReader;              //Only used by the worker handling the connection.
+        private final DataInputStream frameInput;           //Only used by the worker handling the connection.
+        private final ArrayDeque<ByteBuffer> frameQueue;    //Received messages, each in a buffer leased from the pool. Guarded by itself.
+        private boolean handling;                           //True while a worker is handling frameQueue. Guarded by frameQueue.
+        private boolean readPaused;                         //True while frameQueue is full. Guarded by frameQueue.
+        private boolean resumeRequested;                    //Guarded by frameQueue.
+        private boolean writeBlocked;                       //True while frameQueue waits for writeQueue to drain. Guarded by frameQueue.
+        private final ArrayDeque<ByteBuffer> writeQueue;    //Messages not fully written yet. Guarded by itself.
+        private boolean writeRequested;                     //Guarded by writeQueue.
+        private SelectionKey key;                           //Only used by the I/O thread.
+
+        private Connection(IOThread ioThread, NeighborPeer neighborPeer, SocketChannel channel) {
+            this.ioThread = ioThread;
+            this.neighborPeer = neighborPeer;
+            this.channel = channel;
+            future = new CompletableFuture<>();
+            finished = new AtomicBoolean();
+            readBuffer = channel == null ? null : ByteBuffer.allocateDirect(Math.min(READ_BUFFER_SIZE, maxFrameSize));
+            frameReader = new FrameReader();
+            frameInput = new DataInputStream(frameReader);
+            frameQueue = new ArrayDeque<>();
+            handling = false;
+            readPaused = false;
+            resumeRequested = false;
+            writeBlocked = false;
+            writeQueue = new ArrayDeque<>();
+            writeRequested = false;
+        }
+
+        //Writes the message now if the channel takes all of it. Otherwise queues it, and the I/O thread writes the rest when the channel is writable.
+        //Returns true if the message is queued. It is released to the buffer pool once written, so the caller must not release it.
+        //Returns false if the message is written. Caller still owns it.
+        public boolean write(ByteBuffer message) throws IOException {
+            synchronized (writeQueue) {
+                if (writeQueue.isEmpty()) {
+                    channel.write(message);
+                    if (!message.hasRemaining()) {
+                        return false;
+                    }
+                }
+                writeQueue.add(message);
+                ioThread.queuedMessageCount.getAndIncrement();
+                if (!writeRequested) {
+                    writeRequested = true;
+                    ioThread.writeRequestQueue.add(this);
+                    ioThread.selector.wakeup();
+                }
+                return true;
+            }
+        }
+
+        //Writes queued messages until the channel is full. Stops waiting for writability once the queue is empty.
+        //Lets workers handle messages again once half the full write queue is written.
+        private void flush() throws IOException {
+            boolean drained;
+            synchronized (writeQueue) {
+                while (!writeQueue.isEmpty()) {
+                    ByteBuffer message = writeQueue.peek();
+                    channel.write(message);
+                    if (message.hasRemaining()) {
+                        break;
+                    }
+                    writeQueue.poll();
+                    ioThread.queuedMessageCount.getAndDecrement();
+                    hostPeer.getBufferPool().release(message);
+                }
+                if (writeQueue.isEmpty()) {
+                    writeRequested = false;
+                    if (key != null && key.isValid()) {
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    }
+                }
+                drained = writeQueue.size() <= MAX_QUEUED_WRITES / 2;
+            }
+            if (drained) {
+                resumeHandling();
+            }
+        }
+
+        private boolean isWriteQueueFull() {
+            synchronized (writeQueue) {
+                return writeQueue.size() >= MAX_QUEUED_WRITES;
+            }
+        }
+
+        private boolean isWriteQueueDrained() {
+            synchronized (writeQueue) {
+                return writeQueue.size() <= MAX_QUEUED_WRITES / 2;
+            }
+        }
+
+        //Reads what the channel has, then queues every whole message in the read buffer for a worker.
+        //While a message longer than the read buffer is pending, reads go into it instead, and it is queued once full.
+        private void read() throws IOException {
+            if (pendingFrame != null) {
+                if (channel.read(pendingFrame) < 0) {
+                    throw new EOFException();
+                }
+                if (!pendingFrame.hasRemaining()) {
+                    ByteBuffer frame = pendingFrame;
+                    pendingFrame = null;
+                    frame.flip();
+                    queueFrame(frame);
+                }
+                return;         //The selector reports the channel again if it has more.
+            }
+            if (channel.read(readBuffer) < 0) {
+                throw new EOFException();
+            }
+            queueFrames();
+        }
+
+        //Cuts whole messages out of the read buffer until the frame queue is full. Stops reading the channel while it is full.
+        //A message that cannot fit the read buffer gets a pooled buffer of its own as soon as its length is known, and becomes pendingFrame.
+        //Only called by the I/O thread.
+        private void queueFrames() throws IOException {
+            readBuffer.flip();
+            try {
+                while (readBuffer.remaining() >= 4) {
+                    int messageLength = readBuffer.getInt(readBuffer.position());
+                    if (messageLength < 1 || messageLength > maxFrameSize - 4) {
+                        throw new IOException("Invalid message length " + messageLength + ".");
+                    }
+                    boolean whole = readBuffer.remaining() >= 4 + messageLength;
+                    if (!whole && 4 + messageLength <= readBuffer.capacity()) {
+                        break;
+                    }
+                    synchronized (frameQueue) {
+                        if (frameQueue.size() >= MAX_QUEUED_FRAMES) {
+                            readPaused = true;
+                            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                            break;
+                        }
+                    }
+
+                    ByteBuffer frame = leaseFrame(4 + messageLength);
+                    if (!whole) {
+                        frame.put(readBuffer);      //Rest of the message is read straight into the frame.
+                        pendingFrame = frame;
+                        break;
+                    }
+                    int limit = readBuffer.limit();
+                    readBuffer.limit(readBuffer.position() + 4 + messageLength);
+                    frame.put(readBuffer).flip();
+                    readBuffer.limit(limit);
+                    queueFrame(frame);
+                }
+            } finally {
+                readBuffer.compact();
+            }
+        }
+
+        //Only called by the I/O thread, once the connection has ended.
+        private void releasePendingFrame() {
+            if (pendingFrame != null) {
+                releaseFrame(pendingFrame);
+                pendingFrame = null;
+            }
+        }
+
+        private void queueFrame(ByteBuffer frame) {
+            synchronized (frameQueue) {
+                frameQueue.add(frame);
+                ioThread.receivedMessageCount.getAndIncrement();
+                if (handling || writeBlocked) {
+                    return;
+                }
+                handling = true;
+            }
+            try {
+                workerThreadPool.execute(this::handleFrames);
+            } catch (RejectedExecutionException e) {
+                fail();         //Host is stopping.
+            }
+        }
+
+        //Runs on a worker. Hands queued messages to the message handler in order. After MAX_QUEUED_FRAMES of them,
+        //the rest is left to a new task, so one busy connection cannot keep a worker from the others.
+        //Stops while the write queue is full. The I/O thread starts a new task once it is drained.
+        private void handleFrames() {
+            for (int i = 0; i < MAX_QUEUED_FRAMES; i++) {
+                if (isWriteQueueFull()) {
+                    synchronized (frameQueue) {
+                        handling = false;
+                        writeBlocked = true;
+                    }
+                    if (isWriteQueueDrained()) {
+                        resumeHandling();       //Drained before writeBlocked was set, so the I/O thread did not see it.
+                    }
+                    return;
+                }
+
+                ByteBuffer frame;
+                synchronized (frameQueue) {
+                    frame = frameQueue.poll();
+                    if (frame == null) {
+                        handling = false;
+                        return;
+                    }
+                    ioThread.receivedMessageCount.getAndDecrement();
+                    if (readPaused && !resumeRequested && frameQueue.size() <= MAX_QUEUED_FRAMES / 2) {
+                        resumeRequested = true;
+                        ioThread.resumeQueue.add(this);
+                        ioThread.selector.wakeup();
+                    }
+                }
+
+                frameReader.frame = frame;
+                try {
+                    if (!finished.get()) {
+                        neighborPeer.getMessageHandler().receiveFrame(frame, frameInput, frameReader);
+                    }
+                } catch (IOException e) {
+                    fail();
+                } catch (RuntimeException e) {
+                    P2PLogger.log(e.getClass().getSimpleName() + " happens when handling message from peer " + neighborPeer.getPeerID() + ". Exception is not rethrown.");
+                    fail();
+                } finally {
+                    frameReader.frame = null;
+                    releaseFrame(frame);
+                }
+            }
+            try {
+                workerThreadPool.execute(this::handleFrames);
+            } catch (RejectedExecutionException e) {
+                synchronized (frameQueue) {
+                    handling = false;
+                }
+                fail();
+            }
+        }
+
+        //Hands queued messages to a worker again once half the full write queue is written.
+        //Called by the I/O thread, or by the worker that found the write queue full.
+        private void resumeHandling() {
+            synchronized (frameQueue) {
+                if (!writeBlocked) {
+                    return;
+                }
+                writeBlocked = false;
+                if (handling || frameQueue.isEmpty()) {
+                    return;
+                }
+                handling = true;
+            }
+            try {
+                workerThreadPool.execute(this::handleFrames);
+            } catch (RejectedExecutionException e) {
+                synchronized (frameQueue) {
+                    handling = false;
+                }
+                fail();         //Host is stopping.
+            }
+        }
+
+        //Reads again once a worker has handled half the full frame queue. Messages left in the read buffer are queued first.
+        //Only called by the I/O thread.
+        private void resumeRead() throws IOException {
+            synchronized (frameQueue) {
+                resumeRequested = false;
+                readPaused = false;
+            }
+            if (key != null && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                queueFrames();
+            }
+        }
+
+        //Ends the connection once. Code 1 asks the peer manager to deregister the neighbor.
+        //Called by the I/O thread, or by a worker when a message is malformed. A worker cancelling the key races the I/O thread changing its
+        //interest, so the I/O thread treats CancelledKeyException as the connection having ended.
+        private void finish(int resultCode) {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+
+            if (key != null) {
+                key.cancel();
+            }
+            synchronized (frameQueue) {
+                for (ByteBuffer frame : frameQueue) {
+                    releaseFrame(frame);
+                }
+                ioThread.receivedMessageCount.getAndAdd(-frameQueue.size());
+                frameQueue.clear();
+            }
+            synchronized (writeQueue) {
+                for (ByteBuffer message : writeQueue) {
+                    hostPeer.getBufferPool().release(message);
+                }
+                ioThread.queuedMessageCount.getAndAdd(-writeQueue.size());
+                writeQueue.clear();
+            }
+            future.complete(neighborPeer.getMessageHandler().finish(resultCode));
+        }
+
+        //Same result code as the message listener of the blocking engine gives.
+        private void fail() {
+            if (finished.get()) {
+                return;
+            }
+
+            int resultCode = 0;
+            if (hostPeer.isRunning()) {
+                P2PLogger.log("Connection is lost for Peer " + neighborPeer.getPeerID() + ".");
+                resultCode = 1;
+            }
+            finish(resultCode);
+        }
+
+    }
+
+    private final class IOThread implements Runnable {
+
+        private final int index;
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Connection> registrationQueue;
+        private final ConcurrentLinkedQueue<Connection> writeRequestQueue;
+        private final ConcurrentLinkedQueue<Connection> resumeQueue;        //Connections whose workers have caught up.
+        private final ArrayList<Connection> connectionList;        //Only used by this thread.
+        private final AtomicInteger queuedMessageCount;
+        private final AtomicInteger receivedMessageCount;
+        private volatile int connectionCount;
+
+        public IOThread(int index) throws IOException {
+            this.index = index;
+            selector = Selector.open();
+            registrationQueue = new ConcurrentLinkedQueue<>();
+            writeRequestQueue = new ConcurrentLinkedQueue<>();
+            resumeQueue = new ConcurrentLinkedQueue<>();
+            connectionList = new ArrayList<>();
+            queuedMessageCount = new AtomicInteger();
+            receivedMessageCount = new AtomicInteger();
+            connectionCount = 0;
+        }
+
+        @Override
+        public void run() {
+            long closedCheckTimestamp = System.currentTimeMillis();
+
+            while (hostPeer.isRunning()) {
+                try {
+                    selector.select(CLOSED_CHECK_INTERVAL);
+                } catch (IOException e) {
+                    P2PLogger.log("IOException happens when selecting in SelectorEngine. Exception is not rethrown.");
+                    break;
+                }
+                registerConnections();
+                requestWrites();
+                resumeReads();
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    handleKey(key);
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - closedCheckTimestamp >= CLOSED_CHECK_INTERVAL) {
+                    closedCheckTimestamp = now;
+                    removeClosedConnections();
+                }
+            }
+
+            registerConnections();
+            for (Connection connection : connectionList) {
+                connection.fail();
+                connection.releasePendingFrame();
+            }
+            connectionList.clear();
+            connectionCount = 0;
+            closeSelector();
+            if (DEBUG) {
+                P2PLogger.log("[DEBUG] Thread exists for SelectorEngine I/O thread " + index + ".");
+            }
+        }
+
+        private void registerConnections() {
+            Connection connection;
+            while ((connection = registrationQueue.poll()) != null) {
+                try {
+                    connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (ClosedChannelException e) {
+                    connection.fail();
+                    continue;
+                }
+                connectionList.add(connection);
+                connectionCount = connectionList.size();
+            }
+        }
+
+        //A worker may cancel the key of a connection it fails between the validity check and the interest change.
+        //The connection has ended then, so CancelledKeyException is ignored here and in resumeReads.
+        private void requestWrites() {
+            Connection connection;
+            while ((connection = writeRequestQueue.poll()) != null) {
+                SelectionKey key = connection.key;
+                try {
+                    if (key != null && key.isValid()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                } catch (CancelledKeyException ignored) {
+                }
+            }
+        }
+
+        private void resumeReads() {
+            Connection connection;
+            while ((connection = resumeQueue.poll()) != null) {
+                try {
+                    connection.resumeRead();
+                } catch (IOException e) {
+                    connection.fail();
+                } catch (CancelledKeyException ignored) {
+                }
+            }
+        }
+
+        private void handleKey(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    connection.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.flush();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                connection.fail();
+            } catch (RuntimeException e) {
+                P2PLogger.log(e.getClass().getSimpleName() + " happens when handling message from peer " + connection.neighborPeer.getPeerID() + ". Exception is not rethrown.");
+                connection.fail();
+            }
+        }
+
+        //Sockets closed by another thread, such as by closeSocket of the message handler, cancel their keys without a read error.
+        private void removeClosedConnections() {
+            Iterator<Connection> iterator = connectionList.iterator();
+            while (iterator.hasNext()) {
+                Connection connection = iterator.next();
+                if (!connection.channel.isOpen() || connection.finished.get()) {
+                    connection.fail();
+                    connection.releasePendingFrame();
+                    iterator.remove();
+                }
+            }
+            connectionCount = connectionList.size();
+        }
+
+        private void closeSelector() {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                P2PLogger.log("IOException happens when closing selector. Exception is not rethrown.");
+            }
+        }
+
+    }
+
+    //Reads one decoded message, as a stream and as a channel, so piece payloads go through the same receiving code as with a blocking socket.
+    //End of the message reads as end of stream.
+    private static final class FrameReader extends InputStream implements ReadableByteChannel {
+
+        private ByteBuffer frame;       //Set for the duration of one message.
+
+        @Override
+        public int read() {
+            return frame.hasRemaining() ? frame.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!frame.hasRemaining()) {
+                return -1;
+            }
+            length = Math.min(length, frame.remaining());
+            frame.get(bytes, offset, length);
+            return length;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, frame.remaining()));
+            frame.position(frame.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return frame.remaining();
+        }
+
+        @Override
+        public int read(ByteBuffer target) {
+            if (!frame.hasRemaining()) {
+                return -1;
+            }
+            int length = Math.min(target.remaining(), frame.remaining());
+            int limit = frame.limit();
+            frame.limit(frame.position() + length);
+            target.put(frame);
+            frame.limit(limit);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+}
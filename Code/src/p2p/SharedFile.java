@@ -1,57 +1,116 @@
 package p2p;
 
+import static p2p.P2PLogger.DEBUG;
+
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
 
+//One contiguous piece space over one or more files. Files are laid out back to back in the given order, so a piece may cross files.
 @SuppressWarnings("unused")
 public final class SharedFile {
 
-    private final String fileName;
+    private final String fileName;              //Bundle name if more than one file is shared.
     private final String fileDirectory;
-    private final long fileSize;
+    private final long fileSize;                //Total size of all files.
     private final int pieceSize;
     private final int pieceCount;
-    private final RandomAccessFile fileIO;
+    private final StorageMode storageMode;
+    private final FileSpan[] fileSpans;
+    private volatile PieceManifest pieceManifest;       //null if pieces are checked by length only.
+    private volatile PieceCache pieceCache;             //null if uploads always read from disk.
+    private volatile WriteBehindBuffer writeBehindBuffer;       //null if received pieces are written synchronously.
+    private volatile IntConsumer lostPieceHandler;              //Told about each buffered piece that could not be written. null if nobody listens.
+    private static final ThreadLocal<MessageDigest> pieceDigest = ThreadLocal.withInitial(PieceManifest::createDigest);
+    private final BufferPool scratchBufferPool;                 //Piece sized buffers for sending buffered blocks and hashing from disk.
+
+    public enum StorageMode {
+
+        RANDOM_ACCESS("RandomAccess"),
+        MEMORY_MAPPED("MemoryMapped"),
+        POSITIONAL("Positional");
+
+        private final String configName;
+
+        StorageMode(String configName) {
+            this.configName = configName;
+        }
+
+        public String getConfigName() {
+            return configName;
+        }
+
+        //Returns null if no storage mode matches the config name.
+        public static StorageMode typeOf(String configName) {
+            for (StorageMode storageMode : values()) {
+                if (storageMode.configName.equalsIgnoreCase(configName)) {
+                    return storageMode;
+                }
+            }
+            return null;
+        }
+
+    }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
     public SharedFile(String fileName, String fileDirectory, long fileSize, int pieceSize) throws IOException {
-        if (fileName == null || fileName.length() == 0) {
+        this(fileName, fileDirectory, fileSize, pieceSize, StorageMode.RANDOM_ACCESS);
+    }
+
+    public SharedFile(String fileName, String fileDirectory, long fileSize, int pieceSize, StorageMode storageMode) throws IOException {
+        this(fileName, fileDirectory, Collections.singletonList(fileName), Collections.singletonList(fileSize), pieceSize, storageMode);
+    }
+
+    public SharedFile(String bundleName, String fileDirectory, List<String> fileNameList, List<Long> fileSizeList, int pieceSize, StorageMode storageMode) throws IOException {
+        if (bundleName == null || bundleName.length() == 0) {
+            throw new IllegalArgumentException("Invalid bundleName happens when creating SharedFile.");
+        }
+        if (fileNameList == null || fileNameList.isEmpty() || fileNameList.stream().anyMatch(n -> n == null || n.length() == 0)) {
             throw new IllegalArgumentException("Invalid fileName happens when creating SharedFile.");
         }
-        if (fileSize < 1) {
+        if (fileSizeList == null || fileSizeList.size() != fileNameList.size() || fileSizeList.stream().anyMatch(l -> l == null || l < 1)) {
             throw new IllegalArgumentException("Invalid fileSize happens when creating SharedFile.");
         }
         if (pieceSize < 1) {
             throw new IllegalArgumentException("Invalid pieceSize happens when creating SharedFile.");
         }
+        if (storageMode == null) {
+            throw new IllegalArgumentException("Invalid storageMode happens when creating SharedFile.");
+        }
 
-        this.fileName = fileName;
+        this.fileName = bundleName;
         this.fileDirectory = fileDirectory;
-        this.fileSize = fileSize;
+        this.fileSize = fileSizeList.stream().mapToLong(Long::longValue).sum();
         this.pieceSize = pieceSize;
+        this.storageMode = storageMode;
         pieceCount = (int) ((fileSize + pieceSize - 1) / pieceSize);
+        scratchBufferPool = new BufferPool(pieceSize);
 
-        File file = new File(fileDirectory, fileName);
-        if (file.isFile()) {    //Check if file exists and is a normal file, not a directory.
-            if (file.length() != fileSize) {
-                P2PLogger.log("[" + getFilePath() + "] File size is inconsistent. Reset size to " + fileSize + ".");
+        fileSpans = new FileSpan[fileNameList.size()];
+        long spanOffset = 0;
+        for (int i = 0; i < fileSpans.length; i++) {
+            try {
+                fileSpans[i] = new FileSpan(fileNameList.get(i), fileDirectory, spanOffset, fileSizeList.get(i), storageMode);
+            } catch (IOException e) {
+                closeFile();
+                throw e;
             }
-        } else {
-            new File(fileDirectory).mkdirs();
-        }
-
-        try {
-            fileIO = new RandomAccessFile(file, "rw");    //Open or create the file.
-            fileIO.setLength(fileSize);
-        } catch (FileNotFoundException e) {
-            P2PLogger.log("[" + getFilePath() + "] FileNotFoundException happens when opening or creating file.");
-            throw e;
-        } catch (IOException e) {
-            P2PLogger.log("[" + getFilePath() + "] IOException happens when setting file length.");
-            closeFile();
-            throw e;
+            spanOffset += fileSizeList.get(i);
         }
     }
 
@@ -79,13 +138,118 @@ public final class SharedFile {
         return pieceCount;
     }
 
+    public int getFileCount() {
+        return fileSpans.length;
+    }
+
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    //Returns true if every file was already on disk with its configured size before it was opened.
+    public boolean isFileSizeConsistent() {
+        for (FileSpan fileSpan : fileSpans) {
+            if (fileSpan.initialLength != fileSpan.length) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Returns true if every byte of the piece was on disk before the files were resized. Other pieces cannot hold valid data.
+    public boolean hasInitialData(int pieceIndex) {
+        if (pieceIndex < 0 || pieceIndex >= pieceCount) {
+            return false;
+        }
+
+        long position = (long) pieceIndex * pieceSize;
+        long end = position + getActualPieceSize(pieceIndex);
+        for (FileSpan fileSpan : fileSpans) {
+            long to = Math.min(end, fileSpan.offset + fileSpan.length);
+            if (Math.max(position, fileSpan.offset) < to && to - fileSpan.offset > fileSpan.initialLength) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void setPieceManifest(PieceManifest pieceManifest) {
+        if (pieceManifest != null && pieceManifest.getPieceCount() != pieceCount) {
+            throw new IllegalArgumentException("Invalid pieceManifest happens when setting piece manifest.");
+        }
+
+        this.pieceManifest = pieceManifest;
+    }
+
+    public PieceManifest getPieceManifest() {
+        return pieceManifest;
+    }
+
+    public void setPieceCache(PieceCache pieceCache) {
+        this.pieceCache = pieceCache;
+    }
+
+    public PieceCache getPieceCache() {
+        return pieceCache;
+    }
+
+    //Received pieces are kept in memory up to capacity bytes and written by a background thread in runs of adjacent pieces.
+    //Call once before the shared file is used.
+    public void startWriteBehind(long capacity) {
+        if (capacity < pieceSize) {
+            throw new IllegalArgumentException("Invalid capacity happens when starting write-behind.");
+        }
+        if (writeBehindBuffer != null) {
+            return;
+        }
+
+        writeBehindBuffer = new WriteBehindBuffer((int) Math.min(Integer.MAX_VALUE, capacity / pieceSize));
+        writeBehindBuffer.start();
+    }
+
+    //Turn off with one thread per neighbor, such as virtual threads, so each thread does not keep piece sized scratch buffers of its own.
+    public void setThreadCachingEnabled(boolean b) {
+        scratchBufferPool.setThreadCachingEnabled(b);
+    }
+
+    //Buffered pieces are already marked complete when they are written. The handler is called for each one that could not be written,
+    //on the writer thread and before flushWriteBehind returns, so the owner can mark it missing before progress is saved.
+    public void setLostPieceHandler(IntConsumer lostPieceHandler) {
+        this.lostPieceHandler = lostPieceHandler;
+    }
+
+    //Number of buffered pieces that could not be written and were given up.
+    public long getLostPieceCount() {
+        WriteBehindBuffer writeBehindBuffer = this.writeBehindBuffer;
+        return writeBehindBuffer == null ? 0 : writeBehindBuffer.getLostPieceCount();
+    }
+
+    //Returns true if no more received pieces can be buffered. Requests should be held back until pieces are flushed.
+    public boolean isWriteBehindFull() {
+        WriteBehindBuffer writeBehindBuffer = this.writeBehindBuffer;
+        return writeBehindBuffer != null && writeBehindBuffer.isFull();
+    }
+
+    public int getWriteBehindPieceCount() {
+        WriteBehindBuffer writeBehindBuffer = this.writeBehindBuffer;
+        return writeBehindBuffer == null ? 0 : writeBehindBuffer.getPendingPieceCount();
+    }
+
+    //Blocks until every piece received so far is written to disk.
+    public void flushWriteBehind() {
+        WriteBehindBuffer writeBehindBuffer = this.writeBehindBuffer;
+        if (writeBehindBuffer != null) {
+            writeBehindBuffer.flush();
+        }
+    }
+
     //Returns actual piece size.
     //Returns -1 if piece index is invalid.
     public int getActualPieceSize(int pieceIndex) {
         if (pieceIndex < 0 || pieceIndex >= pieceCount) {
             return -1;
         }
-        return pieceIndex == pieceCount - 1 ? (int) (fileSize % pieceSize) : pieceSize;
+        return pieceIndex == pieceCount - 1 ? (int) (fileSize - (long) pieceIndex * pieceSize) : pieceSize;
     }
 
     //Returns data piece of the file. Returned array length is 0 if pieceIndex is invalid.
@@ -96,18 +260,29 @@ public final class SharedFile {
         }
 
         byte[] piece = new byte[getActualPieceSize(pieceIndex)];
+        PieceCache pieceCache = this.pieceCache;
+        if (pieceCache != null && pieceCache.read(pieceIndex, piece)) {
+            return piece;
+        }
+        WriteBehindBuffer writeBehindBuffer = this.writeBehindBuffer;
+        if (writeBehindBuffer != null && writeBehindBuffer.copyPendingPiece(pieceIndex, ByteBuffer.wrap(piece))) {
+            return piece;
+        }
         try {
-            synchronized (fileIO) {
-                fileIO.seek((long) pieceIndex * pieceSize);
-                fileIO.readFully(piece);
-            }
+            forEachSpan(pieceIndex, (fileSpan, spanPosition, offset, length) -> fileSpan.storage.read(spanPosition, piece, offset, length));
         } catch (IOException e) {
             P2PLogger.log("[" + getFilePath() + "] IOException happens when reading file piece. Exception is not rethrown.");
             return new byte[0];
         }
+        ByteBuffer buffer = pieceCache == null ? null : pieceCache.allocateBuffer();
+        if (buffer != null) {
+            buffer.put(piece).flip();
+            pieceCache.put(pieceIndex, buffer);
+        }
         return piece;
     }
 
+    //With write-behind, the piece is copied into a write-behind buffer if one is free.
     //Returns 0 if writing is successful.
     //Returns -1 if writing is not successful.
     public int writePiece(int pieceIndex, byte[] piece) {
@@ -119,12 +294,22 @@ public final class SharedFile {
             P2PLogger.log("[" + getFilePath() + "] Invalid piece happens when writing file piece.");
             return -1;
         }
+        PieceManifest pieceManifest = this.pieceManifest;
+        if (pieceManifest != null && !pieceManifest.matches(pieceIndex, pieceDigest.get().digest(piece))) {
+            P2PLogger.log("[" + getFilePath() + "] Hash mismatch happens when writing file piece " + pieceIndex + ". Piece is discarded.");
+            return -1;
+        }
 
+        invalidateCachedPiece(pieceIndex);
+        WriteBehindBuffer writeBehindBuffer = this.writeBehindBuffer;
+        ByteBuffer buffer = writeBehindBuffer == null ? null : writeBehindBuffer.allocateBuffer();
+        if (buffer != null) {
+            buffer.put(piece).flip();
+            writeBehindBuffer.addPendingPiece(pieceIndex, buffer);
+            return 0;
+        }
         try {
-            synchronized (fileIO) {
-                fileIO.seek((long) pieceIndex * pieceSize);
-                fileIO.write(piece);
-            }
+            forEachSpan(pieceIndex, (fileSpan, spanPosition, offset, length) -> fileSpan.storage.write(spanPosition, piece, offset, length));
         } catch (IOException e) {
             P2PLogger.log("[" + getFilePath() + "] IOException happens when writing file piece. Exception is not rethrown.");
             return -1;
@@ -132,14 +317,936 @@ public final class SharedFile {
         return 0;
     }
 
-    public final void closeFile() {
+    //Copies blockLength bytes from blockOffset inside the piece into the buffer from its current position.
+    //Lets a piece be sent from a pooled buffer without reading it into a new array first.
+    //Returns 0 if reading is successful.
+    //Returns -1 if the block is not inside the piece or does not fit the buffer, or reading is not successful.
+    public int readBlock(int pieceIndex, int blockOffset, int blockLength, ByteBuffer target) {
+        if (pieceIndex < 0 || pieceIndex >= pieceCount) {
+            return -1;
+        }
+        if (blockOffset < 0 || blockLength < 0 || blockOffset + blockLength > getActualPieceSize(pieceIndex) || blockLength > target.remaining()) {
+            return -1;
+        }
+
+        PieceCache pieceCache = this.pieceCache;
+        if (pieceCache != null && pieceCache.read(pieceIndex, blockOffset, blockLength, target)) {
+            return 0;
+        }
+        WriteBehindBuffer writeBehindBuffer = this.writeBehindBuffer;
+        if (writeBehindBuffer != null && writeBehindBuffer.copyPendingPiece(pieceIndex, blockOffset, blockLength, target)) {
+            return 0;
+        }
         try {
-            synchronized (fileIO) {
-                fileIO.close();
+            forEachSpan(pieceIndex, blockOffset, blockLength, (fileSpan, spanPosition, offset, length) -> fileSpan.storage.read(spanPosition, length, target));
+        } catch (IOException e) {
+            P2PLogger.log("[" + getFilePath() + "] IOException happens when reading file block. Exception is not rethrown.");
+            return -1;
+        }
+        return 0;
+    }
+
+    //Sends data piece of the file straight to the target channel.
+    //Returns the number of bytes sent.
+    //Returns -1 if pieceIndex is invalid. Nothing is sent.
+    //IOException is rethrown because it is usually caused by the target channel, which the caller owns.
+    public int transferPiece(int pieceIndex, WritableByteChannel target) throws IOException {
+        return transferBlock(pieceIndex, 0, getActualPieceSize(pieceIndex), target);
+    }
+
+    //Sends blockLength bytes from blockOffset inside the piece straight to the target channel.
+    //Returns the number of bytes sent.
+    //Returns -1 if the block is not inside the piece. Nothing is sent.
+    public int transferBlock(int pieceIndex, int blockOffset, int blockLength, WritableByteChannel target) throws IOException {
+        if (pieceIndex < 0 || pieceIndex >= pieceCount) {
+            return -1;
+        }
+        if (blockOffset < 0 || blockLength < 0 || blockOffset + blockLength > getActualPieceSize(pieceIndex)) {
+            return -1;
+        }
+
+        WriteBehindBuffer writeBehindBuffer = this.writeBehindBuffer;
+        if (writeBehindBuffer != null) {
+            ByteBuffer buffer = scratchBufferPool.lease(blockLength);
+            try {
+                if (writeBehindBuffer.copyPendingPiece(pieceIndex, blockOffset, blockLength, buffer)) {     //Piece is not on disk yet. Send the buffered block.
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer);
+                    }
+                    return blockLength;
+                }
+            } finally {
+                scratchBufferPool.release(buffer);
+            }
+        }
+
+        //Hot pieces are served from memory. A missed piece is read once into a cache buffer, sent, then cached.
+        //Without a cache, or once buffers of other missed pieces take its whole budget, the block goes from the file to the target.
+        PieceCache pieceCache = this.pieceCache;
+        if (pieceCache != null && pieceCache.transferTo(pieceIndex, blockOffset, blockLength, target)) {
+            return blockLength;
+        }
+        ByteBuffer buffer = pieceCache == null ? null : pieceCache.allocateBuffer();
+        if (buffer == null) {
+            forEachSpan(pieceIndex, blockOffset, blockLength, (fileSpan, spanPosition, offset, length) -> fileSpan.storage.transferTo(spanPosition, length, target));
+            return blockLength;
+        }
+
+        boolean cached = false;
+        try {
+            forEachSpan(pieceIndex, (fileSpan, spanPosition, offset, length) -> fileSpan.storage.read(spanPosition, length, buffer));
+            buffer.flip();
+            ByteBuffer view = buffer.duplicate();
+            view.position(blockOffset).limit(blockOffset + blockLength);
+            while (view.hasRemaining()) {
+                target.write(view);
+            }
+            pieceCache.put(pieceIndex, buffer);
+            cached = true;
+        } finally {
+            if (!cached) {
+                pieceCache.releaseBuffer(buffer);       //Read or write failed. Buffer goes back without caching a partial piece.
+            }
+        }
+        return blockLength;
+    }
+
+    //Receives data piece of the file from the source channel, through a pooled buffer. The whole piece has landed in the file when this returns 0.
+    //With write-behind, the piece lands in a write-behind buffer instead and is readable from there until it is flushed.
+    //If the write-behind buffer is full, the piece goes straight into the file as usual.
+    //If a piece manifest is set, the landed piece is also checked against its hash.
+    //Returns 0 if receiving is successful.
+    //Returns -1 if pieceIndex is invalid, or the piece does not match the manifest. Piece must not be marked complete.
+    //IOException is rethrown because it is usually caused by the source channel, which the caller owns.
+    public int receivePiece(int pieceIndex, ReadableByteChannel source) throws IOException {
+        if (pieceIndex < 0 || pieceIndex >= pieceCount) {
+            return -1;
+        }
+
+        invalidateCachedPiece(pieceIndex);
+        WriteBehindBuffer writeBehindBuffer = this.writeBehindBuffer;
+        ByteBuffer buffer = writeBehindBuffer == null ? null : writeBehindBuffer.allocateBuffer();
+        if (buffer != null) {
+            return receivePieceIntoBuffer(pieceIndex, source, buffer);
+        }
+
+        buffer = scratchBufferPool.lease(pieceSize);
+        try {
+            ByteBuffer scratchBuffer = buffer;
+            forEachSpan(pieceIndex, (fileSpan, spanPosition, offset, length) -> fileSpan.storage.transferFrom(spanPosition, length, source, scratchBuffer));
+        } finally {
+            scratchBufferPool.release(buffer);
+        }
+        PieceManifest pieceManifest = this.pieceManifest;
+        if (pieceManifest != null && !pieceManifest.matches(pieceIndex, hashPiece(pieceIndex))) {
+            P2PLogger.log("[" + getFilePath() + "] Hash mismatch happens when receiving file piece " + pieceIndex + ". Piece is discarded.");
+            return -1;
+        }
+        return 0;
+    }
+
+    private int receivePieceIntoBuffer(int pieceIndex, ReadableByteChannel source, ByteBuffer buffer) throws IOException {
+        try {
+            buffer.limit(getActualPieceSize(pieceIndex));
+            while (buffer.hasRemaining()) {
+                if (source.read(buffer) < 0) {
+                    throw new EOFException();
+                }
+            }
+            buffer.flip();
+        } catch (IOException e) {
+            writeBehindBuffer.releaseBuffer(buffer);
+            throw e;
+        }
+
+        PieceManifest pieceManifest = this.pieceManifest;
+        if (pieceManifest != null) {
+            MessageDigest messageDigest = pieceDigest.get();
+            messageDigest.reset();
+            messageDigest.update(buffer.duplicate());
+            if (!pieceManifest.matches(pieceIndex, messageDigest.digest())) {
+                P2PLogger.log("[" + getFilePath() + "] Hash mismatch happens when receiving file piece " + pieceIndex + ". Piece is discarded.");
+                writeBehindBuffer.releaseBuffer(buffer);
+                return -1;
+            }
+        }
+        writeBehindBuffer.addPendingPiece(pieceIndex, buffer);
+        return 0;
+    }
+
+    //Returns SHA-256 hash of the piece as it is on disk. Returned array length is 0 if pieceIndex is invalid or piece cannot be read.
+    public byte[] hashPiece(int pieceIndex) {
+        if (pieceIndex < 0 || pieceIndex >= pieceCount) {
+            return new byte[0];
+        }
+
+        MessageDigest messageDigest = pieceDigest.get();
+        messageDigest.reset();
+        WriteBehindBuffer writeBehindBuffer = this.writeBehindBuffer;
+        if (writeBehindBuffer != null && writeBehindBuffer.digestPendingPiece(pieceIndex, messageDigest)) {
+            return messageDigest.digest();
+        }
+        ByteBuffer buffer = scratchBufferPool.lease(pieceSize);
+        try {
+            forEachSpan(pieceIndex, (fileSpan, spanPosition, offset, length) -> fileSpan.storage.digest(spanPosition, length, messageDigest, buffer));
+        } catch (IOException e) {
+            P2PLogger.log("[" + getFilePath() + "] IOException happens when hashing file piece. Exception is not rethrown.");
+            messageDigest.reset();
+            return new byte[0];
+        } finally {
+            scratchBufferPool.release(buffer);
+        }
+        return messageDigest.digest();
+    }
+
+    //Forces written pieces to the storage device. Pieces still in the write-behind buffer are not included.
+    //Returns 0 if syncing is successful.
+    //Returns -1 if syncing is not successful.
+    public int syncFile() {
+        try {
+            for (FileSpan fileSpan : fileSpans) {
+                fileSpan.storage.sync();
             }
         } catch (IOException e) {
-            P2PLogger.log("[" + getFilePath() + "] IOException happens when closing file. Exception is not rethrown.");
+            P2PLogger.log("[" + getFilePath() + "] IOException happens when syncing file. Exception is not rethrown.");
+            return -1;
+        }
+        return 0;
+    }
+
+    public final void closeFile() {
+        WriteBehindBuffer writeBehindBuffer = this.writeBehindBuffer;
+        if (writeBehindBuffer != null) {
+            writeBehindBuffer.stop();       //Flushes every pending piece first.
+        }
+        for (FileSpan fileSpan : fileSpans) {
+            if (fileSpan != null) {
+                fileSpan.closeFile();
+            }
+        }
+    }
+
+    private void invalidateCachedPiece(int pieceIndex) {
+        PieceCache pieceCache = this.pieceCache;
+        if (pieceCache != null) {
+            pieceCache.invalidate(pieceIndex);
+        }
+    }
+
+    //Applies the action to each part of the piece, in file order. Offset is the position of the part inside the piece.
+    private void forEachSpan(int pieceIndex, SpanAction spanAction) throws IOException {
+        forEachSpan(pieceIndex, 0, getActualPieceSize(pieceIndex), spanAction);
+    }
+
+    //Same as above, for the range of rangeLength bytes from rangeOffset inside the piece.
+    private void forEachSpan(int pieceIndex, int rangeOffset, int rangeLength, SpanAction spanAction) throws IOException {
+        long piecePosition = (long) pieceIndex * pieceSize;
+        long position = piecePosition + rangeOffset;
+        long end = position + rangeLength;
+        for (FileSpan fileSpan : fileSpans) {
+            long from = Math.max(position, fileSpan.offset);
+            long to = Math.min(end, fileSpan.offset + fileSpan.length);
+            if (from < to) {
+                spanAction.apply(fileSpan, from - fileSpan.offset, (int) (from - piecePosition), (int) (to - from));
+            }
+        }
+    }
+
+    //Holds received pieces until a background thread writes them. Adjacent pieces are written together as one sequential gathering write.
+    private final class WriteBehindBuffer implements Runnable {
+
+        private static final long COALESCING_DELAY = 50;       //in milliseconds. Waiting a little lets adjacent pieces arrive.
+        private static final int WRITE_RETRY_COUNT = 3;
+        private static final long WRITE_RETRY_DELAY = 1000;    //in milliseconds.
+
+        private final int capacity;                                    //in pieces
+        private final TreeMap<Integer, ByteBuffer> pendingPieceMap;    //Guarded by itself.
+        private final ArrayDeque<ByteBuffer> freeBufferQueue;          //Guarded by pendingPieceMap.
+        private int allocatedBufferCount;                              //Guarded by pendingPieceMap.
+        private long addedPieceCount;                                  //Guarded by pendingPieceMap.
+        private long writtenPieceCount;                                //Guarded by pendingPieceMap.
+        private boolean runningIndicator;                              //Guarded by pendingPieceMap.
+        private long lostPieceCount;                                   //Guarded by pendingPieceMap.
+        private Thread writerThread;
+
+        public WriteBehindBuffer(int capacity) {
+            this.capacity = capacity;
+            pendingPieceMap = new TreeMap<>();
+            freeBufferQueue = new ArrayDeque<>();
+            allocatedBufferCount = 0;
+            addedPieceCount = 0;
+            writtenPieceCount = 0;
+            runningIndicator = true;
+            lostPieceCount = 0;
+        }
+
+        //Daemon, so a peer that exits without closing the file is not kept alive. closeFile flushes and waits for it.
+        public void start() {
+            writerThread = new Thread(this);
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                TreeMap<Integer, ByteBuffer> batchMap;
+                synchronized (pendingPieceMap) {
+                    try {
+                        while (pendingPieceMap.isEmpty() && runningIndicator) {
+                            pendingPieceMap.wait();
+                        }
+                        if (pendingPieceMap.isEmpty()) {
+                            break;
+                        }
+                        if (runningIndicator && !isFull()) {
+                            pendingPieceMap.wait(COALESCING_DELAY);
+                        }
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    batchMap = new TreeMap<>(pendingPieceMap);     //Pieces stay readable from pendingPieceMap while they are written.
+                }
+
+                List<Integer> lostPieceList = writeBatch(batchMap) == 0 ? Collections.emptyList() : retryBatch(batchMap);
+
+                //Lost pieces are reported while still pending, so they are marked missing before a flush returns or anyone reads them from disk.
+                for (int pieceIndex : lostPieceList) {
+                    P2PLogger.log("[" + getFilePath() + "] Piece " + pieceIndex + " could not be written from write-behind buffer. It is marked missing.");
+                    invalidateCachedPiece(pieceIndex);
+                    IntConsumer lostPieceHandler = SharedFile.this.lostPieceHandler;
+                    if (lostPieceHandler != null) {
+                        lostPieceHandler.accept(pieceIndex);
+                    }
+                }
+
+                synchronized (pendingPieceMap) {
+                    for (Map.Entry<Integer, ByteBuffer> entry : batchMap.entrySet()) {
+                        pendingPieceMap.remove(entry.getKey());
+                        freeBufferQueue.add(entry.getValue());
+                    }
+                    writtenPieceCount += batchMap.size();
+                    lostPieceCount += lostPieceList.size();
+                    pendingPieceMap.notifyAll();
+                }
+            }
+
+            if (DEBUG) {
+                P2PLogger.log("[DEBUG] Thread exists for WriteBehindBuffer of " + getFilePath() + ".");
+            }
+        }
+
+        //Returns an empty buffer of piece size.
+        //Returns null if the memory budget is used up.
+        public ByteBuffer allocateBuffer() {
+            synchronized (pendingPieceMap) {
+                ByteBuffer buffer = freeBufferQueue.poll();
+                if (buffer == null && allocatedBufferCount < capacity) {
+                    buffer = ByteBuffer.allocateDirect(pieceSize);
+                    allocatedBufferCount++;
+                }
+                if (buffer != null) {
+                    buffer.clear();
+                }
+                return buffer;
+            }
+        }
+
+        public void releaseBuffer(ByteBuffer buffer) {
+            synchronized (pendingPieceMap) {
+                freeBufferQueue.add(buffer);
+            }
+        }
+
+        public void addPendingPiece(int pieceIndex, ByteBuffer buffer) {
+            synchronized (pendingPieceMap) {
+                if (pendingPieceMap.containsKey(pieceIndex)) {     //Same piece received twice. Pending copy may be under write already, so keep it.
+                    freeBufferQueue.add(buffer);
+                    return;
+                }
+                pendingPieceMap.put(pieceIndex, buffer);
+                addedPieceCount++;
+                pendingPieceMap.notifyAll();
+            }
+        }
+
+        //Copies the pending piece into the buffer from its current position.
+        //Returns false if the piece is not pending. Nothing is copied.
+        public boolean copyPendingPiece(int pieceIndex, ByteBuffer target) {
+            synchronized (pendingPieceMap) {
+                ByteBuffer buffer = pendingPieceMap.get(pieceIndex);
+                if (buffer == null) {
+                    return false;
+                }
+                target.put(buffer.duplicate());
+                return true;
+            }
+        }
+
+        //Same as above, for length bytes from offset inside the piece.
+        public boolean copyPendingPiece(int pieceIndex, int offset, int length, ByteBuffer target) {
+            synchronized (pendingPieceMap) {
+                ByteBuffer buffer = pendingPieceMap.get(pieceIndex);
+                if (buffer == null) {
+                    return false;
+                }
+                ByteBuffer slice = buffer.duplicate();
+                slice.position(offset).limit(offset + length);
+                target.put(slice);
+                return true;
+            }
+        }
+
+        public boolean digestPendingPiece(int pieceIndex, MessageDigest messageDigest) {
+            synchronized (pendingPieceMap) {
+                ByteBuffer buffer = pendingPieceMap.get(pieceIndex);
+                if (buffer == null) {
+                    return false;
+                }
+                messageDigest.update(buffer.duplicate());
+                return true;
+            }
+        }
+
+        public boolean isFull() {
+            synchronized (pendingPieceMap) {
+                return freeBufferQueue.isEmpty() && allocatedBufferCount >= capacity;
+            }
+        }
+
+        public int getPendingPieceCount() {
+            synchronized (pendingPieceMap) {
+                return pendingPieceMap.size();
+            }
+        }
+
+        public long getLostPieceCount() {
+            synchronized (pendingPieceMap) {
+                return lostPieceCount;
+            }
+        }
+
+        public void flush() {
+            synchronized (pendingPieceMap) {
+                long targetPieceCount = addedPieceCount;
+                pendingPieceMap.notifyAll();
+                while (writtenPieceCount < targetPieceCount && runningIndicator) {
+                    try {
+                        pendingPieceMap.wait();
+                    } catch (InterruptedException e) {
+                        P2PLogger.log("[" + getFilePath() + "] InterruptedException happens when flushing write-behind buffer. Exception is not rethrown.");
+                        return;
+                    }
+                }
+            }
+        }
+
+        //Writer thread flushes what is left, then exits. Waits for it, so nothing is written after the files are closed.
+        public void stop() {
+            flush();
+            synchronized (pendingPieceMap) {
+                runningIndicator = false;
+                pendingPieceMap.notifyAll();
+            }
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                P2PLogger.log("[" + getFilePath() + "] InterruptedException happens when stopping write-behind buffer. Exception is not rethrown.");
+            }
+        }
+
+        //Writes the batch again a few times, in case the failure passes, such as a full disk being cleaned up.
+        //Then writes each piece alone, so only pieces that still fail are given up.
+        //Returns the indexes of pieces that could not be written.
+        private List<Integer> retryBatch(TreeMap<Integer, ByteBuffer> batchMap) {
+            for (int i = 0; i < WRITE_RETRY_COUNT; i++) {
+                try {
+                    Thread.sleep(WRITE_RETRY_DELAY);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (writeBatch(batchMap) == 0) {
+                    return Collections.emptyList();
+                }
+            }
+
+            List<Integer> lostPieceList = new ArrayList<>();
+            for (Map.Entry<Integer, ByteBuffer> entry : batchMap.entrySet()) {
+                TreeMap<Integer, ByteBuffer> pieceMap = new TreeMap<>();
+                pieceMap.put(entry.getKey(), entry.getValue());
+                if (writeBatch(pieceMap) != 0) {
+                    lostPieceList.add(entry.getKey());
+                }
+            }
+            return lostPieceList;
+        }
+
+        //Splits the batch into runs of adjacent pieces. Each run becomes one gathering write per file it covers.
+        //Returns 0 if every piece is written.
+        //Returns -1 if an IOException happens. Pieces written before it stay written, so the whole batch can be written again.
+        private int writeBatch(TreeMap<Integer, ByteBuffer> batchMap) {
+            GatheringWrite gatheringWrite = new GatheringWrite();
+            int previousPieceIndex = -2;
+            try {
+                for (Map.Entry<Integer, ByteBuffer> entry : batchMap.entrySet()) {
+                    if (entry.getKey() != previousPieceIndex + 1) {
+                        gatheringWrite.write();
+                    }
+                    ByteBuffer buffer = entry.getValue();
+                    forEachSpan(entry.getKey(), (fileSpan, spanPosition, offset, length) -> gatheringWrite.add(fileSpan, spanPosition, buffer, offset, length));
+                    previousPieceIndex = entry.getKey();
+                }
+                gatheringWrite.write();
+            } catch (IOException e) {
+                P2PLogger.log("[" + getFilePath() + "] IOException happens when writing " + batchMap.size() + " pieces from write-behind buffer. Exception is not rethrown.");
+                return -1;
+            }
+            return 0;
+        }
+
+    }
+
+    //Collects contiguous slices of one file and writes them with a single gathering write.
+    private static final class GatheringWrite {
+
+        private final ArrayList<ByteBuffer> sliceList = new ArrayList<>();
+        private FileSpan fileSpan = null;
+        private long spanPosition = 0;
+        private long nextSpanPosition = 0;
+
+        public void add(FileSpan fileSpan, long spanPosition, ByteBuffer buffer, int offset, int length) throws IOException {
+            if (fileSpan != this.fileSpan || spanPosition != nextSpanPosition) {
+                write();
+                this.fileSpan = fileSpan;
+                this.spanPosition = spanPosition;
+            }
+
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(offset);
+            slice.limit(offset + length);
+            sliceList.add(slice);
+            nextSpanPosition = spanPosition + length;
+        }
+
+        public void write() throws IOException {
+            if (!sliceList.isEmpty()) {
+                fileSpan.storage.write(spanPosition, sliceList.toArray(new ByteBuffer[0]));
+            }
+            sliceList.clear();
+            fileSpan = null;
+        }
+
+    }
+
+    private interface SpanAction {
+
+        void apply(FileSpan fileSpan, long spanPosition, int offset, int length) throws IOException;
+
+    }
+
+    //One file of the piece space.
+    private static final class FileSpan {
+
+        private final String fileName;
+        private final String fileDirectory;
+        private final long offset;              //Position of the first byte of this file in the piece space.
+        private final long length;
+        private final long initialLength;       //Length of the file on disk before it is resized. 0 if file is created.
+        private final RandomAccessFile fileIO;
+        private final ReentrantLock fileIOLock;         //Guards the file pointer. Virtual threads queued on it unmount, unlike on a monitor.
+        private final Storage storage;
+
+        @SuppressWarnings("ResultOfMethodCallIgnored")
+        public FileSpan(String fileName, String fileDirectory, long offset, long length, StorageMode storageMode) throws IOException {
+            this.fileName = fileName;
+            this.fileDirectory = fileDirectory;
+            this.offset = offset;
+            this.length = length;
+
+            File file = new File(fileDirectory, fileName);
+            initialLength = file.isFile() ? file.length() : 0;
+            if (file.isFile()) {    //Check if file exists and is a normal file, not a directory.
+                if (file.length() != length) {
+                    P2PLogger.log("[" + getFilePath() + "] File size is inconsistent. Reset size to " + length + ".");
+                }
+            } else {
+                new File(fileDirectory).mkdirs();
+            }
+
+            fileIOLock = new ReentrantLock();
+            try {
+                fileIO = new RandomAccessFile(file, "rw");    //Open or create the file.
+                fileIO.setLength(length);
+            } catch (FileNotFoundException e) {
+                P2PLogger.log("[" + getFilePath() + "] FileNotFoundException happens when opening or creating file.");
+                throw e;
+            } catch (IOException e) {
+                P2PLogger.log("[" + getFilePath() + "] IOException happens when setting file length.");
+                closeFile();
+                throw e;
+            }
+
+            try {
+                switch (storageMode) {
+                    case MEMORY_MAPPED:
+                        storage = new MappedStorage(fileIO, fileIOLock, length);
+                        break;
+                    case POSITIONAL:
+                        storage = new PositionalStorage(fileIO, fileIOLock);
+                        break;
+                    default:
+                        storage = new RandomAccessStorage(fileIO, fileIOLock);
+                        break;
+                }
+            } catch (IOException e) {
+                P2PLogger.log("[" + getFilePath() + "] IOException happens when preparing " + storageMode.getConfigName() + " storage.");
+                closeFile();
+                throw e;
+            }
+        }
+
+        public final String getFilePath() {
+            return fileDirectory + File.separator + fileName;
+        }
+
+        public final void closeFile() {
+            try {
+                if (storage != null) {
+                    storage.close();
+                }
+                fileIOLock.lock();
+                try {
+                    fileIO.close();
+                } finally {
+                    fileIOLock.unlock();
+                }
+            } catch (IOException e) {
+                P2PLogger.log("[" + getFilePath() + "] IOException happens when closing file. Exception is not rethrown.");
+            }
+        }
+
+    }
+
+    //Byte level access to one file. Implementations decide how concurrent access is coordinated.
+    private abstract static class Storage {
+
+        protected final RandomAccessFile fileIO;
+        protected final ReentrantLock fileIOLock;
+        protected final FileChannel fileChannel;
+
+        protected Storage(RandomAccessFile fileIO, ReentrantLock fileIOLock) {
+            this.fileIO = fileIO;
+            this.fileIOLock = fileIOLock;
+            fileChannel = fileIO.getChannel();
         }
+
+        public abstract void read(long position, byte[] bytes, int offset, int length) throws IOException;
+
+        public abstract void write(long position, byte[] bytes, int offset, int length) throws IOException;
+
+        //Writes the buffers back to back from position with one gathering write.
+        //Channel position is shared with the file pointer, so it is moved only while holding fileIOLock.
+        public void write(long position, ByteBuffer[] buffers) throws IOException {
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            fileIOLock.lock();
+            try {
+                fileChannel.position(position);
+                while (remaining > 0) {
+                    remaining -= fileChannel.write(buffers);
+                }
+            } finally {
+                fileIOLock.unlock();
+            }
+        }
+
+        //Reads length bytes into the buffer from its current position.
+        public void read(long position, int length, ByteBuffer buffer) throws IOException {
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + length);
+            try {
+                while (buffer.hasRemaining()) {
+                    int count = fileChannel.read(buffer, position);
+                    if (count < 0) {
+                        throw new EOFException();
+                    }
+                    position += count;
+                }
+            } finally {
+                buffer.limit(limit);
+            }
+        }
+
+        //Sends file bytes to the target channel without copying them into the heap. Uses sendfile where the platform supports it.
+        //If transferTo makes no progress, the rest is read into a buffer and written, so a target that takes nothing is not spun on.
+        public void transferTo(long position, int length, WritableByteChannel target) throws IOException {
+            if (position + length > fileChannel.size()) {
+                throw new EOFException();
+            }
+
+            long transferred = 0;
+            while (transferred < length) {
+                long count = fileChannel.transferTo(position + transferred, length - transferred, target);
+                if (count <= 0) {
+                    writeBuffered(position + transferred, (int) (length - transferred), target);
+                    return;
+                }
+                transferred += count;
+            }
+        }
+
+        //Target is a blocking channel, so each write sends at least one byte.
+        private void writeBuffered(long position, int length, WritableByteChannel target) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(Math.min(length, 65536));
+            long end = position + length;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int count = fileChannel.read(buffer, position);
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                position += count;
+            }
+        }
+
+        //Receives bytes from the source channel into the file region through the given direct buffer.
+        //FileChannel.transferFrom is not used, as it allocates a heap buffer on every call when the source is not a file.
+        public void transferFrom(long position, int length, ReadableByteChannel source, ByteBuffer buffer) throws IOException {
+            long end = position + length;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                while (buffer.hasRemaining()) {
+                    if (source.read(buffer) <= 0) {
+                        throw new EOFException();       //Blocking source returns 0 only at end of stream.
+                    }
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += fileChannel.write(buffer, position);
+                }
+            }
+        }
+
+        //Feeds file bytes to the message digest through the given direct buffer.
+        public void digest(long position, int length, MessageDigest messageDigest, ByteBuffer buffer) throws IOException {
+            long end = position + length;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int count = fileChannel.read(buffer, position);
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                buffer.flip();
+                messageDigest.update(buffer);
+                position += count;
+            }
+        }
+
+        public void sync() throws IOException {
+            fileChannel.force(false);
+        }
+
+        public void close() throws IOException {
+        }
+
+    }
+
+    //Original storage. Every access seeks the shared file pointer, so all reads and writes are serialized on fileIOLock.
+    private static final class RandomAccessStorage extends Storage {
+
+        public RandomAccessStorage(RandomAccessFile fileIO, ReentrantLock fileIOLock) {
+            super(fileIO, fileIOLock);
+        }
+
+        @Override
+        public void read(long position, byte[] bytes, int offset, int length) throws IOException {
+            fileIOLock.lock();
+            try {
+                fileIO.seek(position);
+                fileIO.readFully(bytes, offset, length);
+            } finally {
+                fileIOLock.unlock();
+            }
+        }
+
+        @Override
+        public void write(long position, byte[] bytes, int offset, int length) throws IOException {
+            fileIOLock.lock();
+            try {
+                fileIO.seek(position);
+                fileIO.write(bytes, offset, length);
+            } finally {
+                fileIOLock.unlock();
+            }
+        }
+
+    }
+
+    //Uses positional channel reads and writes (pread / pwrite). No file pointer is shared, so pieces are accessed in parallel.
+    private static final class PositionalStorage extends Storage {
+
+        public PositionalStorage(RandomAccessFile fileIO, ReentrantLock fileIOLock) {
+            super(fileIO, fileIOLock);
+        }
+
+        @Override
+        public void read(long position, byte[] bytes, int offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+            while (buffer.hasRemaining()) {
+                if (fileChannel.read(buffer, position + buffer.position() - offset) < 0) {
+                    throw new EOFException();
+                }
+            }
+        }
+
+        @Override
+        public void write(long position, byte[] bytes, int offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer, position + buffer.position() - offset);
+            }
+        }
+
+    }
+
+    //Maps the file into fixed size segments so that files larger than 2 GB can be mapped.
+    //Each access works on its own view of a segment, so no lock is needed between pieces.
+    private static final class MappedStorage extends Storage {
+
+        private static final int SEGMENT_SIZE = 1 << 30;       //1 GB per mapping. Must stay below Integer.MAX_VALUE.
+
+        private final MappedByteBuffer[] segments;
+
+        public MappedStorage(RandomAccessFile fileIO, ReentrantLock fileIOLock, long fileSize) throws IOException {
+            super(fileIO, fileIOLock);
+            segments = new MappedByteBuffer[(int) ((fileSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (int i = 0; i < segments.length; i++) {
+                long segmentPosition = (long) i * SEGMENT_SIZE;
+                segments[i] = fileChannel.map(FileChannel.MapMode.READ_WRITE, segmentPosition, Math.min(SEGMENT_SIZE, fileSize - segmentPosition));
+            }
+        }
+
+        @Override
+        public void read(long position, byte[] bytes, int offset, int length) {
+            int end = offset + length;
+            while (offset < end) {
+                ByteBuffer view = getView(position, end - offset);
+                int viewLength = view.remaining();
+                view.get(bytes, offset, viewLength);
+                offset += viewLength;
+                position += viewLength;
+            }
+        }
+
+        @Override
+        public void write(long position, byte[] bytes, int offset, int length) {
+            int end = offset + length;
+            while (offset < end) {
+                ByteBuffer view = getView(position, end - offset);
+                int viewLength = view.remaining();
+                view.put(bytes, offset, viewLength);
+                offset += viewLength;
+                position += viewLength;
+            }
+        }
+
+        @Override
+        public void read(long position, int length, ByteBuffer buffer) {
+            long end = position + length;
+            while (position < end) {
+                ByteBuffer view = getView(position, (int) (end - position));
+                position += view.remaining();
+                buffer.put(view);
+            }
+        }
+
+        @Override
+        public void write(long position, ByteBuffer[] buffers) {
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) {
+                    ByteBuffer view = getView(position, buffer.remaining());
+                    int viewLength = view.remaining();
+                    ByteBuffer part = buffer.duplicate();
+                    part.limit(part.position() + viewLength);
+                    view.put(part);
+                    buffer.position(buffer.position() + viewLength);
+                    position += viewLength;
+                }
+            }
+        }
+
+        //Mapped pages are already in memory, so they are written to the target directly.
+        @Override
+        public void transferTo(long position, int length, WritableByteChannel target) throws IOException {
+            long end = position + length;
+            while (position < end) {
+                ByteBuffer view = getView(position, (int) (end - position));
+                position += view.remaining();
+                while (view.hasRemaining()) {
+                    target.write(view);
+                }
+            }
+        }
+
+        //Bytes are received into the mapped pages directly. The buffer is not used.
+        @Override
+        public void transferFrom(long position, int length, ReadableByteChannel source, ByteBuffer buffer) throws IOException {
+            long end = position + length;
+            while (position < end) {
+                ByteBuffer view = getView(position, (int) (end - position));
+                position += view.remaining();
+                while (view.hasRemaining()) {
+                    if (source.read(view) < 0) {
+                        throw new EOFException();
+                    }
+                }
+            }
+        }
+
+        //Mapped pages are fed to the digest directly. The buffer is not used.
+        @Override
+        public void digest(long position, int length, MessageDigest messageDigest, ByteBuffer buffer) {
+            long end = position + length;
+            while (position < end) {
+                ByteBuffer view = getView(position, (int) (end - position));
+                position += view.remaining();
+                messageDigest.update(view);
+            }
+        }
+
+        @Override
+        public void sync() {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+        }
+
+        @Override
+        public void close() {
+            sync();
+        }
+
+        //Returns a private view from position up to length bytes, cut at the end of the segment.
+        private ByteBuffer getView(long position, int length) {
+            MappedByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)];
+            int segmentOffset = (int) (position % SEGMENT_SIZE);
+            ByteBuffer view = segment.duplicate();
+            view.position(segmentOffset);
+            view.limit(segmentOffset + Math.min(length, segment.capacity() - segmentOffset));
+            return view;
+        }
+
     }
 
 }
@@ -0,0 +1,132 @@
+package p2p;
+
+//Sliding window of pieces ahead of the playback position, for watching a file while it downloads.
+//Pieces inside the window are requested in playback order. Pieces outside it are still picked rarest-first.
+//If a playback rate is set, the position moves on by itself, but never past the first piece the host misses, like a player that stalls to buffer.
+//Every window piece then has a deadline: the time playback reaches it.
+public final class StreamingWindow {
+
+    private static final long MIN_URGENT_INTERVAL = 1000;      //in milliseconds
+
+    private final Peer hostPeer;
+    private final long fileSize;
+    private final int pieceSize;
+    private final int windowSize;               //in pieces
+    private final long playbackRate;            //in bytes per second. 0 if the position only changes when set.
+    private volatile boolean enabled;
+    private long playbackPosition;              //in bytes. Guarded by this.
+    private long playbackTimestamp;             //Guarded by this.
+
+    public StreamingWindow(Peer hostPeer, long fileSize, int pieceSize, int windowSize, long playbackRate) {
+        if (hostPeer == null) {
+            throw new IllegalArgumentException("Invalid hostPeer happens when creating StreamingWindow.");
+        }
+        if (fileSize < 1) {
+            throw new IllegalArgumentException("Invalid fileSize happens when creating StreamingWindow.");
+        }
+        if (pieceSize < 1) {
+            throw new IllegalArgumentException("Invalid pieceSize happens when creating StreamingWindow.");
+        }
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Invalid windowSize happens when creating StreamingWindow.");
+        }
+        if (playbackRate < 0) {
+            throw new IllegalArgumentException("Invalid playbackRate happens when creating StreamingWindow.");
+        }
+
+        this.hostPeer = hostPeer;
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.windowSize = windowSize;
+        this.playbackRate = playbackRate;
+        enabled = false;
+        playbackPosition = 0;
+        playbackTimestamp = System.currentTimeMillis();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized void setEnabled(boolean b) {
+        if (b && !enabled) {
+            playbackTimestamp = System.currentTimeMillis();     //Playback does not move while streaming is off.
+        }
+        enabled = b;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public long getPlaybackRate() {
+        return playbackRate;
+    }
+
+    //Returns -1 if the position is outside the file.
+    @SuppressWarnings("UnusedReturnValue")
+    public synchronized int setPlaybackPosition(long position) {
+        if (position < 0 || position >= fileSize) {
+            return -1;
+        }
+
+        playbackPosition = position;
+        playbackTimestamp = System.currentTimeMillis();
+        return 0;
+    }
+
+    public synchronized long getPlaybackPosition() {
+        advancePlayback();
+        return playbackPosition;
+    }
+
+    //First piece of the window.
+    public int getWindowStart() {
+        return (int) (getPlaybackPosition() / pieceSize);
+    }
+
+    //Piece after the last piece of the window.
+    public int getWindowEnd() {
+        return (int) Math.min(hostPeer.getPieceCount(), (long) getWindowStart() + windowSize);
+    }
+
+    //Returns the milliseconds left before playback reaches the piece. Negative if it is late already.
+    //Returns Long.MAX_VALUE if no playback rate is set.
+    public long getTimeToDeadline(int pieceIndex) {
+        if (playbackRate == 0) {
+            return Long.MAX_VALUE;
+        }
+        return ((long) pieceIndex * pieceSize - getPlaybackPosition()) * 1000 / playbackRate;
+    }
+
+    //Returns true if the piece should be requested again even though it is in flight, because playback needs it before a lost request would be noticed.
+    public boolean isUrgent(int pieceIndex, long requestTimeout) {
+        return getTimeToDeadline(pieceIndex) < Math.max(MIN_URGENT_INTERVAL, requestTimeout);
+    }
+
+    //Number of window pieces the host still misses.
+    public int getMissingPieceCount() {
+        int windowStart = getWindowStart();
+        int windowEnd = getWindowEnd();
+        int missingPieceCount = 0;
+        for (int i = windowStart; i < windowEnd; i++) {
+            if (!hostPeer.hasPiece(i)) {
+                missingPieceCount++;
+            }
+        }
+        return missingPieceCount;
+    }
+
+    //Must hold this.
+    private void advancePlayback() {
+        long now = System.currentTimeMillis();
+        if (enabled && playbackRate > 0) {
+            long firstMissingPiece = hostPeer.getPieceStatus().nextClearBit((int) (playbackPosition / pieceSize));
+            long bufferedPosition = Math.min(fileSize - 1, firstMissingPiece * pieceSize);
+            long position = playbackPosition + (now - playbackTimestamp) * playbackRate / 1000;
+            playbackPosition = Math.max(playbackPosition, Math.min(position, bufferedPosition));
+        }
+        playbackTimestamp = now;
+    }
+
+}
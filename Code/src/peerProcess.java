@@ -6,6 +6,8 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.stream.IntStream;
 import java.io.FileNotFoundException;
 
 public final class peerProcess {
@@ -15,13 +17,26 @@ public final class peerProcess {
     private final String peerInformationConfigPath = "PeerInfo.cfg";
 
     //Default common config settings.
-    private String fileName = null;
-    private long fileSize = -1;
+    private String fileName = null;                   //Bundle name if more than one file is shared.
+    private long fileSize = -1;                       //Total size of all files.
+    private final ArrayList<String> fileNameList = new ArrayList<>();
+    private final ArrayList<Long> fileSizeList = new ArrayList<>();
     private int pieceSize = 65536;                    //Best speed if using size around this value.
     private int preferredNeighborCount = 3;
     private int preferredUnchokingInterval = 10;
     private int optimisticNeighborCount = 1;
     private int optimisticUnchokingInterval = 20;
+    private SharedFile.StorageMode storageMode = SharedFile.StorageMode.RANDOM_ACCESS;
+    private boolean startupRecheck = false;
+    private boolean compactBitfield = true;           //Offers HAVE_ALL, HAVE_NONE and run-length bitfields in the handshake.
+    private HostPeer.NetworkEngine networkEngine = HostPeer.NetworkEngine.BLOCKING;
+    private int selectorThreadCount = 2;              //I/O threads of the selector engine.
+    private long pieceCacheSize = 0;                  //in bytes. 0 disables the piece cache.
+    private long writeBehindSize = 0;                 //in bytes. 0 writes received pieces synchronously.
+    private int blockSize = 0;                        //in bytes. 0 requests whole pieces.
+    private int progressSyncInterval = 10;            //in seconds. Progress is saved this often, after syncing the shared file. 0 saves every second.
+    private int streamingWindowSize = 32;             //in pieces. Streaming is switched on from the console.
+    private long streamingRate = 0;                   //in bytes per second. 0 moves the playback position only when set from the console.
 
     //Default peer information config settings.
     private final ArrayList<Peer> peerList = new ArrayList<>();
@@ -105,8 +120,15 @@ public final class peerProcess {
         }
 
         try {
-            SharedFile sharedFile = new SharedFile(fileName, fileDirectory, fileSize, pieceSize);
+            SharedFile sharedFile = new SharedFile(fileName, fileDirectory, fileNameList, fileSizeList, pieceSize, storageMode);
             ProgressFile progressFile = loadProgressFile(peerList.get(hostPeerIndex));
+            sharedFile.setPieceManifest(loadPieceManifest(peerList.get(hostPeerIndex), sharedFile, progressFile));
+            if (pieceCacheSize > 0) {
+                sharedFile.setPieceCache(new PieceCache(pieceCacheSize, pieceSize));
+            }
+            if (writeBehindSize > 0) {
+                sharedFile.startWriteBehind(writeBehindSize);
+            }
             ArrayList<Peer> knownPeerList = new ArrayList<>(peerList.subList(0, hostPeerIndex));
             hostPeer = new HostPeer(peerList.get(hostPeerIndex),
                     preferredNeighborCount,
@@ -115,9 +137,13 @@ public final class peerProcess {
                     optimisticUnchokingInterval,
                     sharedFile,
                     progressFile,
+                    blockSize,
                     knownPeerList,
                     downloadingSpeedLimit,
                     uploadingSpeedLimit);
+            hostPeer.setStreamingWindow(new StreamingWindow(hostPeer, fileSize, pieceSize, streamingWindowSize, streamingRate));
+            hostPeer.setCompactBitfieldEnabled(compactBitfield);
+            hostPeer.setNetworkEngine(networkEngine, selectorThreadCount);
         } catch (IOException e) {
             String string = "IOException happens when creating hostPeer.";
             P2PLogger.log(string);
@@ -158,15 +184,51 @@ public final class peerProcess {
                     case "OptimisticUnchokingInterval":
                         optimisticUnchokingInterval = Integer.parseInt(strings[1]);
                         break;
-                    case "FileName":
+                    case "BundleName":
                         fileName = strings[1];
                         break;
+                    case "FileName":
+                        fileNameList.add(strings[1]);
+                        break;
                     case "FileSize":
-                        fileSize = Long.parseLong(strings[1]);
+                        fileSizeList.add(Long.parseLong(strings[1]));
                         break;
                     case "PieceSize":
                         pieceSize = Integer.parseInt(strings[1]);
                         break;
+                    case "StorageMode":
+                        storageMode = SharedFile.StorageMode.typeOf(strings[1]);
+                        break;
+                    case "PieceCacheSize":
+                        pieceCacheSize = Long.parseLong(strings[1]);
+                        break;
+                    case "ProgressSyncInterval":
+                        progressSyncInterval = Integer.parseInt(strings[1]);
+                        break;
+                    case "BlockSize":
+                        blockSize = Integer.parseInt(strings[1]);
+                        break;
+                    case "WriteBehindSize":
+                        writeBehindSize = Long.parseLong(strings[1]);
+                        break;
+                    case "StreamingWindowSize":
+                        streamingWindowSize = Integer.parseInt(strings[1]);
+                        break;
+                    case "StreamingRate":
+                        streamingRate = Long.parseLong(strings[1]) * 1024;
+                        break;
+                    case "StartupRecheck":
+                        startupRecheck = strings[1].equals("1");
+                        break;
+                    case "CompactBitfield":
+                        compactBitfield = strings[1].equals("1");
+                        break;
+                    case "NetworkEngine":
+                        networkEngine = HostPeer.NetworkEngine.typeOf(strings[1]);
+                        break;
+                    case "SelectorThreadCount":
+                        selectorThreadCount = Integer.parseInt(strings[1]);
+                        break;
                     default:
                         break;
                 }
@@ -191,24 +253,95 @@ public final class peerProcess {
             }
         }
 
-        if (fileName == null || fileName.length() == 0) {
+        if (fileNameList.isEmpty()) {
             String string = "FileName is required in \"" + commonConfigPath + "\".";
             P2PLogger.log(string);
             System.out.println(string);
             return -1;
         }
-        if (fileSize < 1) {
-            String string = "FileSize is required and must be greater than 0 in \"" + commonConfigPath + "\".";
+        if (fileSizeList.size() != fileNameList.size() || fileSizeList.stream().anyMatch(l -> l < 1)) {
+            String string = "FileSize is required for each FileName and must be greater than 0 in \"" + commonConfigPath + "\".";
             P2PLogger.log(string);
             System.out.println(string);
             return -1;
         }
+        //Files listed in order form one piece space. Progress and manifest files are named after the bundle.
+        fileSize = fileSizeList.stream().mapToLong(Long::longValue).sum();
+        if (fileName == null) {
+            fileName = fileNameList.size() == 1 ? fileNameList.get(0) : fileNameList.get(0) + ".bundle";
+        }
         if (pieceSize < 1) {
             String string = "PieceSize must be greater than 0 in \"" + commonConfigPath + "\".";
             P2PLogger.log(string);
             System.out.println(string);
             return -1;
         }
+        if (pieceCacheSize != 0 && pieceCacheSize < pieceSize) {
+            String string = "PieceCacheSize must be 0 or at least PieceSize in \"" + commonConfigPath + "\".";
+            P2PLogger.log(string);
+            System.out.println(string);
+            return -1;
+        }
+        if (blockSize < 0 || blockSize > pieceSize) {
+            String string = "BlockSize must be 0, or between 1 and PieceSize in \"" + commonConfigPath + "\".";
+            P2PLogger.log(string);
+            System.out.println(string);
+            return -1;
+        }
+        if (blockSize > 0 && (fileSize + pieceSize - 1) / pieceSize * ((pieceSize + blockSize - 1) / blockSize) > Integer.MAX_VALUE) {
+            String string = "BlockSize is too small for the file size in \"" + commonConfigPath + "\". Block count must fit in an int.";
+            P2PLogger.log(string);
+            System.out.println(string);
+            return -1;
+        }
+        if (progressSyncInterval < 0) {
+            String string = "ProgressSyncInterval must not be negative in \"" + commonConfigPath + "\".";
+            P2PLogger.log(string);
+            System.out.println(string);
+            return -1;
+        }
+        if (writeBehindSize != 0 && writeBehindSize < pieceSize) {
+            String string = "WriteBehindSize must be 0 or at least PieceSize in \"" + commonConfigPath + "\".";
+            P2PLogger.log(string);
+            System.out.println(string);
+            return -1;
+        }
+        if (streamingWindowSize < 1) {
+            String string = "StreamingWindowSize must be greater than 0 in \"" + commonConfigPath + "\".";
+            P2PLogger.log(string);
+            System.out.println(string);
+            return -1;
+        }
+        if (streamingRate < 0) {
+            String string = "StreamingRate must not be negative in \"" + commonConfigPath + "\".";
+            P2PLogger.log(string);
+            System.out.println(string);
+            return -1;
+        }
+        if (storageMode == null) {
+            String string = "StorageMode must be RandomAccess, MemoryMapped or Positional in \"" + commonConfigPath + "\".";
+            P2PLogger.log(string);
+            System.out.println(string);
+            return -1;
+        }
+        if (networkEngine == null) {
+            String string = "NetworkEngine must be Blocking, Selector or VirtualThread in \"" + commonConfigPath + "\".";
+            P2PLogger.log(string);
+            System.out.println(string);
+            return -1;
+        }
+        if (networkEngine == HostPeer.NetworkEngine.VIRTUAL_THREAD && !HostPeer.isVirtualThreadSupported()) {
+            String string = "NetworkEngine VirtualThread needs Java 21 or later, but this is Java " + System.getProperty("java.version") + ". Use Blocking or Selector in \"" + commonConfigPath + "\".";
+            P2PLogger.log(string);
+            System.out.println(string);
+            return -1;
+        }
+        if (selectorThreadCount < 1) {
+            String string = "SelectorThreadCount must be greater than 0 in \"" + commonConfigPath + "\".";
+            P2PLogger.log(string);
+            System.out.println(string);
+            return -1;
+        }
         if (preferredNeighborCount < 1) {
             String string = "NumberOfPreferredNeighbors must be greater than 0 in \"" + commonConfigPath + "\".";
             P2PLogger.log(string);
@@ -305,13 +438,55 @@ public final class peerProcess {
 
         String progressFileName = fileName + ".bitfield";
         boolean hasFile = new File(fileDirectory, progressFileName).isFile();    //Check if file exists and is a normal file, not a directory.
-        ProgressFile progressFile = new ProgressFile(progressFileName, fileDirectory, (peer.getPieceCount() + 7) / 8);    //Open or create progress file.
+        ProgressFile progressFile = new ProgressFile(progressFileName, fileDirectory, (peer.getPieceCount() + 7) / 8, progressSyncInterval);    //Open or create progress file.
         if (hasFile) {
             peer.setPieceStatus(progressFile.readFile());
         }
         return progressFile;
     }
 
+    //Manifest is kept next to the common config so that every peer process uses the same one.
+    //Existing data is rechecked against a loaded manifest if StartupRecheck is on, or if the file had to be resized.
+    //Returns null if there is no manifest and host peer cannot generate it.
+    private PieceManifest loadPieceManifest(Peer peer, SharedFile sharedFile, ProgressFile progressFile) throws IOException {
+        if (peer == null) {
+            return null;
+        }
+
+        String manifestFileName = fileName + ".sha256";
+        String manifestDirectory = new File(commonConfigPath).getAbsoluteFile().getParent();
+        PieceManifest pieceManifest = PieceManifest.load(manifestFileName, manifestDirectory, peer.getPieceCount());
+        if (pieceManifest != null && (startupRecheck || !sharedFile.isFileSizeConsistent())) {
+            recheckSharedFile(peer, sharedFile, progressFile, pieceManifest);
+        }
+        if (pieceManifest == null && peer.hasCompleteFile()) {
+            long startTimestamp = System.currentTimeMillis();
+            pieceManifest = PieceManifest.generate(manifestFileName, manifestDirectory, sharedFile);
+            P2PLogger.log("Piece manifest \"" + manifestFileName + "\" is generated in " + (System.currentTimeMillis() - startTimestamp) + " ms.");
+        }
+        if (pieceManifest == null) {
+            P2PLogger.log("Piece manifest \"" + manifestFileName + "\" is not found. Received pieces are checked by length only.");
+        }
+        return pieceManifest;
+    }
+
+    //Rebuilds piece status from the data that is actually on disk, then saves it as the new progress.
+    private void recheckSharedFile(Peer peer, SharedFile sharedFile, ProgressFile progressFile, PieceManifest pieceManifest) {
+        long startTimestamp = System.currentTimeMillis();
+        BitSet verifiedPieces = pieceManifest.recheck(sharedFile);
+        long interval = Math.max(1, System.currentTimeMillis() - startTimestamp);
+        long scannedPieceCount = IntStream.range(0, sharedFile.getPieceCount()).filter(sharedFile::hasInitialData).count();
+
+        int previousPieceCount = peer.getCompletePieceCount();
+        peer.setPieceStatus(verifiedPieces);
+        progressFile.writeFile(peer.getPieceStatusAsBitfield());
+
+        String string = "Recheck verified " + verifiedPieces.cardinality() + " of " + peer.getPieceCount() + " pieces in " + interval + " ms ("
+                + scannedPieceCount * 1000 / interval + " pieces/s). Progress had " + previousPieceCount + " pieces.";
+        P2PLogger.log(string);
+        System.out.println(string);
+    }
+
     public HostPeer getHostPeer() {
         return hostPeer;
     }
@@ -450,6 +625,21 @@ public final class peerProcess {
                         }
                     }
                     return;
+                case "s":
+                case "stream":
+                    StreamingWindow streamingWindow = hostPeer.getStreamingWindow();
+                    if (stringArray.length == 1) {
+                        streamingWindow.setEnabled(!streamingWindow.isEnabled());
+                    } else if (stringArray.length == 2) {
+                        try {
+                            long position = Long.parseLong(stringArray[1]);
+                            if (streamingWindow.setPlaybackPosition(position * 1024) == 0) {
+                                streamingWindow.setEnabled(true);
+                            }
+                        } catch (NumberFormatException e) {
+                        }
+                    }
+                    return;
                 case "h":
                 case "help":
                     showHelp = !showHelp;
@@ -479,7 +669,7 @@ public final class peerProcess {
             string += getPeerTable();
             string += "\n";
             string += getPeerDetails();
-            string += showHelp ? "Available commands: (e)xit; (p)ause; (r)esume; (d)ownload limit_in_KB, (u)pload limit_in_KB. Enter (h)elp to disable this message.\n" : "";
+            string += showHelp ? "Available commands: (e)xit; (p)ause; (r)esume; (d)ownload limit_in_KB, (u)pload limit_in_KB; (s)tream [position_in_KB]. Enter (h)elp to disable this message.\n" : "";
             string += hostPeer.isPaused() ? "Download / Upload Paused.\n" : "";
             string += "Enter help for available commands; enter Peer ID for more details: ";
 
@@ -507,8 +697,13 @@ public final class peerProcess {
 
             Peer ID: 1006    Hostname: localhost    IP: 127.0.0.1     Port: 5995    Complete Pieces: 8325
             Connecting Peers: 3    Delaying Request Messages: 5    Delaying Piece Messages: 35
-            Request Estimated RTT: 125 ms    Request Deviation RTT: 25 ms    Flying Request Messages: 18
-            Available commands: (e)xit; (p)ause; (r)esume; (d)ownload limit_in_KB, (u)pload limit_in_KB. Enter (h)elp to disable this message.
+            Network Engine: Selector    I/O Threads: 2    Selector Connections: 5    Queued Messages: 3    Received Messages: 1
+            Network Engine: VirtualThread    Neighbor Threads: 5    Thread Caching: No
+            Reserved Requests: 16    Expired Reservations: 2    Wasted Download: 192 KB
+            Streaming Position: 12 MB    Streaming Window: Pieces 192 - 223    Missing Window Pieces: 4
+            Request Estimated RTT: 125 ms    Request Deviation RTT: 25 ms    Flying Request Messages: 18    Interesting Pieces: 310    Compact Bitfield: Yes
+            Request Window: 24 (Slow Start)    Bandwidth-Delay Product: 20    Minimum RTT: 100 ms    Delivery Rate: 3 MB/s    Window Back-Offs: 1
+            Available commands: (e)xit; (p)ause; (r)esume; (d)ownload limit_in_KB, (u)pload limit_in_KB; (s)tream [position_in_KB]. Enter (h)elp to disable this message.
             Enter help for available commands; enter Peer ID for more details:
             */
         }
@@ -534,7 +729,7 @@ public final class peerProcess {
 
         private String getBasicInformation() {
             String string = "";
-            string += "File Name: " + hostPeer.getSharedFile().getFileName() + "    ";
+            string += "File Name: " + hostPeer.getSharedFile().getFileName() + (hostPeer.getSharedFile().getFileCount() > 1 ? " (" + hostPeer.getSharedFile().getFileCount() + " files)" : "") + "    ";
             string += "File Size: " + getSizeString(hostPeer.getSharedFile().getFileSize()) + " (" + hostPeer.getSharedFile().getFileSize() + " B)    ";
             string += "File Health: " + hostPeer.getFileHealthPercentage() + "%";
             string += "\n";
@@ -661,13 +856,68 @@ public final class peerProcess {
                 HostPeer hostPeer = (HostPeer) showDetailPeer;
                 string += "Connecting Peers: " + hostPeer.getConnectionStarter().getConnectingPeerCount() + "    ";
                 string += "Delaying Request Messages: " + hostPeer.getSpeedLimiter().getDelayedRequestMessageCount() + "    ";
-                string += "Delaying Piece Messages: " + hostPeer.getSpeedLimiter().getDelayedPieceMessageCount();
+                string += "Delaying Piece Messages: " + hostPeer.getSpeedLimiter().getDelayedPieceMessageCount() + "    ";
+                string += "Pooled Buffers Created: " + hostPeer.getBufferPool().getAllocatedBufferCount();
+                string += "\n";
+                SelectorEngine selectorEngine = hostPeer.getSelectorEngine();
+                if (selectorEngine != null) {
+                    string += "Network Engine: Selector    ";
+                    string += "I/O Threads: " + selectorEngine.getIOThreadCount() + "    ";
+                    string += "Selector Connections: " + selectorEngine.getConnectionCount() + "    ";
+                    string += "Queued Messages: " + selectorEngine.getQueuedMessageCount() + "    ";
+                    string += "Received Messages: " + selectorEngine.getReceivedMessageCount();
+                    string += "\n";
+                } else if (hostPeer.getNetworkEngine() == HostPeer.NetworkEngine.VIRTUAL_THREAD) {
+                    string += "Network Engine: VirtualThread    ";
+                    string += "Neighbor Threads: " + hostPeer.getActiveNeighborList().size() + "    ";
+                    string += "Thread Caching: " + (hostPeer.getBufferPool().isThreadCachingEnabled() ? "Yes" : "No");
+                    string += "\n";
+                }
+                string += "Endgame: " + (hostPeer.isInEndgame() ? "Yes" : "No") + "    ";
+                string += "Cancelled Requests: " + hostPeer.getCancelledRequestCount();
+                string += "\n";
+                string += "Reserved Requests: " + hostPeer.getReservationTable().getReservationCount() + "    ";
+                string += "Expired Reservations: " + hostPeer.getReservationTable().getExpiredReservationCount() + "    ";
+                string += "Wasted Download: " + getSizeString(hostPeer.getWastedByteCount());
                 string += "\n";
+                StreamingWindow streamingWindow = hostPeer.getStreamingWindow();
+                if (streamingWindow.isEnabled()) {
+                    string += "Streaming Position: " + getSizeString(streamingWindow.getPlaybackPosition()) + "    ";
+                    string += "Streaming Window: Pieces " + streamingWindow.getWindowStart() + " - " + (streamingWindow.getWindowEnd() - 1) + "    ";
+                    string += "Missing Window Pieces: " + streamingWindow.getMissingPieceCount();
+                    string += "\n";
+                }
+                PieceCache pieceCache = hostPeer.getSharedFile().getPieceCache();
+                if (pieceCache != null) {
+                    string += "Piece Cache Hits: " + pieceCache.getHitCount() + "    ";
+                    string += "Piece Cache Misses: " + pieceCache.getMissCount() + "    ";
+                    string += "Piece Cache Usage: " + getSizeString(pieceCache.getCachedByteCount()) + " / " + getSizeString(pieceCache.getCapacity());
+                    string += "\n";
+                }
+                if (hostPeer.getPieceAssembler() != null) {
+                    string += "Block Size: " + getSizeString(hostPeer.getPieceAssembler().getBlockSize()) + "    ";
+                    string += "Partial Pieces: " + hostPeer.getPieceAssembler().getPartialPieceCount();
+                    string += "\n";
+                }
+                if (writeBehindSize > 0) {
+                    string += "Write-Behind Pieces: " + hostPeer.getSharedFile().getWriteBehindPieceCount() + "    ";
+                    string += "Lost Pieces: " + hostPeer.getSharedFile().getLostPieceCount();
+                    string += "\n";
+                }
             } else if (showDetailPeer instanceof NeighborPeer) {
                 NeighborPeer neighborPeer = (NeighborPeer) showDetailPeer;
                 string += "Request Estimated RTT: " + neighborPeer.getMessageHandler().getEstimatedRTT() + " ms    ";
                 string += "Request Deviation RTT: " + neighborPeer.getMessageHandler().getDeviationRTT() + " ms    ";
-                string += "Flying Request Messages: " + neighborPeer.getMessageHandler().getRequestedPieceCount();
+                string += "Flying Request Messages: " + neighborPeer.getMessageHandler().getRequestedPieceCount() + "    ";
+                string += "Interesting Pieces: " + neighborPeer.getInterestingPieceCount() + "    ";
+                string += "Compact Bitfield: " + (neighborPeer.isCompactBitfieldSupported() ? "Yes" : "No");
+                string += "\n";
+                RequestWindow requestWindow = neighborPeer.getMessageHandler().getRequestWindow();
+                string += "Request Window: " + requestWindow.getWindow() + (requestWindow.isInSlowStart() ? " (Slow Start)" : "") + "    ";
+                string += "Bandwidth-Delay Product: " + requestWindow.getBandwidthDelayProduct() + "    ";
+                string += "Minimum RTT: " + requestWindow.getMinRTT() + " ms    ";
+                string += "Delivery Rate: " + getSizeString(requestWindow.getDeliveryRate()) + "/s    ";
+                string += "Window Back-Offs: " + requestWindow.getBackOffCount();
                 string += "\n";
             }
             return string;